@@ -13,6 +13,7 @@
 #define REQUEST_CODE_SHMGET 0
 #define REQUEST_CODE_GET_FD 1
 #define REQUEST_CODE_DELETE 2
+#define REQUEST_CODE_SHMGET_KEY 3
 
 #define MIN_REQUEST_LENGTH 5
 #define ROUND_UP(N, S) ((((N) + (S) - 1) / (S)) * (S))
@@ -21,6 +22,7 @@
 
 typedef struct {
     int id;
+    key_t key;
     void* addr;
     int fd;
     size_t size;
@@ -87,6 +89,24 @@ static int sysvshm_shmget_request(size_t size) {
     return res == 4 ? shmid : 0;
 }
 
+/* returns the shmid or a negative errno */
+static int sysvshm_shmget_key_request(key_t key, size_t size, int flags) {
+    if (sysvshm_server_fd < 0) return -ENOMEM;
+    
+    char request_data[MIN_REQUEST_LENGTH + 8];
+    request_data[0] = REQUEST_CODE_SHMGET_KEY;
+    memcpy(request_data + 1, &key, 4);
+    memcpy(request_data + 5, &size, 4);
+    memcpy(request_data + 9, &flags, 4);
+    
+    int res = write(sysvshm_server_fd, request_data, sizeof(request_data));
+    if (res < 0) return -ENOMEM;
+    
+    int shmid;
+    res = read(sysvshm_server_fd, &shmid, 4);
+    return res == 4 ? shmid : -ENOMEM;
+}
+
 static int sysvshm_get_fd_request(int shmid) {
     if (sysvshm_server_fd < 0) return 0;
     
@@ -145,18 +165,23 @@ static void sysvshm_delete(int index) {
 }
 
 int shmget(key_t key, size_t size, int flags) {
-    if (key != IPC_PRIVATE) return -1;
-    
     pthread_mutex_lock(&mutex);
         
     sysvshm_connect();
-    int shmid = sysvshm_shmget_request(size);
-    if (shmid == 0) {
+    int shmid = key != IPC_PRIVATE ? sysvshm_shmget_key_request(key, size, flags) : sysvshm_shmget_request(size);
+    if (shmid <= 0) {
         sysvshm_close();
         pthread_mutex_unlock(&mutex);
+        errno = shmid < 0 ? -shmid : ENOMEM;
         return -1;
     }
     
+    if (find_shmemory_index(shmid) != -1) {
+        sysvshm_close();
+        pthread_mutex_unlock(&mutex);
+        return shmid;
+    }
+    
     size = ROUND_UP(size, getpagesize());
     int index = shmemory_count;
     shmemory_count++;
@@ -165,6 +190,7 @@ int shmget(key_t key, size_t size, int flags) {
     shmemories[index].fd = sysvshm_get_fd_request(shmid);
     shmemories[index].addr = NULL;
     shmemories[index].id = shmid;
+    shmemories[index].key = key;
     shmemories[index].marked_for_delete = 0;
     
     sysvshm_close();
@@ -183,7 +209,7 @@ int shmget(key_t key, size_t size, int flags) {
 void* shmat(int shmid, const void* shmaddr, int shmflg) {
     pthread_mutex_lock(&mutex);
 
-    void* addr;
+    void* addr = NULL;
     int index = find_shmemory_index(shmid);
     if (index != -1) {
         if (shmemories[index].addr == NULL) {
@@ -240,7 +266,7 @@ int shmctl(int shmid, int cmd, struct shmid_ds* buf) {
         memset(buf, 0, sizeof(struct shmid_ds));
         buf->shm_segsz = shmemories[index].size;
         buf->shm_nattch = 1;
-        buf->shm_perm.__key = IPC_PRIVATE;
+        buf->shm_perm.__key = shmemories[index].key;
         buf->shm_perm.uid = geteuid();
         buf->shm_perm.gid = getegid();
         buf->shm_perm.cuid = geteuid();
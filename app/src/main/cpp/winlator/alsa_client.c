@@ -1,8 +1,30 @@
 #include <aaudio/AAudio.h>
 #include <jni.h>
+#include <poll.h>
+#include <stdint.h>
+#include <sys/eventfd.h>
+#include <unistd.h>
 
 #define WAIT_COMPLETION_TIMEOUT 100 * 1000000L
 
+// Header at the start of the shared segment in ring mode, followed by buffer_size frames of data.
+// The client only writes head, the server only writes tail, both count frames modulo twice the buffer
+// size (so that a full ring differs from an empty one and the slot sequence stays continuous).
+typedef struct RingHeader {
+    uint32_t head;
+    uint32_t tail;
+    uint32_t waiting;
+} RingHeader;
+
+static uint32_t ringDistance(uint32_t head, uint32_t tail, uint32_t bufferSize) {
+    return head >= tail ? head - tail : head + 2 * bufferSize - tail;
+}
+
+static uint32_t ringAdvance(uint32_t index, uint32_t count, uint32_t bufferSize) {
+    index += count;
+    return index >= 2 * bufferSize ? index - 2 * bufferSize : index;
+}
+
 enum Format {U8, S16LE, S16BE, FLOATLE, FLOATBE};
 
 static aaudio_format_t toAAudioFormat(int format) {
@@ -79,10 +101,10 @@ Java_com_winlator_cmod_alsaserver_ALSAClient_create(JNIEnv *env, jobject obj, ji
 
 JNIEXPORT jint JNICALL
 Java_com_winlator_cmod_alsaserver_ALSAClient_write(JNIEnv *env, jobject obj, jlong streamPtr, jobject buffer,
-                                              jint numFrames) {
+                                              jint offset, jint numFrames) {
     AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
     if (aaudioStream) {
-        return aaudioWrite(aaudioStream, (*env)->GetDirectBufferAddress(env, buffer), numFrames);
+        return aaudioWrite(aaudioStream, (char*)(*env)->GetDirectBufferAddress(env, buffer) + offset, numFrames);
     }
     else return -1;
 }
@@ -115,4 +137,154 @@ JNIEXPORT void JNICALL
 Java_com_winlator_cmod_alsaserver_ALSAClient_close(JNIEnv *env, jobject obj, jlong streamPtr) {
     AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
     if (aaudioStream) AAudioStream_close(aaudioStream);
-}
\ No newline at end of file
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getXRunCount(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_getXRunCount(aaudioStream) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getFramesQueued(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    if (!aaudioStream) return 0;
+    int64_t framesQueued = AAudioStream_getFramesWritten(aaudioStream) - AAudioStream_getFramesRead(aaudioStream);
+    return framesQueued > 0 ? (jint)framesQueued : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getFramesPerBurst(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_getFramesPerBurst(aaudioStream) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getBufferCapacity(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_getBufferCapacityInFrames(aaudioStream) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_setStreamBufferSize(JNIEnv *env, jobject obj, jlong streamPtr,
+                                                            jint bufferSize) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_setBufferSizeInFrames(aaudioStream, bufferSize) : -1;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_create(JNIEnv *env, jobject obj, jint bufferSize) {
+    return (jlong)aaudioCreate(FLOATLE, 2, AAUDIO_UNSPECIFIED, bufferSize);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_getSampleRate(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_getSampleRate(aaudioStream) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_getFramesPerBurst(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    return aaudioStream ? AAudioStream_getFramesPerBurst(aaudioStream) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_write(JNIEnv *env, jobject obj, jlong streamPtr, jobject buffer,
+                                             jint numFrames) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    if (aaudioStream) {
+        return aaudioWrite(aaudioStream, (*env)->GetDirectBufferAddress(env, buffer), numFrames);
+    }
+    else return -1;
+}
+
+JNIEXPORT void JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_start(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    if (aaudioStream) aaudioStart(aaudioStream);
+}
+
+JNIEXPORT void JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_stop(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    if (aaudioStream) aaudioStop(aaudioStream);
+}
+
+JNIEXPORT void JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAMixer_close(JNIEnv *env, jobject obj, jlong streamPtr) {
+    AAudioStream *aaudioStream = (AAudioStream*)streamPtr;
+    if (aaudioStream) AAudioStream_close(aaudioStream);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_createEventFd(JNIEnv *env, jclass obj) {
+    return eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+}
+
+JNIEXPORT void JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_signalEventFd(JNIEnv *env, jclass obj, jint eventFd) {
+    eventfd_write(eventFd, 1);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getRingFrames(JNIEnv *env, jclass obj, jobject ringBuffer,
+                                                      jint bufferSize) {
+    RingHeader *ring = (*env)->GetDirectBufferAddress(env, ringBuffer);
+    if (!ring) return 0;
+    return ringDistance(__atomic_load_n(&ring->head, __ATOMIC_ACQUIRE), __atomic_load_n(&ring->tail, __ATOMIC_RELAXED), bufferSize);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_discardFrames(JNIEnv *env, jclass obj, jobject ringBuffer,
+                                                      jint bufferSize, jint eventFd) {
+    RingHeader *ring = (*env)->GetDirectBufferAddress(env, ringBuffer);
+    if (!ring) return 0;
+
+    uint32_t head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+    uint32_t tail = __atomic_load_n(&ring->tail, __ATOMIC_RELAXED);
+    __atomic_store_n(&ring->tail, head, __ATOMIC_RELEASE);
+    if (head != tail) eventfd_write(eventFd, 1);
+    return ringDistance(head, tail, bufferSize);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_waitForFrames(JNIEnv *env, jclass obj, jobject ringBuffer,
+                                                      jint bufferSize, jint eventFd, jint timeout) {
+    RingHeader *ring = (*env)->GetDirectBufferAddress(env, ringBuffer);
+    if (!ring) return -1;
+
+    uint32_t tail = __atomic_load_n(&ring->tail, __ATOMIC_RELAXED);
+    uint32_t frames = ringDistance(__atomic_load_n(&ring->head, __ATOMIC_ACQUIRE), tail, bufferSize);
+    if (frames > 0) return frames;
+
+    // The client checks the flag after publishing head and rings the doorbell only when it is set
+    __atomic_store_n(&ring->waiting, 1, __ATOMIC_SEQ_CST);
+    frames = ringDistance(__atomic_load_n(&ring->head, __ATOMIC_SEQ_CST), tail, bufferSize);
+    if (frames == 0) {
+        struct pollfd pfd = {.fd = eventFd, .events = POLLIN, .revents = 0};
+        poll(&pfd, 1, timeout);
+    }
+    __atomic_store_n(&ring->waiting, 0, __ATOMIC_RELAXED);
+
+    eventfd_t value;
+    eventfd_read(eventFd, &value);
+    return ringDistance(__atomic_load_n(&ring->head, __ATOMIC_ACQUIRE), tail, bufferSize);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_getRingTail(JNIEnv *env, jclass obj, jobject ringBuffer) {
+    RingHeader *ring = (*env)->GetDirectBufferAddress(env, ringBuffer);
+    return ring ? __atomic_load_n(&ring->tail, __ATOMIC_RELAXED) : 0;
+}
+
+JNIEXPORT void JNICALL
+Java_com_winlator_cmod_alsaserver_ALSAClient_releaseFrames(JNIEnv *env, jclass obj, jobject ringBuffer,
+                                                      jint bufferSize, jint numFrames, jint eventFd) {
+    RingHeader *ring = (*env)->GetDirectBufferAddress(env, ringBuffer);
+    if (!ring) return;
+
+    uint32_t tail = __atomic_load_n(&ring->tail, __ATOMIC_RELAXED);
+    __atomic_store_n(&ring->tail, ringAdvance(tail, numFrames, bufferSize), __ATOMIC_RELEASE);
+    eventfd_write(eventFd, 1);
+}
@@ -75,13 +75,17 @@ AHardwareBuffer* createHardwareBuffer(int width, int height) {
     buffDesc.width = width;
     buffDesc.height = height;
     buffDesc.layers = 1;
-    buffDesc.usage = AHARDWAREBUFFER_USAGE_GPU_SAMPLED_IMAGE | AHARDWAREBUFFER_USAGE_CPU_WRITE_OFTEN;
+    buffDesc.usage = AHARDWAREBUFFER_USAGE_GPU_SAMPLED_IMAGE | AHARDWAREBUFFER_USAGE_GPU_COLOR_OUTPUT | AHARDWAREBUFFER_USAGE_CPU_WRITE_OFTEN;
     buffDesc.format = HAL_PIXEL_FORMAT_BGRA_8888;
 
     AHardwareBuffer *hardwareBuffer = NULL;
     if (AHardwareBuffer_allocate(&buffDesc, &hardwareBuffer) != 0) {
-        printf("Failed to allocate AHardwareBuffer\n");
-        return NULL;
+        // Rendering into the buffer is optional, core drawing requests fall back to the CPU without it
+        buffDesc.usage &= ~AHARDWAREBUFFER_USAGE_GPU_COLOR_OUTPUT;
+        if (AHardwareBuffer_allocate(&buffDesc, &hardwareBuffer) != 0) {
+            printf("Failed to allocate AHardwareBuffer\n");
+            return NULL;
+        }
     }
 
     return hardwareBuffer;
@@ -10,6 +10,7 @@
 #include <pthread.h>
 #include <sys/ipc.h>
 #include <sys/syscall.h>
+#include <sys/stat.h>
 #include <jni.h>
 #include <android/log.h>
 
@@ -54,6 +55,15 @@ Java_com_winlator_cmod_sysvshm_SysVSharedMemory_ashmemCreateRegion(JNIEnv *env,
     return ashmemCreateRegion(name, size);
 }
 
+JNIEXPORT jlong JNICALL
+Java_com_winlator_cmod_sysvshm_SysVSharedMemory_getRegionSize(JNIEnv *env, jclass obj, jint fd) {
+    int size = ioctl(fd, ASHMEM_GET_SIZE, NULL);
+    if (size > 0) return size;
+
+    struct stat st;
+    return fstat(fd, &st) == 0 ? st.st_size : -1;
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_winlator_cmod_sysvshm_SysVSharedMemory_mapSHMSegment(JNIEnv *env, jobject obj, jint fd, jlong size, jint offset, jboolean readonly) {
     char *data = mmap(NULL, size, readonly ? PROT_READ : PROT_WRITE | PROT_READ, MAP_SHARED, fd, offset);
@@ -5,6 +5,8 @@
 #include <sys/types.h>
 #include <sys/eventfd.h>
 #include <sys/un.h>
+#include <sys/uio.h>
+#include <errno.h>
 #include <unistd.h>
 #include <string.h>
 #include <malloc.h>
@@ -14,6 +16,7 @@
 #define printf(...) __android_log_print(ANDROID_LOG_DEBUG, "System.out", __VA_ARGS__);
 #define MAX_EVENTS 10
 #define MAX_FDS 32
+#define MAX_IOVECS 64
 
 struct epoll_event events[MAX_EVENTS];
 
@@ -104,6 +107,16 @@ Java_com_winlator_cmod_xconnector_XConnectorEpoll_removeFdFromEpoll(JNIEnv *env,
     epoll_ctl(epollFd, EPOLL_CTL_DEL, fd, NULL);
 }
 
+JNIEXPORT jboolean JNICALL
+Java_com_winlator_cmod_xconnector_XConnectorEpoll_rearmFdInEpoll(JNIEnv *env, jobject obj,
+                                                            jint epollFd, jint fd) {
+    struct epoll_event event;
+    event.data.fd = fd;
+    event.events = EPOLLIN | EPOLLONESHOT;
+    if (epoll_ctl(epollFd, EPOLL_CTL_MOD, fd, &event) < 0) return JNI_FALSE;
+    return JNI_TRUE;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_winlator_cmod_xconnector_ClientSocket_read(JNIEnv *env, jobject obj, jint fd, jobject data,
                                                jint offset, jint length) {
@@ -118,6 +131,78 @@ Java_com_winlator_cmod_xconnector_ClientSocket_write(JNIEnv *env, jobject obj, j
     return write(fd, dataAddr, length);
 }
 
+static const char zeroData[4096] = {0};
+
+static int writevFully(int fd, struct iovec *iov, int count) {
+    int total = 0;
+    while (count > 0) {
+        ssize_t bytesWritten = writev(fd, iov, count);
+        if (bytesWritten < 0) {
+            if (errno == EINTR) continue;
+            return -1;
+        }
+
+        total += bytesWritten;
+        while (count > 0 && bytesWritten >= iov->iov_len) {
+            bytesWritten -= iov->iov_len;
+            iov++;
+            count--;
+        }
+
+        if (count > 0) {
+            iov->iov_base = (char*)iov->iov_base + bytesWritten;
+            iov->iov_len -= bytesWritten;
+        }
+    }
+    return total;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_winlator_cmod_xconnector_ClientSocket_writeRows(JNIEnv *env, jobject obj, jint fd, jobject header,
+                                                    jint headerLength, jobject data, jint offset,
+                                                    jint rowLength, jint stride, jint rows,
+                                                    jint padding) {
+    char *headerAddr = header ? (*env)->GetDirectBufferAddress(env, header) : NULL;
+    char *dataAddr = (char*)(*env)->GetDirectBufferAddress(env, data) + offset;
+    struct iovec iov[MAX_IOVECS];
+    int count = 0;
+    int total = 0;
+    int bytesWritten;
+
+    if (headerAddr && headerLength > 0) {
+        iov[count].iov_base = headerAddr;
+        iov[count++].iov_len = headerLength;
+    }
+
+    if (rowLength == stride && rows > 0) {
+        iov[count].iov_base = dataAddr;
+        iov[count++].iov_len = (size_t)rowLength * rows;
+        rows = 0;
+    }
+
+    while (rows > 0 || padding > 0 || count > 0) {
+        while (count < MAX_IOVECS && rows > 0) {
+            iov[count].iov_base = dataAddr;
+            iov[count++].iov_len = rowLength;
+            dataAddr += stride;
+            rows--;
+        }
+
+        while (count < MAX_IOVECS && rows == 0 && padding > 0) {
+            int length = padding < sizeof(zeroData) ? padding : sizeof(zeroData);
+            iov[count].iov_base = (void*)zeroData;
+            iov[count++].iov_len = length;
+            padding -= length;
+        }
+
+        if ((bytesWritten = writevFully(fd, iov, count)) < 0) return -1;
+        total += bytesWritten;
+        count = 0;
+    }
+
+    return total;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_winlator_cmod_xconnector_XConnectorEpoll_createEventFd(JNIEnv *env, jobject obj) {
     return eventfd(0, EFD_NONBLOCK);
@@ -6,8 +6,13 @@
 #include <sys/socket.h>
 #include <sys/un.h>
 #include <sys/mman.h>
+#include <sys/eventfd.h>
+#include <poll.h>
+#include <stdint.h>
 
 #define MIN_REQUEST_LENGTH 5
+#define RING_HEADER_SIZE 64
+#define PREPARE_FLAG_RING (1<<1)
 
 #define REQUEST_CODE_CLOSE 0
 #define REQUEST_CODE_START 1
@@ -26,6 +31,15 @@
 
 #define ARRAY_SIZE(arr) (sizeof(arr) / sizeof(arr[0]))
 
+// Header at the start of the shared segment in ring mode, followed by buffer_size frames of data.
+// The plugin only writes head, the server only writes tail, both count frames modulo twice the buffer
+// size (so that a full ring differs from an empty one and the slot sequence stays continuous).
+typedef struct ring_header {
+    uint32_t head;
+    uint32_t tail;
+    uint32_t waiting;
+} ring_header_t;
+
 typedef struct snd_pcm_android_aserver {
     snd_pcm_ioplug_t io;
     int fd;
@@ -34,9 +48,13 @@ typedef struct snd_pcm_android_aserver {
     void* buffer;
     int buffer_size;
     bool use_shm;
+    bool use_ring;
+    bool ring_enabled;
+    int doorbell_fd;
+    int notify_fd;
 } snd_pcm_android_aserver_t;
 
-static int android_aserver_recv_fd(int fd) {
+static int android_aserver_recv_fd(int fd, char* status) {
     char zero = 0;
     struct iovec iovmsg = {.iov_base = &zero, .iov_len = 1};
     struct {
@@ -61,9 +79,24 @@ static int android_aserver_recv_fd(int fd) {
     ((int*)CMSG_DATA(cmsg))[0] = -1;
 
     recvmsg(fd, &msg, 0);
+    if (status) *status = zero;
     return ((int*)CMSG_DATA(cmsg))[0];
 }
 
+static void android_aserver_release_ring(snd_pcm_android_aserver_t* android_aserver) {
+    if (android_aserver->doorbell_fd >= 0) close(android_aserver->doorbell_fd);
+    if (android_aserver->notify_fd >= 0) close(android_aserver->notify_fd);
+    android_aserver->doorbell_fd = -1;
+    android_aserver->notify_fd = -1;
+    
+    if (android_aserver->ring_enabled) {
+        android_aserver->ring_enabled = false;
+        android_aserver->io.poll_fd = 0;
+        android_aserver->io.poll_events = 0;
+        snd_pcm_ioplug_reinit_status(&android_aserver->io);
+    }
+}
+
 static int android_aserver_close(snd_pcm_ioplug_t* io) {
     snd_pcm_android_aserver_t* android_aserver = io->private_data;
     if (!android_aserver) return 0;
@@ -83,6 +116,9 @@ static int android_aserver_close(snd_pcm_ioplug_t* io) {
         android_aserver->buffer_size = 0;
     }
     
+    if (android_aserver->doorbell_fd >= 0) close(android_aserver->doorbell_fd);
+    if (android_aserver->notify_fd >= 0) close(android_aserver->notify_fd);
+    
     free(android_aserver);
     return 0;
 }
@@ -156,7 +192,9 @@ static int android_aserver_prepare(snd_pcm_ioplug_t* io) {
             return -EINVAL;            
     }
     
-    int request_length = 10;
+    char flags = android_aserver->use_ring ? PREPARE_FLAG_RING : 0;
+    
+    int request_length = 11;
     char request_data[request_length + MIN_REQUEST_LENGTH];
     request_data[0] = REQUEST_CODE_PREPARE;
     memcpy(request_data + 1, &request_length, 4);
@@ -164,27 +202,59 @@ static int android_aserver_prepare(snd_pcm_ioplug_t* io) {
     memcpy(request_data + 6, &data_type, 1);
     memcpy(request_data + 7, &io->rate, 4);
     memcpy(request_data + 11, &io->buffer_size, 4);
+    memcpy(request_data + 15, &flags, 1);
     
     int res = write(android_aserver->fd, &request_data, request_length + MIN_REQUEST_LENGTH);
     if (res < 0) return -EINVAL;
     
-    if (android_aserver->use_shm) {
+    if (android_aserver->use_shm || android_aserver->use_ring) {
         if (android_aserver->buffer_size > 0) {
             munmap(android_aserver->buffer, android_aserver->buffer_size);
             android_aserver->buffer_size = 0;            
         } 
+        android_aserver_release_ring(android_aserver);
+        
+        char status = 0;
+        int fd = android_aserver_recv_fd(android_aserver->fd, &status);
+        bool ring = status == 1;
+        if (ring) {
+            android_aserver->doorbell_fd = android_aserver_recv_fd(android_aserver->fd, NULL);
+            android_aserver->notify_fd = android_aserver_recv_fd(android_aserver->fd, NULL);
+            if (android_aserver->doorbell_fd < 0 || android_aserver->notify_fd < 0) {
+                android_aserver_release_ring(android_aserver);
+                ring = false;
+            }
+        }
         
-        int fd = android_aserver_recv_fd(android_aserver->fd);
         if (fd >= 0) {
             android_aserver->buffer_size = io->buffer_size * android_aserver->frame_bytes;
+            if (ring) android_aserver->buffer_size += RING_HEADER_SIZE;
             android_aserver->buffer = mmap(NULL, android_aserver->buffer_size, PROT_WRITE | PROT_READ, MAP_SHARED, fd, 0);
             
             if (android_aserver->buffer == MAP_FAILED) {
                 android_aserver->buffer_size = 0;
                 android_aserver->use_shm = false;
+                ring = false;
             }
             close(fd);
         }
+        else {
+            android_aserver->use_shm = false;
+            ring = false;
+        }
+        
+        // Without the ring the server did not map a segment for WRITE requests, the socket path is used instead
+        if (!ring && android_aserver->doorbell_fd >= 0) {
+            android_aserver_release_ring(android_aserver);
+            android_aserver->use_shm = false;
+        }
+        
+        if (ring) {
+            android_aserver->ring_enabled = true;
+            io->poll_fd = android_aserver->notify_fd;
+            io->poll_events = POLLIN;
+            snd_pcm_ioplug_reinit_status(io);
+        }
     }    
     
     return 0;
@@ -192,6 +262,12 @@ static int android_aserver_prepare(snd_pcm_ioplug_t* io) {
 
 static snd_pcm_sframes_t android_aserver_pointer(snd_pcm_ioplug_t* io) {
     snd_pcm_android_aserver_t* android_aserver = io->private_data;
+    
+    if (android_aserver->ring_enabled) {
+        ring_header_t* ring = android_aserver->buffer;
+        android_aserver->position = __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE) % io->buffer_size;
+        return android_aserver->position;
+    }
 
     int request_length = 0;
     char request_data[MIN_REQUEST_LENGTH];
@@ -213,6 +289,29 @@ static snd_pcm_sframes_t android_aserver_transfer(snd_pcm_ioplug_t* io, const sn
     snd_pcm_android_aserver_t* android_aserver = io->private_data;
 
     char* data = (char*)areas->addr + (areas->first + areas->step * offset) / 8;
+    
+    if (android_aserver->ring_enabled) {
+        ring_header_t* ring = android_aserver->buffer;
+        char* ring_data = (char*)android_aserver->buffer + RING_HEADER_SIZE;
+        uint32_t head = __atomic_load_n(&ring->head, __ATOMIC_RELAXED);
+        uint32_t tail = __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE);
+        uint32_t ring_size = 2 * io->buffer_size;
+        snd_pcm_uframes_t free_frames = io->buffer_size - (head >= tail ? head - tail : head + ring_size - tail);
+        if (size > free_frames) size = free_frames;
+        if (size == 0) return 0;
+        
+        uint32_t index = head % io->buffer_size;
+        snd_pcm_uframes_t first = io->buffer_size - index;
+        if (first > size) first = size;
+        memcpy(ring_data + index * android_aserver->frame_bytes, data, first * android_aserver->frame_bytes);
+        if (size > first) memcpy(ring_data, data + first * android_aserver->frame_bytes, (size - first) * android_aserver->frame_bytes);
+        
+        head += (uint32_t)size;
+        if (head >= ring_size) head -= ring_size;
+        __atomic_store_n(&ring->head, head, __ATOMIC_SEQ_CST);
+        if (__atomic_load_n(&ring->waiting, __ATOMIC_SEQ_CST)) eventfd_write(android_aserver->doorbell_fd, 1);
+        return size;
+    }
 
     int request_length = size * android_aserver->frame_bytes;
     char request_data[MIN_REQUEST_LENGTH];
@@ -232,6 +331,19 @@ static snd_pcm_sframes_t android_aserver_transfer(snd_pcm_ioplug_t* io, const sn
     return size;
 }
 
+static int android_aserver_poll_revents(snd_pcm_ioplug_t* io, struct pollfd* pfds, unsigned int nfds, unsigned short* revents) {
+    snd_pcm_android_aserver_t* android_aserver = io->private_data;
+    *revents = 0;
+    
+    if (android_aserver->ring_enabled && nfds > 0 && (pfds[0].revents & POLLIN)) {
+        eventfd_t value;
+        eventfd_read(android_aserver->notify_fd, &value);
+    }
+    
+    if (snd_pcm_avail_update(io->pcm) > 0) *revents = POLLOUT;
+    return 0;
+}
+
 static int android_aserver_drain(snd_pcm_ioplug_t* io) {
     snd_pcm_android_aserver_t* android_aserver = io->private_data;
 
@@ -281,6 +393,7 @@ static snd_pcm_ioplug_callback_t android_aserver_callback = {
     .transfer = android_aserver_transfer,
     .drain = android_aserver_drain,
     .pointer = android_aserver_pointer,
+    .poll_revents = android_aserver_poll_revents,
 };
 
 static int android_aserver_connect() {
@@ -319,6 +432,8 @@ static int android_aserver_create(snd_pcm_t** pcmp, const char* name, snd_pcm_st
     if (!android_aserver) return -ENOMEM;
     
     android_aserver->buffer_size = 0;
+    android_aserver->doorbell_fd = -1;
+    android_aserver->notify_fd = -1;
     android_aserver->io.version = SND_PCM_IOPLUG_VERSION;
     android_aserver->io.name = "ALSA <-> Android AServer PCM Plugin";
     android_aserver->io.callback = &android_aserver_callback;
@@ -332,6 +447,9 @@ static int android_aserver_create(snd_pcm_t** pcmp, const char* name, snd_pcm_st
     char* use_shm_value = getenv("ANDROID_ASERVER_USE_SHM");
     android_aserver->use_shm = use_shm_value && (strcmp(use_shm_value, "true") == 0 || strcmp(use_shm_value, "1") == 0);
     
+    char* use_ring_value = getenv("ANDROID_ASERVER_USE_RING");
+    android_aserver->use_ring = use_ring_value && (strcmp(use_ring_value, "true") == 0 || strcmp(use_ring_value, "1") == 0);
+    
     res = snd_pcm_ioplug_create(&android_aserver->io, name, stream, mode);
     if (res < 0) goto error;
     
@@ -49,6 +49,7 @@ import androidx.drawerlayout.widget.DrawerLayout;
 import androidx.preference.PreferenceManager;
 
 import com.google.android.material.navigation.NavigationView;
+import com.winlator.cmod.alsaserver.ALSAClient;
 import com.winlator.cmod.container.Container;
 import com.winlator.cmod.container.ContainerManager;
 import com.winlator.cmod.container.Shortcut;
@@ -114,6 +115,7 @@ import com.winlator.cmod.xserver.ScreenInfo;
 import com.winlator.cmod.xserver.Window;
 import com.winlator.cmod.xserver.WindowManager;
 import com.winlator.cmod.xserver.XServer;
+import com.winlator.cmod.xserver.extensions.PresentExtension;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -493,6 +495,7 @@ public class XServerDisplayActivity extends AppCompatActivity implements Navigat
         inputControlsManager = new InputControlsManager(this);
         xServer = new XServer(new ScreenInfo(screenSize));
         xServer.setWinHandler(winHandler);
+        if (debugDialog != null) debugDialog.setXServer(xServer);
 
         boolean[] winStarted = {false};
 
@@ -1103,20 +1106,50 @@ public class XServerDisplayActivity extends AppCompatActivity implements Navigat
                         UnixSocketConfig.createSocket(rootPath, UnixSocketConfig.SYSVSHM_SERVER_PATH)
                 )
         );
-        environment.addComponent(
-                new XServerComponent(
-                        xServer,
-                        UnixSocketConfig.createSocket(rootPath, UnixSocketConfig.XSERVER_PATH)
-                )
+        XServerComponent xServerComponent = new XServerComponent(
+                xServer,
+                UnixSocketConfig.createSocket(rootPath, UnixSocketConfig.XSERVER_PATH)
         );
+        String x11WorkerThreads = container.getExtra("x11WorkerThreads", "0");
+        if (shortcut != null) x11WorkerThreads = shortcut.getExtra("x11WorkerThreads", x11WorkerThreads);
+        try {
+            xServerComponent.setWorkerThreads(Integer.parseInt(x11WorkerThreads));
+        }
+        catch (NumberFormatException e) {}
+        environment.addComponent(xServerComponent);
+
+        String presentSwapchainSize = container.getExtra("presentSwapchainSize", "3");
+        if (shortcut != null) presentSwapchainSize = shortcut.getExtra("presentSwapchainSize", presentSwapchainSize);
+        try {
+            PresentExtension presentExtension = xServer.getExtension(PresentExtension.MAJOR_OPCODE);
+            presentExtension.setSwapchainSize(Integer.parseInt(presentSwapchainSize));
+        }
+        catch (NumberFormatException e) {}
 
         // Audio driver logic
         if (audioDriver.equals("alsa")) {
             envVars.put("ANDROID_ALSA_SERVER", rootPath + UnixSocketConfig.ALSA_SERVER_PATH);
             envVars.put("ANDROID_ASERVER_USE_SHM", "true");
+            envVars.put("ANDROID_ASERVER_USE_RING", "true");
+            String alsaMixer = container.getExtra("alsaMixer", "false");
+            if (shortcut != null) alsaMixer = shortcut.getExtra("alsaMixer", alsaMixer);
+            String alsaAdaptiveBuffer = container.getExtra("alsaAdaptiveBuffer", "true");
+            if (shortcut != null) alsaAdaptiveBuffer = shortcut.getExtra("alsaAdaptiveBuffer", alsaAdaptiveBuffer);
+            ALSAClient.setAdaptiveBufferEnabled(parseBoolean(alsaAdaptiveBuffer));
+            String alsaBufferMin = container.getExtra("alsaBufferMin", "10");
+            String alsaBufferMax = container.getExtra("alsaBufferMax", "0");
+            if (shortcut != null) {
+                alsaBufferMin = shortcut.getExtra("alsaBufferMin", alsaBufferMin);
+                alsaBufferMax = shortcut.getExtra("alsaBufferMax", alsaBufferMax);
+            }
+            try {
+                ALSAClient.setBufferBounds(Integer.parseInt(alsaBufferMin), Integer.parseInt(alsaBufferMax));
+            }
+            catch (NumberFormatException e) {}
             environment.addComponent(
                     new ALSAServerComponent(
-                            UnixSocketConfig.createSocket(rootPath, UnixSocketConfig.ALSA_SERVER_PATH)
+                            UnixSocketConfig.createSocket(rootPath, UnixSocketConfig.ALSA_SERVER_PATH),
+                            parseBoolean(alsaMixer)
                     )
             );
         } else if (audioDriver.equals("pulseaudio")) {
@@ -1164,6 +1197,17 @@ public class XServerDisplayActivity extends AppCompatActivity implements Navigat
             renderer.setUnviewableWMClasses("explorer.exe");
         }
 
+        String renderScale = container.getExtra("renderScale", "1.0");
+        if (shortcut != null) renderScale = shortcut.getExtra("renderScale", renderScale);
+        try {
+            renderer.setRenderScale(Float.parseFloat(renderScale));
+        }
+        catch (NumberFormatException e) {}
+
+        String glDrawing = container.getExtra("x11GLDrawing", "false");
+        if (shortcut != null) glDrawing = shortcut.getExtra("x11GLDrawing", glDrawing);
+        renderer.getDrawCommandQueue().setEnabled(parseBoolean(glDrawing));
+
         xServer.setRenderer(renderer);
         rootView.addView(xServerView);
 
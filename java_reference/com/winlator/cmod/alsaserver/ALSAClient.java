@@ -1,9 +1,12 @@
 package com.winlator.cmod.alsaserver;
 
 import com.winlator.cmod.sysvshm.SysVSharedMemory;
+import com.winlator.cmod.xconnector.XConnectorEpoll;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Locale;
 
 public class ALSAClient {
     public enum DataType {
@@ -14,26 +17,73 @@ public class ALSAClient {
             this.byteCount = (byte)byteCount;
         }
     }
+    public static final int RING_HEADER_SIZE = 64;
+    private static final int RING_WAIT_TIMEOUT = 100;
+    private static final long TUNE_INTERVAL = 2000;
+    private static final ArrayList<ALSAClient> activeClients = new ArrayList<>();
+    private static boolean adaptiveBufferEnabled = true;
+    private static int minBufferMillis = 10;
+    private static int maxBufferMillis = 0;
     private DataType dataType = DataType.U8;
     private byte channelCount = 2;
     private int sampleRate = 0;
-    private int position;
+    private volatile int position;
     private int bufferSize;
     private int frameBytes;
     private ByteBuffer sharedBuffer;
-    private boolean playing = false;
+    private ByteBuffer ringBuffer;
+    private int doorbellFd = -1;
+    private int notifyFd = -1;
+    private Thread ringThread;
+    private volatile boolean ringRunning = false;
+    private volatile boolean playing = false;
+    private final Object ringLock = new Object();
     private long streamPtr = 0;
+    private final ALSAMixer mixer;
+    private ALSAMixer.Source mixerSource;
+    private float gain = 1.0f;
+    private int streamBufferSize;
+    private int framesPerBurst;
+    private int minStreamBufferSize;
+    private int maxStreamBufferSize;
+    private volatile int queuedFrames;
+    private volatile int underrunCount;
+    private volatile int lateWriteCount;
+    private int lastXRunCount;
+    private int windowMinQueuedFrames;
+    private boolean windowHadLateWrites;
+    private long windowStartTime;
 
     static {
         System.loadLibrary("winlator");
     }
 
+    public ALSAClient() {
+        this(null);
+    }
+
+    public ALSAClient(ALSAMixer mixer) {
+        this.mixer = mixer;
+    }
+
     public void release() {
+        stopRing();
+
         if (sharedBuffer != null) {
             SysVSharedMemory.unmapSHMSegment(sharedBuffer, sharedBuffer.capacity());
             sharedBuffer = null;
         }
 
+        if (mixerSource != null) {
+            mixerSource.setActive(false);
+            mixerSource.release();
+            mixerSource = null;
+        }
+
+        synchronized (activeClients) {
+            activeClients.remove(this);
+        }
+
         stop(streamPtr);
         close(streamPtr);
         playing = false;
@@ -47,33 +97,144 @@ public class ALSAClient {
 
         if (!isValidBufferSize()) return;
 
-        streamPtr = create(dataType.ordinal(), channelCount, sampleRate, bufferSize);
-        if (streamPtr > 0) start();
+        if (mixer != null) {
+            mixerSource = mixer.createSource(dataType, channelCount, sampleRate, bufferSize);
+            mixerSource.setGain(gain);
+        }
+        else {
+            streamPtr = create(dataType.ordinal(), channelCount, sampleRate, bufferSize);
+            if (streamPtr > 0) setupStreamBuffer();
+        }
+
+        if (isOpen()) {
+            queuedFrames = 0;
+            underrunCount = 0;
+            lateWriteCount = 0;
+            synchronized (activeClients) {
+                activeClients.add(this);
+            }
+            start();
+        }
+    }
+
+    private void setupStreamBuffer() {
+        framesPerBurst = Math.max(getFramesPerBurst(streamPtr), 1);
+        int capacity = getBufferCapacity(streamPtr);
+        maxStreamBufferSize = maxBufferMillis > 0 ? Math.min(millisToFrames(maxBufferMillis), bufferSize) : bufferSize;
+        if (capacity > 0) maxStreamBufferSize = Math.min(maxStreamBufferSize, capacity);
+        minStreamBufferSize = Math.min(Math.max(millisToFrames(minBufferMillis), framesPerBurst), maxStreamBufferSize);
+
+        lastXRunCount = getXRunCount(streamPtr);
+        resetTuneWindow();
+        streamBufferSize = setStreamBufferSize(streamPtr, maxStreamBufferSize);
+        if (streamBufferSize <= 0) streamBufferSize = maxStreamBufferSize;
+    }
+
+    private int millisToFrames(int millis) {
+        return (int)((long)millis * sampleRate / 1000);
+    }
+
+    private void resetTuneWindow() {
+        windowMinQueuedFrames = Integer.MAX_VALUE;
+        windowHadLateWrites = false;
+        windowStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Grows the stream buffer by one burst as soon as the device reports an underrun and shrinks it once a
+     * whole interval went by without underruns or late writes, removing the headroom that was never used
+     * minus two bursts. A write is late when the stream had less than one burst queued when it arrived.
+     */
+    private void tuneStreamBuffer(int queuedBeforeWrite) {
+        int xRunCount = getXRunCount(streamPtr);
+        queuedFrames = getFramesQueued(streamPtr);
+        if (playing && queuedBeforeWrite < framesPerBurst) {
+            lateWriteCount++;
+            windowHadLateWrites = true;
+        }
+        windowMinQueuedFrames = Math.min(windowMinQueuedFrames, queuedBeforeWrite);
+
+        if (xRunCount > lastXRunCount) {
+            underrunCount += xRunCount - lastXRunCount;
+            lastXRunCount = xRunCount;
+            if (adaptiveBufferEnabled && streamBufferSize < maxStreamBufferSize) {
+                resizeStreamBuffer(streamBufferSize + framesPerBurst);
+            }
+            resetTuneWindow();
+        }
+        else if (System.currentTimeMillis() - windowStartTime >= TUNE_INTERVAL) {
+            int headroom = windowMinQueuedFrames - 2 * framesPerBurst;
+            if (adaptiveBufferEnabled && !windowHadLateWrites && headroom >= framesPerBurst && streamBufferSize > minStreamBufferSize) {
+                headroom = Math.min(headroom - headroom % framesPerBurst, streamBufferSize / 2);
+                resizeStreamBuffer(streamBufferSize - headroom);
+            }
+            resetTuneWindow();
+        }
+    }
+
+    private void resizeStreamBuffer(int size) {
+        size = Math.max(minStreamBufferSize, Math.min(size, maxStreamBufferSize));
+        int actualSize = setStreamBufferSize(streamPtr, size);
+        if (actualSize > 0) streamBufferSize = actualSize;
+    }
+
+    private boolean isOpen() {
+        return streamPtr > 0 || mixerSource != null;
     }
 
     public void start() {
-        if (streamPtr > 0 && !playing) {
-            start(streamPtr);
-            playing = true;
+        if (isOpen() && !playing) {
+            if (mixerSource != null) mixerSource.setActive(true);
+            else start(streamPtr);
+            synchronized (ringLock) {
+                playing = true;
+                ringLock.notifyAll();
+            }
         }
     }
 
+    // The ring thread writes while holding ringLock, taking it guarantees that no frame reaches the
+    // stream once playing is cleared
     public void stop() {
-        if (streamPtr > 0 && playing) {
-            stop(streamPtr);
-            playing = false;
+        synchronized (ringLock) {
+            if (isOpen() && playing) {
+                playing = false;
+                if (mixerSource != null) mixerSource.setActive(false);
+                else stop(streamPtr);
+            }
         }
     }
 
     public void pause() {
-        if (streamPtr > 0) {
-            pause(streamPtr);
-            playing = false;
+        synchronized (ringLock) {
+            if (isOpen()) {
+                playing = false;
+                if (mixerSource != null) mixerSource.setActive(false);
+                else pause(streamPtr);
+            }
         }
     }
 
     public void drain() {
-        if (streamPtr > 0) flush(streamPtr);
+        synchronized (ringLock) {
+            if (ringRunning) position += discardFrames(ringBuffer, bufferSize, notifyFd);
+            if (mixerSource != null) mixerSource.flush();
+            else if (streamPtr > 0) flush(streamPtr);
+        }
+    }
+
+    private int writeFrames(ByteBuffer buffer, int offset, int numFrames) {
+        if (mixerSource != null) {
+            int framesWritten = mixerSource.write(buffer, offset, numFrames);
+            queuedFrames = mixerSource.getQueuedFrames();
+            underrunCount = mixerSource.getUnderrunCount();
+            return framesWritten;
+        }
+
+        int queuedBeforeWrite = getFramesQueued(streamPtr);
+        int framesWritten = write(streamPtr, buffer, offset, numFrames);
+        tuneStreamBuffer(queuedBeforeWrite);
+        return framesWritten;
     }
 
     public void writeDataToStream(ByteBuffer data) {
@@ -86,16 +247,191 @@ public class ALSAClient {
 
         if (playing) {
             int numFrames = data.limit() / frameBytes;
-            int framesWritten = write(streamPtr, data, numFrames);
+            int framesWritten = writeFrames(data, 0, numFrames);
             if (framesWritten > 0) position += framesWritten;
             data.rewind();
         }
     }
 
+    /**
+     * Switches the client to the ring transport, the shared segment holds a RING_HEADER_SIZE header followed
+     * by bufferSize frames. The client publishes frames by advancing the head index and rings the doorbell
+     * eventfd if the server is waiting, the server consumes them on its own thread, advances the tail index
+     * (the hardware pointer seen by the client) and signals the notify eventfd. Returns false if the
+     * eventfds cannot be created, the caller then falls back to WRITE requests.
+     */
+    public boolean startRing(ByteBuffer ringBuffer) {
+        stopRing();
+        if (!isOpen()) return false;
+
+        doorbellFd = createEventFd();
+        notifyFd = createEventFd();
+        if (doorbellFd < 0 || notifyFd < 0) {
+            closeRingFds();
+            return false;
+        }
+
+        this.ringBuffer = ringBuffer;
+        ringRunning = true;
+        ringThread = new Thread(this::consumeRing, "ALSAClientRing");
+        ringThread.setPriority(Thread.MAX_PRIORITY);
+        ringThread.start();
+        return true;
+    }
+
+    private void stopRing() {
+        if (ringThread != null) {
+            synchronized (ringLock) {
+                ringRunning = false;
+                ringLock.notifyAll();
+            }
+            signalEventFd(doorbellFd);
+            while (ringThread.isAlive()) {
+                try {
+                    ringThread.join();
+                }
+                catch (InterruptedException e) {}
+            }
+            ringThread = null;
+        }
+
+        closeRingFds();
+        if (ringBuffer != null) {
+            SysVSharedMemory.unmapSHMSegment(ringBuffer, ringBuffer.capacity());
+            ringBuffer = null;
+        }
+    }
+
+    private void closeRingFds() {
+        if (doorbellFd >= 0) XConnectorEpoll.closeFd(doorbellFd);
+        if (notifyFd >= 0) XConnectorEpoll.closeFd(notifyFd);
+        doorbellFd = -1;
+        notifyFd = -1;
+    }
+
+    private void consumeRing() {
+        while (ringRunning) {
+            synchronized (ringLock) {
+                while (ringRunning && !playing) {
+                    try {
+                        ringLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            if (waitForFrames(ringBuffer, bufferSize, doorbellFd, RING_WAIT_TIMEOUT) <= 0) continue;
+
+            synchronized (ringLock) {
+                // The ring may have been drained or the stream stopped while waiting
+                int numFrames = getRingFrames(ringBuffer, bufferSize);
+                if (numFrames <= 0 || !playing || !ringRunning) continue;
+
+                int index = getRingTail(ringBuffer) % bufferSize;
+                numFrames = Math.min(numFrames, bufferSize - index);
+                int framesWritten = writeFrames(ringBuffer, RING_HEADER_SIZE + index * frameBytes, numFrames);
+                // Frames the stream refuses are dropped so that the client is never stalled on a broken stream
+                if (framesWritten < 0) framesWritten = numFrames;
+                if (framesWritten > 0) {
+                    position += framesWritten;
+                    releaseFrames(ringBuffer, bufferSize, framesWritten, notifyFd);
+                }
+            }
+        }
+    }
+
+    public boolean isRingEnabled() {
+        return ringRunning;
+    }
+
+    public int getDoorbellFd() {
+        return doorbellFd;
+    }
+
+    public int getNotifyFd() {
+        return notifyFd;
+    }
+
     public int pointer() {
         return position;
     }
 
+    public float getGain() {
+        return gain;
+    }
+
+    public void setGain(float gain) {
+        this.gain = gain;
+        if (mixerSource != null) mixerSource.setGain(gain);
+    }
+
+    public int getUnderrunCount() {
+        return underrunCount;
+    }
+
+    public int getLateWriteCount() {
+        return lateWriteCount;
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    public int getStreamBufferSize() {
+        return mixerSource != null ? bufferSize : streamBufferSize;
+    }
+
+    public static void setAdaptiveBufferEnabled(boolean adaptiveBufferEnabled) {
+        ALSAClient.adaptiveBufferEnabled = adaptiveBufferEnabled;
+    }
+
+    /**
+     * Bounds of the adaptive stream buffer for the streams prepared afterwards, a maxMillis of 0 means the
+     * buffer size requested by the client. The minimum is never lower than one burst.
+     */
+    public static void setBufferBounds(int minMillis, int maxMillis) {
+        minBufferMillis = Math.max(minMillis, 0);
+        maxBufferMillis = Math.max(maxMillis, 0);
+    }
+
+    /** One line per active stream, for the debug log. */
+    public static String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (activeClients) {
+            for (ALSAClient client : activeClients) {
+                sb.append(String.format(Locale.ENGLISH, "ALSA: %s %dch %dHz buffer=%dms (%d frames) queued=%dms underruns=%d late writes=%d%s\n",
+                    client.dataType, client.channelCount, client.sampleRate, client.framesToMillis(client.getStreamBufferSize()),
+                    client.getStreamBufferSize(), client.framesToMillis(client.queuedFrames), client.underrunCount, client.lateWriteCount,
+                    client.mixerSource != null ? " mixed" : ""));
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Aggregate of the active streams for the FPS overlay, null when there is no active stream. */
+    public static String getOverlaySummary() {
+        int streams = 0;
+        int maxBufferMillis = 0;
+        int underruns = 0;
+        int lateWrites = 0;
+        synchronized (activeClients) {
+            for (ALSAClient client : activeClients) {
+                streams++;
+                maxBufferMillis = Math.max(maxBufferMillis, client.framesToMillis(client.getStreamBufferSize()));
+                underruns += client.underrunCount;
+                lateWrites += client.lateWriteCount;
+            }
+        }
+        if (streams == 0) return null;
+        return String.format(Locale.ENGLISH, "%d x %dms, %d xruns, %d late", streams, maxBufferMillis, underruns, lateWrites);
+    }
+
+    private int framesToMillis(int frames) {
+        return sampleRate > 0 ? (int)((long)frames * 1000 / sampleRate) : 0;
+    }
+
     public void setDataType(DataType dataType) {
         this.dataType = dataType;
     }
@@ -145,12 +481,12 @@ public class ALSAClient {
     }
 
     public int computeLatencyMillis() {
-        return (int)(((float)bufferSize / sampleRate) * 1000);
+        return (int)(((float)(isOpen() ? getStreamBufferSize() : bufferSize) / sampleRate) * 1000);
     }
 
     private native long create(int format, byte channelCount, int sampleRate, int bufferSize);
 
-    private native int write(long streamPtr, ByteBuffer buffer, int numFrames);
+    private native int write(long streamPtr, ByteBuffer buffer, int offset, int numFrames);
 
     private native void start(long streamPtr);
 
@@ -161,4 +497,28 @@ public class ALSAClient {
     private native void flush(long streamPtr);
 
     private native void close(long streamPtr);
+
+    private native int getXRunCount(long streamPtr);
+
+    private native int getFramesQueued(long streamPtr);
+
+    private native int getFramesPerBurst(long streamPtr);
+
+    private native int getBufferCapacity(long streamPtr);
+
+    private native int setStreamBufferSize(long streamPtr, int bufferSize);
+
+    private static native int createEventFd();
+
+    private static native void signalEventFd(int eventFd);
+
+    private static native int getRingFrames(ByteBuffer ringBuffer, int bufferSize);
+
+    private static native int discardFrames(ByteBuffer ringBuffer, int bufferSize, int eventFd);
+
+    private static native int waitForFrames(ByteBuffer ringBuffer, int bufferSize, int eventFd, int timeout);
+
+    private static native int getRingTail(ByteBuffer ringBuffer);
+
+    private static native void releaseFrames(ByteBuffer ringBuffer, int bufferSize, int numFrames, int eventFd);
 }
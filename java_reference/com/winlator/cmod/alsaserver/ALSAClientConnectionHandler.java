@@ -4,10 +4,20 @@ import com.winlator.cmod.xconnector.Client;
 import com.winlator.cmod.xconnector.ConnectionHandler;
 
 public class ALSAClientConnectionHandler implements ConnectionHandler {
+    private final ALSAMixer mixer;
+
+    public ALSAClientConnectionHandler() {
+        this(null);
+    }
+
+    public ALSAClientConnectionHandler(ALSAMixer mixer) {
+        this.mixer = mixer;
+    }
+
     @Override
     public void handleNewConnection(Client client) {
         client.createIOStreams();
-        client.setTag(new ALSAClient());
+        client.setTag(new ALSAClient(mixer));
     }
 
     @Override
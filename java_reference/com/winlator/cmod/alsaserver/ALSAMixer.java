@@ -0,0 +1,341 @@
+package com.winlator.cmod.alsaserver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Mixes the output of every ALSA client into a single float stereo stream opened at the device native
+ * sample rate. Clients convert and resample their data to the device rate when they write it into the
+ * ring of their Source, the mixer thread sums one burst of every active source per iteration and the
+ * blocking write of the output stream paces the loop. Nothing is allocated once a source is created.
+ */
+public class ALSAMixer {
+    public static final byte CHANNEL_COUNT = 2;
+    private static final int DEFAULT_SAMPLE_RATE = 48000;
+    private static final int DEFAULT_PERIOD_SIZE = 192;
+    private static final int MAX_PERIOD_SIZE = 2048;
+    private static final int WRITE_TIMEOUT = 100;
+    private volatile Source[] sources = new Source[0];
+    private long streamPtr = 0;
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+    private int periodSize = DEFAULT_PERIOD_SIZE;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    static {
+        System.loadLibrary("winlator");
+    }
+
+    public class Source {
+        private final float[] samples;
+        private final int capacity;
+        private final ALSAClient.DataType dataType;
+        private final byte channelCount;
+        private final double step;
+        private int readIndex = 0;
+        private int available = 0;
+        private int flushSerial = 0;
+        // Resampler state, only touched by the writer thread
+        private int writerFlushSerial = 0;
+        private double phase = 0;
+        private float lastLeft = 0;
+        private float lastRight = 0;
+        private volatile boolean active = false;
+        private boolean starved = true;
+        private volatile float gain = 1.0f;
+        private volatile int underrunCount = 0;
+
+        private Source(ALSAClient.DataType dataType, byte channelCount, int sampleRate, int bufferSize) {
+            this.dataType = dataType;
+            this.channelCount = channelCount;
+            step = (double)sampleRate / ALSAMixer.this.sampleRate;
+            capacity = (int)Math.ceil(bufferSize / step) + periodSize + 2;
+            samples = new float[capacity * CHANNEL_COUNT];
+        }
+
+        /**
+         * Converts and resamples numFrames frames starting at offset into the ring, blocks while the ring is
+         * full and returns the number of frames consumed, which is less than numFrames on timeout.
+         */
+        public int write(ByteBuffer data, int offset, int numFrames) {
+            if (dataType == ALSAClient.DataType.S16BE || dataType == ALSAClient.DataType.FLOATBE) {
+                data.order(ByteOrder.BIG_ENDIAN);
+            }
+            else data.order(ByteOrder.LITTLE_ENDIAN);
+
+            int frameBytes = channelCount * dataType.byteCount;
+            int framesWritten = 0;
+            long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+
+            while (framesWritten < numFrames) {
+                int writeIndex;
+                int maxFrames;
+                synchronized (this) {
+                    // An input frame produces at most 1 / step + 1 output frames
+                    while ((maxFrames = (int)((capacity - available - 1) * step)) <= 0) {
+                        long timeout = deadline - System.currentTimeMillis();
+                        if (timeout <= 0 || !running) return framesWritten;
+                        try {
+                            wait(timeout);
+                        }
+                        catch (InterruptedException e) {
+                            return framesWritten;
+                        }
+                    }
+                    if (writerFlushSerial != flushSerial) {
+                        writerFlushSerial = flushSerial;
+                        phase = 0;
+                        lastLeft = 0;
+                        lastRight = 0;
+                    }
+                    writeIndex = (readIndex + available) % capacity;
+                }
+
+                int count = Math.min(numFrames - framesWritten, maxFrames);
+                int produced = 0;
+                int position = offset + framesWritten * frameBytes;
+                for (int i = 0; i < count; i++, position += frameBytes) {
+                    float left = readSample(data, position);
+                    float right = channelCount > 1 ? readSample(data, position + dataType.byteCount) : left;
+
+                    while (phase < 1.0) {
+                        float t = (float)phase;
+                        samples[writeIndex * CHANNEL_COUNT] = lastLeft + (left - lastLeft) * t;
+                        samples[writeIndex * CHANNEL_COUNT + 1] = lastRight + (right - lastRight) * t;
+                        if (++writeIndex == capacity) writeIndex = 0;
+                        produced++;
+                        phase += step;
+                    }
+                    phase -= 1.0;
+                    lastLeft = left;
+                    lastRight = right;
+                }
+
+                synchronized (this) {
+                    // Frames converted while the source was flushed are dropped along with the rest
+                    if (writerFlushSerial == flushSerial) available += produced;
+                }
+                framesWritten += count;
+            }
+            return framesWritten;
+        }
+
+        private float readSample(ByteBuffer data, int position) {
+            switch (dataType) {
+                case U8:
+                    return ((data.get(position) & 0xff) - 128) / 128.0f;
+                case S16LE:
+                case S16BE:
+                    return data.getShort(position) / 32768.0f;
+                default:
+                    return data.getFloat(position);
+            }
+        }
+
+        private synchronized void mixInto(float[] mixBuffer, int numFrames) {
+            if (!active) return;
+
+            int count = Math.min(available, numFrames);
+            if (count < numFrames) {
+                if (!starved) underrunCount++;
+                starved = true;
+            }
+            else starved = false;
+
+            float gain = this.gain;
+            for (int i = 0, j = readIndex * CHANNEL_COUNT; i < count * CHANNEL_COUNT; i += CHANNEL_COUNT) {
+                mixBuffer[i] += samples[j] * gain;
+                mixBuffer[i+1] += samples[j+1] * gain;
+                j += CHANNEL_COUNT;
+                if (j == samples.length) j = 0;
+            }
+
+            readIndex = (readIndex + count) % capacity;
+            available -= count;
+            if (count > 0) notifyAll();
+        }
+
+        public void setActive(boolean active) {
+            synchronized (this) {
+                this.active = active;
+                starved = true;
+                notifyAll();
+            }
+            if (active) wakeUp();
+        }
+
+        /**
+         * Discards the queued frames, the writer resets its resampler state before converting more data.
+         */
+        public synchronized void flush() {
+            readIndex = 0;
+            available = 0;
+            flushSerial++;
+            notifyAll();
+        }
+
+        private boolean isActive() {
+            return active;
+        }
+
+        public float getGain() {
+            return gain;
+        }
+
+        public void setGain(float gain) {
+            this.gain = Math.max(0.0f, gain);
+        }
+
+        public int getUnderrunCount() {
+            return underrunCount;
+        }
+
+        /** Returns the frames waiting in the ring, in source frames. */
+        public synchronized int getQueuedFrames() {
+            return (int)(available * step);
+        }
+
+        public void release() {
+            removeSource(this);
+        }
+    }
+
+    public synchronized Source createSource(ALSAClient.DataType dataType, byte channelCount, int sampleRate, int bufferSize) {
+        if (!running) start();
+        Source source = new Source(dataType, channelCount, sampleRate, bufferSize);
+        Source[] newSources = Arrays.copyOf(sources, sources.length + 1);
+        newSources[sources.length] = source;
+        sources = newSources;
+        return source;
+    }
+
+    private synchronized void removeSource(Source source) {
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == source) {
+                Source[] newSources = new Source[sources.length - 1];
+                System.arraycopy(sources, 0, newSources, 0, i);
+                System.arraycopy(sources, i + 1, newSources, i, sources.length - i - 1);
+                sources = newSources;
+                break;
+            }
+        }
+        synchronized (source) {
+            source.notifyAll();
+        }
+    }
+
+    private void start() {
+        streamPtr = create(MAX_PERIOD_SIZE);
+        if (streamPtr > 0) {
+            sampleRate = getSampleRate(streamPtr);
+            if (sampleRate <= 0) sampleRate = DEFAULT_SAMPLE_RATE;
+            int framesPerBurst = getFramesPerBurst(streamPtr);
+            periodSize = framesPerBurst > 0 ? Math.min(framesPerBurst, MAX_PERIOD_SIZE) : DEFAULT_PERIOD_SIZE;
+            start(streamPtr);
+        }
+
+        running = true;
+        thread = new Thread(this::mixLoop, "ALSAMixer");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void release() {
+        Thread thread;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+            notifyAll();
+        }
+
+        for (Source source : sources) {
+            synchronized (source) {
+                source.notifyAll();
+            }
+        }
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {}
+        }
+
+        stop(streamPtr);
+        close(streamPtr);
+        streamPtr = 0;
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized boolean waitForActiveSources() {
+        while (running) {
+            for (Source source : sources) {
+                if (source.isActive()) return true;
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void mixLoop() {
+        float[] mixBuffer = new float[periodSize * CHANNEL_COUNT];
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(mixBuffer.length * 4).order(ByteOrder.nativeOrder());
+        FloatBuffer outputSamples = outputBuffer.asFloatBuffer();
+
+        while (waitForActiveSources()) {
+            Arrays.fill(mixBuffer, 0);
+            for (Source source : sources) source.mixInto(mixBuffer, periodSize);
+
+            for (int i = 0; i < mixBuffer.length; i++) {
+                outputSamples.put(i, Math.max(-1.0f, Math.min(mixBuffer[i], 1.0f)));
+            }
+
+            if (streamPtr == 0 || write(streamPtr, outputBuffer, periodSize) < 0) {
+                try {
+                    Thread.sleep(periodSize * 1000L / sampleRate);
+                }
+                catch (InterruptedException e) {}
+            }
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSourceCount() {
+        return sources.length;
+    }
+
+    public int getUnderrunCount() {
+        int underrunCount = 0;
+        for (Source source : sources) underrunCount += source.getUnderrunCount();
+        return underrunCount;
+    }
+
+    private native long create(int bufferSize);
+
+    private native int getSampleRate(long streamPtr);
+
+    private native int getFramesPerBurst(long streamPtr);
+
+    private native int write(long streamPtr, ByteBuffer buffer, int numFrames);
+
+    private native void start(long streamPtr);
+
+    private native void stop(long streamPtr);
+
+    private native void close(long streamPtr);
+}
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class ALSARequestHandler implements RequestHandler {
+    private static final byte PREPARE_FLAG_RING = 1<<1;
     private int maxSHMemoryId = 0;
 
     @Override
@@ -44,9 +45,11 @@ public class ALSARequestHandler implements RequestHandler {
                 alsaClient.setDataType(ALSAClient.DataType.values()[inputStream.readByte()]);
                 alsaClient.setSampleRate(inputStream.readInt());
                 alsaClient.setBufferSize(inputStream.readInt());
+                byte flags = requestLength >= 11 ? inputStream.readByte() : 0;
+                if (requestLength > 11) inputStream.skip(requestLength - 11);
                 alsaClient.prepare();
 
-                createSharedMemory(alsaClient, outputStream);
+                createSharedMemory(alsaClient, outputStream, (flags & PREPARE_FLAG_RING) != 0);
                 break;
             case RequestCodes.WRITE:
                 ByteBuffer buffer = alsaClient.getSharedBuffer();
@@ -71,18 +74,41 @@ public class ALSARequestHandler implements RequestHandler {
         return true;
     }
 
-    private void createSharedMemory(ALSAClient alsaClient, XOutputStream outputStream) throws IOException {
+    private void createSharedMemory(ALSAClient alsaClient, XOutputStream outputStream, boolean ring) throws IOException {
         int size = alsaClient.getBufferSizeInBytes();
+        if (ring) size += ALSAClient.RING_HEADER_SIZE;
         int fd = SysVSharedMemory.createMemoryFd("alsa-shm"+(++maxSHMemoryId), size);
+        boolean ringEnabled = false;
 
         if (fd >= 0) {
             ByteBuffer buffer = SysVSharedMemory.mapSHMSegment(fd, size, 0, true);
-            if (buffer != null) alsaClient.setSharedBuffer(buffer);
+            if (buffer != null) {
+                if (ring) {
+                    ringEnabled = alsaClient.startRing(buffer);
+                    if (!ringEnabled) SysVSharedMemory.unmapSHMSegment(buffer, size);
+                }
+                else alsaClient.setSharedBuffer(buffer);
+            }
         }
 
-        try (XStreamLock lock = outputStream.lock()) {
-            outputStream.writeByte((byte)0);
-            outputStream.setAncillaryFd(fd);
+        try {
+            // The ancillary fd is flushed when the lock is closed, so each fd goes in its own message
+            try (XStreamLock lock = outputStream.lock()) {
+                outputStream.writeByte((byte)(ringEnabled ? 1 : 0));
+                outputStream.setAncillaryFd(ringEnabled || !ring ? fd : -1);
+            }
+
+            if (ringEnabled) {
+                try (XStreamLock lock = outputStream.lock()) {
+                    outputStream.writeByte((byte)0);
+                    outputStream.setAncillaryFd(alsaClient.getDoorbellFd());
+                }
+
+                try (XStreamLock lock = outputStream.lock()) {
+                    outputStream.writeByte((byte)0);
+                    outputStream.setAncillaryFd(alsaClient.getNotifyFd());
+                }
+            }
         }
         finally {
             if (fd >= 0) XConnectorEpoll.closeFd(fd);
@@ -9,12 +9,15 @@ import android.widget.LinearLayout;
 import androidx.annotation.NonNull;
 
 import com.winlator.cmod.R;
+import com.winlator.cmod.alsaserver.ALSAClient;
 import com.winlator.cmod.core.AppUtils;
 import com.winlator.cmod.core.Callback;
 import com.winlator.cmod.core.UnitUtils;
 import com.winlator.cmod.widget.LogView;
+import com.winlator.cmod.xserver.XServer;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 
@@ -22,6 +25,9 @@ public class DebugDialog extends ContentDialog implements Callback<String> {
     private final LogView logView;
     private static boolean paused = false;
     private BufferedWriter writer;
+    private File logFile;
+    private XServer xServer;
+    private final View toolbarView;
 
     public DebugDialog(@NonNull Context context) {
         super(context, R.layout.debug_dialog);
@@ -36,21 +42,66 @@ public class DebugDialog extends ContentDialog implements Callback<String> {
         LinearLayout llBottomBarPanel = findViewById(R.id.LLBottomBarPanel);
         llBottomBarPanel.setVisibility(View.VISIBLE);
 
-        View toolbarView = LayoutInflater.from(context).inflate(R.layout.debug_toolbar, llBottomBarPanel, false);
+        toolbarView = LayoutInflater.from(context).inflate(R.layout.debug_toolbar, llBottomBarPanel, false);
         toolbarView.findViewById(R.id.BTClear).setOnClickListener((v) -> logView.clear());
         toolbarView.findViewById(R.id.BTPause).setOnClickListener((v) -> {
             setPaused(!paused);
             ((ImageButton)v).setImageResource(getPaused() ? R.drawable.icon_play : R.drawable.icon_pause);
         });
+        toolbarView.findViewById(R.id.BTRequestMetrics).setOnClickListener((v) -> toggleRequestMetrics());
         llBottomBarPanel.addView(toolbarView);
         try {
-            writer = new BufferedWriter(new FileWriter(logView.getLogFile(context)));
+            logFile = logView.getLogFile(context);
+            writer = new BufferedWriter(new FileWriter(logFile));
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public void setXServer(XServer xServer) {
+        this.xServer = xServer;
+        toolbarView.findViewById(R.id.BTRequestMetrics).setVisibility(xServer != null ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * The first press starts recording X request metrics and effect pass GPU times and turns on GL error checks, the
+     * next ones print them to the log and dump them next to the log file.
+     */
+    private void toggleRequestMetrics() {
+        if (xServer == null) return;
+        if (!xServer.isRequestMetricsEnabled()) {
+            xServer.lockMetrics.setEnabled(true);
+            xServer.setRequestMetricsEnabled(true);
+            if (xServer.getRenderer() != null) {
+                xServer.getRenderer().getEffectComposer().setGPUTimingEnabled(true);
+                xServer.getRenderer().setDebugEnabled(true);
+            }
+            call("X request metrics enabled");
+            return;
+        }
+
+        String summary = xServer.getRequestMetricsSummary();
+        for (String line : summary.split("\n")) call(line);
+        if (xServer.getRenderer() != null) {
+            for (String line : xServer.getRenderer().getStatsSummary().split("\n")) call(line);
+        }
+        if (xServer.getSHMSegmentManager() != null) call(xServer.getSHMSegmentManager().getStatsSummary().trim());
+        String audioSummary = ALSAClient.getStatsSummary();
+        if (!audioSummary.isEmpty()) {
+            for (String line : audioSummary.split("\n")) call(line);
+        }
+        try {
+            String name = logFile.getName().replaceFirst("\\.txt$", "");
+            File file = new File(logFile.getParentFile(), name + "_requests.txt");
+            xServer.dumpRequestMetrics(file);
+            call("X request metrics saved to " + file.getPath());
+        }
+        catch (IOException e) {
+            call("Failed to save X request metrics: " + e.getMessage());
+        }
+    }
+
     @Override
     public void call(final String line) {
         if (!getPaused()) logView.append(line+"\n");
@@ -0,0 +1,477 @@
+package com.winlator.cmod.renderer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.winlator.cmod.renderer.material.GCFunctionMaterial;
+import com.winlator.cmod.xserver.Drawable;
+import com.winlator.cmod.xserver.XLock;
+import com.winlator.cmod.xserver.XServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Records core drawing requests targeting GPUImages (fills, copies and GC function blends) and executes
+ * them on the GL thread instead of looping over the mapped buffer on the CPU. Commands run in recording
+ * order before the next frame is drawn, any CPU access to an image with pending commands must go through
+ * sync() first. Requests the queue cannot take (disabled, image not usable as a render target, source
+ * outside of the queue) return false and are drawn by the CPU path. Commands are recorded and executed
+ * under the drawable manager lock (exclusive on the X server side, shared on the GL thread), so sync()
+ * never waits for the GL thread: commands not run yet are run on the CPU right away by the caller.
+ */
+public class DrawCommandQueue {
+    private static final byte FILL_RECT = 0;
+    private static final byte COPY_AREA = 1;
+    private static final int FUNCTION_COPY = 3;
+    private static final int MAX_PENDING_COMMANDS = 1024;
+    static final byte RENDER_TARGET_UNKNOWN = 0;
+    static final byte RENDER_TARGET_CHECKING = 1;
+    static final byte RENDER_TARGET_SUPPORTED = 2;
+    static final byte RENDER_TARGET_UNSUPPORTED = 3;
+    private final GLRenderer renderer;
+    private ArrayDeque<Command> commands = new ArrayDeque<>();
+    private ArrayDeque<Command> executingCommands = new ArrayDeque<>();
+    private final ArrayDeque<Command> freeCommands = new ArrayDeque<>();
+    private final VertexAttribute quadVertices = new VertexAttribute("position", 2);
+    private final GCFunctionMaterial material = new GCFunctionMaterial();
+    private final Runnable executeRunnable = this::execute;
+    private final int[] tmpInt = new int[4];
+    private final int[] savedViewport = new int[4];
+    private boolean enabled = false;
+    private volatile boolean supported = false;
+    private boolean executePosted = false;
+    private long recordedSequence = 0;
+    private long completedSequence = 0;
+    private volatile Thread glThread;
+    private int framebuffer = 0;
+    private final int[] tempTextures = new int[2];
+    private int tempTextureWidth = 0;
+    private int tempTextureHeight = 0;
+    private long executedCommands = 0;
+    private long fallbacks = 0;
+    private long syncs = 0;
+    private long cpuCommands = 0;
+    private long syncTime = 0;
+
+    private static class Command {
+        private byte type;
+        private GPUImage src;
+        private GPUImage dst;
+        private short targetWidth;
+        private short targetHeight;
+        private short srcX;
+        private short srcY;
+        private short dstX;
+        private short dstY;
+        private short width;
+        private short height;
+        private int color;
+        private int function;
+    }
+
+    public DrawCommandQueue(GLRenderer renderer) {
+        this.renderer = renderer;
+        quadVertices.put(new float[]{
+            0.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 0.0f,
+            1.0f, 1.0f
+        });
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Images already holding pending commands keep being synchronized after the queue is disabled.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean fillRect(GPUImage dst, short targetWidth, short targetHeight, short x, short y, short width, short height, int color) {
+        if (width <= 0 || height <= 0) return true;
+        synchronized (this) {
+            if (!canRenderTo(dst)) return false;
+            Command command = obtainCommand(FILL_RECT, null, dst, targetWidth, targetHeight);
+            command.dstX = x;
+            command.dstY = y;
+            command.width = width;
+            command.height = height;
+            command.color = color;
+            addCommand(command);
+        }
+        return true;
+    }
+
+    /**
+     * The source rectangle must lie within the source image, function is the ordinal of the GC function.
+     */
+    public boolean copyArea(GPUImage src, GPUImage dst, short targetWidth, short targetHeight, short srcX, short srcY, short dstX, short dstY, short width, short height, int function) {
+        if (width <= 0 || height <= 0) return true;
+        synchronized (this) {
+            if (src.getCommandQueue() != this || src.getVirtualData() == null || !canRenderTo(dst)) return false;
+            Command command = obtainCommand(COPY_AREA, src, dst, targetWidth, targetHeight);
+            command.srcX = srcX;
+            command.srcY = srcY;
+            command.dstX = dstX;
+            command.dstY = dstY;
+            command.width = width;
+            command.height = height;
+            command.function = function;
+            addCommand(command);
+            src.drawSequence = command.dst.drawSequence;
+        }
+        return true;
+    }
+
+    private boolean canRenderTo(GPUImage image) {
+        if (!enabled || !supported || image.getCommandQueue() != this || image.getVirtualData() == null) {
+            if (enabled) fallbacks++;
+            return false;
+        }
+
+        if (image.renderTargetState == RENDER_TARGET_UNKNOWN) {
+            image.renderTargetState = RENDER_TARGET_CHECKING;
+            renderer.xServerView.queueEvent(() -> checkRenderTarget(image));
+        }
+
+        if (image.renderTargetState != RENDER_TARGET_SUPPORTED) {
+            fallbacks++;
+            return false;
+        }
+        return true;
+    }
+
+    private Command obtainCommand(byte type, GPUImage src, GPUImage dst, short targetWidth, short targetHeight) {
+        Command command = freeCommands.poll();
+        if (command == null) command = new Command();
+        command.type = type;
+        command.src = src;
+        command.dst = dst;
+        command.targetWidth = targetWidth;
+        command.targetHeight = targetHeight;
+        return command;
+    }
+
+    private void addCommand(Command command) {
+        commands.add(command);
+        command.dst.drawSequence = ++recordedSequence;
+        if (commands.size() >= MAX_PENDING_COMMANDS) postExecute();
+    }
+
+    private void postExecute() {
+        if (executePosted) return;
+        executePosted = true;
+        renderer.xServerView.queueEvent(executeRunnable);
+    }
+
+    public synchronized boolean hasPendingCommands() {
+        return completedSequence < recordedSequence;
+    }
+
+    /**
+     * Completes the commands reading or writing the image, called before the image is accessed from the CPU
+     * with the drawable manager lock held exclusively. Off the GL thread the pending commands are run on the
+     * CPU, the GL thread cannot be running a batch meanwhile since it needs the lock in shared mode.
+     */
+    public void sync(GPUImage image) {
+        if (Thread.currentThread() == glThread) {
+            execute();
+            return;
+        }
+
+        synchronized (this) {
+            if (image.drawSequence <= completedSequence) return;
+
+            syncs++;
+            long startTime = System.nanoTime();
+            executeOnCPU();
+            syncTime += System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Runs the commands not yet taken by the GL thread on the CPU, called with the queue lock held.
+     */
+    private void executeOnCPU() {
+        int count = commands.size();
+        while (!commands.isEmpty()) {
+            Command command = commands.poll();
+            GPUImage src = command.src;
+            GPUImage dst = command.dst;
+            ByteBuffer dstData = dst.getVirtualData();
+            ByteBuffer srcData = src != null ? src.getVirtualData() : null;
+            if (dstData != null && (src == null || srcData != null)) {
+                executeOnCPU(command, srcData, src != null ? src.getStride() : 0, dstData, dst.getStride());
+            }
+            command.src = null;
+            command.dst = null;
+            freeCommands.add(command);
+        }
+        cpuCommands += count;
+        completedSequence = recordedSequence;
+    }
+
+    private static void executeOnCPU(Command command, ByteBuffer srcData, short srcStride, ByteBuffer dstData, short dstStride) {
+        if (command.type == FILL_RECT) {
+            Drawable.fillRect(command.dstX, command.dstY, command.width, command.height, command.color, dstStride, dstData);
+        }
+        else if (command.function == FUNCTION_COPY) {
+            Drawable.copyArea(command.srcX, command.srcY, command.dstX, command.dstY, command.width, command.height, srcStride, dstStride, srcData, dstData);
+        }
+        else Drawable.copyAreaOp(command.srcX, command.srcY, command.dstX, command.dstY, command.width, command.height, srcStride, dstStride, srcData, dstData, command.function);
+    }
+
+    /**
+     * Runs the pending commands, must be called on the GL thread.
+     */
+    public void execute() {
+        glThread = Thread.currentThread();
+        synchronized (this) {
+            executePosted = false;
+            if (commands.isEmpty()) return;
+        }
+
+        try (XLock lock = renderer.getXServer().lockShared(XServer.Lockable.DRAWABLE_MANAGER)) {
+            executeCommands();
+        }
+    }
+
+    private void executeCommands() {
+        long lastSequence;
+        synchronized (this) {
+            // Run on the CPU by an X server thread while the lock was being acquired
+            if (commands.isEmpty()) return;
+            ArrayDeque<Command> pendingCommands = commands;
+            commands = executingCommands;
+            executingCommands = pendingCommands;
+            lastSequence = recordedSequence;
+        }
+
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, savedViewport, 0);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, tmpInt, 0);
+        int savedFramebuffer = tmpInt[0];
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        int count = executingCommands.size();
+        for (Command command : executingCommands) executeCommand(command);
+        GLES20.glFinish();
+
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, savedFramebuffer);
+        GLES20.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+        synchronized (this) {
+            while (!executingCommands.isEmpty()) {
+                Command command = executingCommands.poll();
+                command.src = null;
+                command.dst = null;
+                freeCommands.add(command);
+            }
+            executedCommands += count;
+            completedSequence = Math.max(completedSequence, lastSequence);
+        }
+    }
+
+    private void executeCommand(Command command) {
+        GPUImage dst = command.dst;
+        GPUImage src = command.src;
+        // The image may have been destroyed while the command was pending
+        if (dst.getVirtualData() == null || (src != null && src.getVirtualData() == null)) return;
+        if (!bindRenderTarget(dst)) return;
+        GLES20.glViewport(0, 0, command.targetWidth, command.targetHeight);
+
+        if (command.type == FILL_RECT) {
+            int color = command.color;
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glScissor(command.dstX, command.dstY, command.width, command.height);
+            GLES20.glClearColor(((color >> 16) & 0xff) / 255.0f, ((color >> 8) & 0xff) / 255.0f, (color & 0xff) / 255.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+            return;
+        }
+
+        if (!src.isAllocated()) src.allocateTexture(command.width, command.height, null);
+        int srcTexture = src.getTextureId();
+        int srcOffsetX = command.srcX - command.dstX;
+        int srcOffsetY = command.srcY - command.dstY;
+        boolean readsDst = command.function != FUNCTION_COPY;
+
+        // Sampling the texture being rendered to is undefined, the source (when it is the destination)
+        // and the destination area are read from temporary copies instead
+        if (src == dst || readsDst) ensureTempTextures(command.width, command.height);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        if (src == dst) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tempTextures[0]);
+            GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, command.srcX, command.srcY, command.width, command.height);
+            srcTexture = tempTextures[0];
+            srcOffsetX = -command.dstX;
+            srcOffsetY = -command.dstY;
+        }
+        if (readsDst) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tempTextures[1]);
+            GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, command.dstX, command.dstY, command.width, command.height);
+        }
+
+        material.use();
+        GLES20.glUniform4f(material.rectLocation, command.dstX, command.dstY, command.width, command.height);
+        GLES20.glUniform2f(material.targetSizeLocation, command.targetWidth, command.targetHeight);
+        GLES30.glUniform2i(material.srcOffsetLocation, srcOffsetX, srcOffsetY);
+        GLES30.glUniform2i(material.dstOffsetLocation, -command.dstX, -command.dstY);
+        GLES20.glUniform1i(material.functionLocation, command.function);
+        GLES20.glUniform1i(material.srcTextureLocation, 0);
+        GLES20.glUniform1i(material.dstTextureLocation, 1);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, srcTexture);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, readsDst ? tempTextures[1] : 0);
+
+        quadVertices.bind(material.programId);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, quadVertices.count());
+        quadVertices.disable();
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    private boolean bindRenderTarget(GPUImage image) {
+        if (!image.isAllocated()) image.allocateTexture((short)1, (short)1, null);
+        if (framebuffer == 0) {
+            GLES20.glGenFramebuffers(1, tmpInt, 0);
+            framebuffer = tmpInt[0];
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, image.getTextureId(), 0);
+        return GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) == GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    private void checkRenderTarget(GPUImage image) {
+        if (image.getVirtualData() == null) return;
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, tmpInt, 0);
+        int savedFramebuffer = tmpInt[0];
+        boolean complete = bindRenderTarget(image);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, savedFramebuffer);
+        image.renderTargetState = complete ? RENDER_TARGET_SUPPORTED : RENDER_TARGET_UNSUPPORTED;
+    }
+
+    private void ensureTempTextures(int width, int height) {
+        if (tempTextures[0] != 0 && width <= tempTextureWidth && height <= tempTextureHeight) return;
+        if (tempTextures[0] != 0) GLES20.glDeleteTextures(tempTextures.length, tempTextures, 0);
+
+        tempTextureWidth = Math.max(width, tempTextureWidth);
+        tempTextureHeight = Math.max(height, tempTextureHeight);
+        GLES20.glGenTextures(tempTextures.length, tempTextures, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        for (int textureId : tempTextures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, tempTextureWidth, tempTextureHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Draws non-uniform content with fills, copies between and within images and GC functions on the GPU,
+     * runs the same commands through the CPU path on plain buffers and compares every pixel of both
+     * images, the queue stays unsupported if they differ. Called on the GL thread.
+     */
+    public void checkIsSupported() {
+        glThread = Thread.currentThread();
+        supported = false;
+        if (!GPUImage.isSupported()) return;
+
+        final short size = 16;
+        GPUImage src = new GPUImage(size, size);
+        GPUImage dst = new GPUImage(size, size);
+        if (src.getVirtualData() != null && dst.getVirtualData() != null) {
+            Command[] testCommands = {
+                createTestCommand(FILL_RECT, null, src, 0, 0, 0, 0, size, size, 0x123456),
+                createTestCommand(FILL_RECT, null, src, 0, 0, 2, 3, 5, 4, 0xa0b0c0),
+                createTestCommand(FILL_RECT, null, src, 0, 0, 11, 9, 3, 6, 0x5a6b7c),
+                createTestCommand(FILL_RECT, null, dst, 0, 0, 0, 0, size, size, 0x00ff00),
+                createTestCommand(FILL_RECT, null, dst, 0, 0, 9, 1, 4, 6, 0x0f0f0f),
+                createTestCommand(COPY_AREA, src, dst, 1, 2, 6, 8, 7, 5, FUNCTION_COPY),
+                createTestCommand(COPY_AREA, src, dst, 0, 1, 3, 0, 6, 6, 6),
+                createTestCommand(COPY_AREA, src, dst, 8, 8, 0, 10, 5, 5, 1),
+                createTestCommand(COPY_AREA, dst, dst, 0, 0, 10, 10, 4, 4, FUNCTION_COPY),
+                createTestCommand(COPY_AREA, dst, src, 9, 0, 1, 12, 6, 3, 7)
+            };
+
+            GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, savedViewport, 0);
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, tmpInt, 0);
+            int savedFramebuffer = tmpInt[0];
+            GLES20.glDisable(GLES20.GL_BLEND);
+
+            for (Command command : testCommands) {
+                command.targetWidth = size;
+                command.targetHeight = size;
+                executeCommand(command);
+            }
+            GLES20.glFinish();
+
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, savedFramebuffer);
+            GLES20.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+            ByteBuffer srcReference = ByteBuffer.allocateDirect(size * size * 4);
+            ByteBuffer dstReference = ByteBuffer.allocateDirect(size * size * 4);
+            for (Command command : testCommands) {
+                ByteBuffer srcData = command.src == src ? srcReference : dstReference;
+                executeOnCPU(command, srcData, size, command.dst == src ? srcReference : dstReference, size);
+            }
+
+            supported = hasSameContent(src, srcReference, size) && hasSameContent(dst, dstReference, size);
+        }
+        src.destroy();
+        dst.destroy();
+    }
+
+    private static Command createTestCommand(byte type, GPUImage src, GPUImage dst, int srcX, int srcY, int dstX, int dstY, int width, int height, int colorOrFunction) {
+        Command command = new Command();
+        command.type = type;
+        command.src = src;
+        command.dst = dst;
+        command.srcX = (short)srcX;
+        command.srcY = (short)srcY;
+        command.dstX = (short)dstX;
+        command.dstY = (short)dstY;
+        command.width = (short)width;
+        command.height = (short)height;
+        if (type == FILL_RECT) {
+            command.color = colorOrFunction;
+        }
+        else command.function = colorOrFunction;
+        return command;
+    }
+
+    private static boolean hasSameContent(GPUImage image, ByteBuffer reference, short size) {
+        ByteBuffer data = image.getVirtualData();
+        int rowLength = size * 4;
+        int stride = image.getStride() * 4;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < rowLength; x++) {
+                if (data.get(y * stride + x) != reference.get(y * rowLength + x)) return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    public synchronized String getStatsSummary() {
+        return String.format(Locale.ENGLISH, "GL drawing: commands=%d fallbacks=%d syncs=%d (%d on CPU) (%.2fms)\n",
+            executedCommands, fallbacks, syncs, cpuCommands, syncTime / 1e6);
+    }
+}
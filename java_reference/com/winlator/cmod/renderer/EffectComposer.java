@@ -1,25 +1,64 @@
 package com.winlator.cmod.renderer;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.util.Log;
 
 import com.winlator.cmod.renderer.effects.Effect;
 import com.winlator.cmod.renderer.effects.ToonEffect;
+import com.winlator.cmod.renderer.effects.UpscaleEffect;
+import com.winlator.cmod.renderer.material.FusedScreenMaterial;
 import com.winlator.cmod.renderer.material.ShaderMaterial;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class EffectComposer {
     // Constants
     private static final String TAG = "EffectComposer";
     private boolean isRendering = false;
 
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
     // Instance fields
     private final List<Effect> effects = new ArrayList<>();
+    private final ArrayList<Pass> passes = new ArrayList<>();
+    private boolean passesNeedUpdate = true;
+    private boolean upscaling = false;
+    private final UpscaleEffect upscaleEffect = new UpscaleEffect();
     private RenderTarget readBuffer;
     private RenderTarget writeBuffer;
     private final GLRenderer renderer;
+    private final int[] tmpInt = new int[1];
+
+    // GPU timing fields, queries are double buffered so that results are read one frame later
+    private boolean gpuTimingEnabled = false;
+    private Boolean timerQueriesSupported = null;
+    private int[] queryIds = new int[0];
+    private boolean[] queryIssued = new boolean[0];
+    private long[] gpuTimes = new long[0];
+    private String[] gpuTimeNames = new String[0];
+    private int queryFrame = 0;
+    private boolean timerActive = false;
+
+    // A full-screen pass made of an optional effect followed by fused per-pixel color effects
+    private static class Pass {
+        private final Effect baseEffect;
+        private final ArrayList<Effect> colorEffects = new ArrayList<>();
+        private ShaderMaterial material;
+
+        private Pass(Effect baseEffect) {
+            this.baseEffect = baseEffect;
+        }
+
+        private String getName() {
+            StringBuilder sb = new StringBuilder(baseEffect != null ? baseEffect.getClass().getSimpleName() : "Copy");
+            for (Effect effect : colorEffects) sb.append('+').append(effect.getClass().getSimpleName());
+            return sb.toString();
+        }
+    }
 
     // Constructor
     public EffectComposer(GLRenderer renderer) {
@@ -27,32 +66,29 @@ public class EffectComposer {
 //        Log.d(TAG, "EffectComposer created");
     }
 
-    // Initializes the buffers if they are not already initialized
-    private void initBuffers() {
+    // Initializes the buffers if they are not already initialized, or reallocates them when the surface size changed
+    private void initBuffers(int width, int height, boolean needsWriteBuffer) {
 //        Log.d(TAG, "initBuffers() called");
 
-        if (readBuffer == null) {
-            readBuffer = new RenderTarget();
-            readBuffer.allocateFramebuffer(renderer.getSurfaceWidth(), renderer.getSurfaceHeight());
-//            Log.d(TAG, "Initialized readBuffer with size: " + renderer.getSurfaceWidth() + "x" + renderer.getSurfaceHeight());
-        }
+        if (readBuffer == null) readBuffer = new RenderTarget();
+        readBuffer.allocateFramebuffer(width, height);
 
-        if (writeBuffer == null) {
-            writeBuffer = new RenderTarget();
-            writeBuffer.allocateFramebuffer(renderer.getSurfaceWidth(), renderer.getSurfaceHeight());
-//            Log.d(TAG, "Initialized writeBuffer with size: " + renderer.getSurfaceWidth() + "x" + renderer.getSurfaceHeight());
+        if (needsWriteBuffer) {
+            if (writeBuffer == null) writeBuffer = new RenderTarget();
+            writeBuffer.allocateFramebuffer(width, height);
         }
     }
 
     public synchronized void addEffect(Effect effect) {
         if (!effects.contains(effect)) {
             effects.add(effect);
+            passesNeedUpdate = true;
 //            Log.d(TAG, "Effect added: " + effect.getClass().getSimpleName());
         } else {
 //            Log.d(TAG, "Effect already present: " + effect.getClass().getSimpleName());
         }
         // Move this call to the end of a batch effect addition or modification to prevent immediate rendering
-        renderer.xServerView.requestRender();
+        renderer.requestRender(GLRenderer.DIRTY_SCENE);
     }
 
 
@@ -81,14 +117,16 @@ public class EffectComposer {
     // Removes a specific effect from the composer
     public synchronized void removeEffect(Effect effect) {
         if (effects.remove(effect)) {
+            passesNeedUpdate = true;
 //            Log.d(TAG, "Effect removed: " + effect.getClass().getSimpleName());
         } else {
 //            Log.d(TAG, "Effect not found for removal: " + effect.getClass().getSimpleName());
         }
-        renderer.xServerView.requestRender();
+        renderer.requestRender(GLRenderer.DIRTY_SCENE);
     }
 
-    // Renders all the effects in the composer
+    // Renders the scene once into an offscreen target and applies the effect passes,
+    // the last pass is drawn into the framebuffer that was bound by the caller
     public synchronized void render() {
         // Check for recursive rendering
         if (isRendering) {
@@ -98,83 +136,131 @@ public class EffectComposer {
 
         isRendering = true; // Set flag to true
 
-//        Log.d(TAG, "render() called");
-
-        initBuffers();
-
-        // Set up framebuffer if there are effects to render
-        if (hasEffects()) {
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, readBuffer.getFramebuffer());
-//            Log.d(TAG, "Binding to readBuffer framebuffer: " + readBuffer.getFramebuffer());
-        } else {
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-//            Log.d(TAG, "Binding to default framebuffer (0)");
+        float renderScale = renderer.getRenderScale();
+        boolean upscaling = renderScale < 1.0f;
+        if (passesNeedUpdate || upscaling != this.upscaling) {
+            this.upscaling = upscaling;
+            updatePasses();
         }
 
-        // Draw the initial frame
-        renderer.drawFrame();
-//        Log.d(TAG, "Initial frame drawn");
-
-        // Iterate through each effect and render it
-        for (Effect effect : effects) {
-            boolean renderToScreen = effect == effects.get(effects.size() - 1);
-            int targetFramebuffer = renderToScreen ? 0 : writeBuffer.getFramebuffer();
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, tmpInt, 0);
+        int outputFramebuffer = tmpInt[0];
+        int width = renderer.surfaceWidth;
+        int height = renderer.surfaceHeight;
+        int sceneWidth = upscaling ? Math.max(1, Math.round(width * renderScale)) : width;
+        int sceneHeight = upscaling ? Math.max(1, Math.round(height * renderScale)) : height;
+        initBuffers(sceneWidth, sceneHeight, passes.size() > 1);
+        beginTimerFrame();
+
+        // Draw the scene into the readBuffer, at a lower resolution when upscaling
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, readBuffer.getFramebuffer());
+        GLES20.glViewport(0, 0, sceneWidth, sceneHeight);
+        renderer.setViewportNeedsUpdate(true);
+        renderer.setViewportScale(upscaling ? renderScale : 1.0f);
+        beginTimer(0);
+        renderer.drawScene();
+        endTimer();
+        renderer.setViewportScale(1.0f);
+
+        // Iterate through each pass and render it, only the last pass is drawn at the surface size
+        for (int i = 0; i < passes.size(); i++) {
+            boolean renderToScreen = i == passes.size() - 1;
+            int targetFramebuffer = renderToScreen ? outputFramebuffer : writeBuffer.getFramebuffer();
+            int targetWidth = renderToScreen ? width : sceneWidth;
+            int targetHeight = renderToScreen ? height : sceneHeight;
 
-            // Bind appropriate framebuffer
             GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFramebuffer);
-//            Log.d(TAG, "Binding to " + (renderToScreen ? "screen" : "writeBuffer") + " framebuffer: " + targetFramebuffer);
-
-            GLES20.glViewport(0, 0, renderer.surfaceWidth, renderer.surfaceHeight);
-            renderer.setViewportNeedsUpdate(true);
-//            Log.d(TAG, "Viewport updated to size: " + renderer.surfaceWidth + "x" + renderer.surfaceHeight);
+            GLES20.glViewport(0, 0, targetWidth, targetHeight);
 
-            // Clear the buffer
+            // Clearing first lets tiled GPUs skip loading the previous contents
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-//            Log.d(TAG, "Framebuffer cleared");
 
-            // Render the effect
-            renderEffect(effect);
-//            Log.d(TAG, "Effect rendered: " + effect.getClass().getSimpleName());
+            beginTimer(i + 1);
+            renderPass(passes.get(i), targetWidth, targetHeight, sceneWidth, sceneHeight);
+            endTimer();
 
             // Swap the read and write buffers
             swapBuffers();
-//            Log.d(TAG, "Buffers swapped");
         }
 
+        renderer.setViewportNeedsUpdate(true);
+        endTimerFrame();
         isRendering = false; // Reset flag after rendering
     }
 
-    // Renders a single effect
-    private void renderEffect(Effect effect) {
-//        Log.d(TAG, "renderEffect() called for: " + effect.getClass().getSimpleName());
+    // Groups the effects into passes, per-pixel color effects are fused into the pass before them
+    private void updatePasses() {
+        for (Pass pass : passes) {
+            if (pass.material instanceof FusedScreenMaterial) pass.material.destroy();
+        }
+        passes.clear();
+        gpuTimeNames = new String[0];
+
+        for (Effect effect : effects) {
+            if (effect.isFusible()) {
+                if (passes.isEmpty()) passes.add(new Pass(null));
+                passes.get(passes.size() - 1).colorEffects.add(effect);
+            }
+            else passes.add(new Pass(effect));
+        }
+
+        // The upscale pass comes last, trailing color effects are fused into it instead of getting a copy pass
+        if (upscaling) {
+            Pass lastPass = !passes.isEmpty() ? passes.get(passes.size() - 1) : null;
+            Pass upscalePass = new Pass(upscaleEffect);
+            if (lastPass != null && lastPass.baseEffect == null) {
+                upscalePass.colorEffects.addAll(lastPass.colorEffects);
+                passes.remove(passes.size() - 1);
+            }
+            passes.add(upscalePass);
+        }
+
+        for (Pass pass : passes) {
+            ShaderMaterial baseMaterial = pass.baseEffect != null ? pass.baseEffect.getMaterial() : null;
+            if (!pass.colorEffects.isEmpty()) {
+                String[] colorFunctions = new String[pass.colorEffects.size()];
+                String[][] colorFunctionUniforms = new String[pass.colorEffects.size()][];
+                for (int i = 0; i < colorFunctions.length; i++) {
+                    colorFunctions[i] = pass.colorEffects.get(i).getColorFunction();
+                    colorFunctionUniforms[i] = pass.colorEffects.get(i).getColorFunctionUniforms();
+                }
+                pass.material = new FusedScreenMaterial(baseMaterial, colorFunctions, colorFunctionUniforms);
+            }
+            else pass.material = baseMaterial;
+        }
+
+        passesNeedUpdate = false;
+    }
 
-        ShaderMaterial material = effect.getMaterial();
+    // Renders a single pass, the source texture has the size of the scene
+    private void renderPass(Pass pass, int width, int height, int sourceWidth, int sourceHeight) {
+        ShaderMaterial material = pass.material;
         if (material == null) {
-//            Log.e(TAG, "Material is null for effect: " + effect.getClass().getSimpleName());
+//            Log.e(TAG, "Material is null for pass: " + pass.getName());
             return;
         }
 
         material.use();
-//        Log.d(TAG, "ShaderMaterial used: " + material.getClass().getSimpleName());
 
         // Bind the quad vertices to the shader program
         renderer.getQuadVertices().bind(material.programId);
-//        Log.d(TAG, "Quad vertices bound to program ID: " + material.programId);
 
         // Set uniform values
-        material.setUniformVec2("resolution", renderer.surfaceWidth, renderer.surfaceHeight);
+        material.setUniformVec2("resolution", width, height);
+        if (pass.baseEffect == upscaleEffect) material.setUniformVec2("textureSize", sourceWidth, sourceHeight);
+        if (pass.baseEffect != null) pass.baseEffect.setUniforms(material);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, readBuffer.getTextureId());
         material.setUniformInt("screenTexture", 0);
-//        Log.d(TAG, "Uniforms set: resolution=" + renderer.surfaceWidth + "x" + renderer.surfaceHeight + ", screenTexture=" + readBuffer.getTextureId());
+        for (int i = 0; i < pass.colorEffects.size(); i++) {
+            pass.colorEffects.get(i).setColorFunctionUniforms(material, FusedScreenMaterial.getSuffix(i));
+        }
 
         // Draw the quad
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, renderer.quadVertices.count());
-//        Log.d(TAG, "Quad drawn");
 
         // Unbind the texture
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-//        Log.d(TAG, "Texture unbound");
     }
 
     // Swaps the read and write buffers
@@ -185,6 +271,89 @@ public class EffectComposer {
 //        Log.d(TAG, "swapBuffers() called. Buffers swapped.");
     }
 
+    // Effect used to upscale the scene to the surface when the render scale is below 1
+    public UpscaleEffect getUpscaleEffect() {
+        return upscaleEffect;
+    }
+
+    public synchronized int getPassCount() {
+        return passes.size();
+    }
+
+    public synchronized boolean isGPUTimingEnabled() {
+        return gpuTimingEnabled;
+    }
+
+    // Measures the GPU time of the scene and of each pass (requires GL_EXT_disjoint_timer_query)
+    public synchronized void setGPUTimingEnabled(boolean gpuTimingEnabled) {
+        this.gpuTimingEnabled = gpuTimingEnabled;
+    }
+
+    // GPU time in milliseconds of the scene followed by each pass, measured on the previous frames
+    public synchronized String getGPUTimeSummary() {
+        if (!gpuTimingEnabled) return "GPU timing disabled\n";
+        if (timerQueriesSupported == Boolean.FALSE) return "GPU timing not supported\n";
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < gpuTimeNames.length; i++) {
+            sb.append(String.format(Locale.ENGLISH, "%s: %.3fms\n", gpuTimeNames[i], gpuTimes[i] / 1e6f));
+        }
+        return sb.toString();
+    }
+
+    private void beginTimerFrame() {
+        if (!gpuTimingEnabled) return;
+        if (timerQueriesSupported == null) {
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            timerQueriesSupported = extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+        }
+        if (!timerQueriesSupported) return;
+
+        int numSlots = passes.size() + 1;
+        if (gpuTimeNames.length != numSlots) {
+            if (queryIds.length > 0) GLES30.glDeleteQueries(queryIds.length, queryIds, 0);
+            queryIds = new int[numSlots * 2];
+            GLES30.glGenQueries(queryIds.length, queryIds, 0);
+            queryIssued = new boolean[queryIds.length];
+            gpuTimes = new long[numSlots];
+            gpuTimeNames = new String[numSlots];
+            gpuTimeNames[0] = "Scene";
+            for (int i = 0; i < passes.size(); i++) gpuTimeNames[i+1] = passes.get(i).getName();
+        }
+        queryFrame ^= 1;
+    }
+
+    private void beginTimer(int slot) {
+        if (!gpuTimingEnabled || timerQueriesSupported != Boolean.TRUE || slot >= gpuTimes.length) return;
+        int index = slot * 2 + queryFrame;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queryIds[index]);
+        queryIssued[index] = true;
+        timerActive = true;
+    }
+
+    private void endTimer() {
+        if (!timerActive) return;
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        timerActive = false;
+    }
+
+    // Collects the results of the previous frame so that reading them never stalls the pipeline
+    private void endTimerFrame() {
+        if (!gpuTimingEnabled || timerQueriesSupported != Boolean.TRUE) return;
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, tmpInt, 0);
+        boolean disjoint = tmpInt[0] != 0;
+
+        for (int slot = 0; slot < gpuTimes.length; slot++) {
+            int index = slot * 2 + (queryFrame ^ 1);
+            if (!queryIssued[index]) continue;
+            GLES30.glGetQueryObjectuiv(queryIds[index], GLES30.GL_QUERY_RESULT_AVAILABLE, tmpInt, 0);
+            if (tmpInt[0] == 0) continue;
+            GLES30.glGetQueryObjectuiv(queryIds[index], GLES30.GL_QUERY_RESULT, tmpInt, 0);
+            queryIssued[index] = false;
+            if (!disjoint) gpuTimes[slot] = Integer.toUnsignedLong(tmpInt[0]);
+        }
+    }
+
     // Add a method to add the ToonEffect
     public synchronized void toggleToonEffect() {
         ToonEffect toonEffect = getEffect(ToonEffect.class);
@@ -195,7 +364,7 @@ public class EffectComposer {
             addEffect(new ToonEffect()); // Add if not present
             Log.d(TAG, "ToonEffect added");
         }
-        renderer.xServerView.requestRender();
+        renderer.requestRender(GLRenderer.DIRTY_SCENE);
     }
 
 }
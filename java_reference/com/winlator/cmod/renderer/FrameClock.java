@@ -0,0 +1,90 @@
+package com.winlator.cmod.renderer;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+public class FrameClock implements Choreographer.FrameCallback {
+    private final Choreographer choreographer;
+    private final ArrayList<OnFrameListener> onFrameListeners = new ArrayList<>();
+    private long frameIntervalNanos = 1000000000L / 60;
+    private long lastFrameTimeNanos = 0;
+    private long msc = 0;
+    private long ust = 0;
+    private boolean frameRequested = false;
+
+    public interface OnFrameListener {
+        void onFrame(long msc, long ust);
+    }
+
+    /**
+     * Must be created on a thread with a Looper (usually the main thread), frame callbacks are delivered on it.
+     */
+    public FrameClock() {
+        choreographer = Choreographer.getInstance();
+    }
+
+    public synchronized void requestFrame() {
+        if (!frameRequested) {
+            frameRequested = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long msc, ust;
+        synchronized (this) {
+            if (lastFrameTimeNanos != 0) {
+                this.msc += Math.max(1, Math.round((double)(frameTimeNanos - lastFrameTimeNanos) / frameIntervalNanos));
+            }
+            lastFrameTimeNanos = frameTimeNanos;
+            this.ust = frameTimeNanos / 1000;
+            frameRequested = false;
+            msc = this.msc;
+            ust = this.ust;
+        }
+
+        OnFrameListener[] listeners;
+        synchronized (onFrameListeners) {
+            listeners = onFrameListeners.toArray(new OnFrameListener[0]);
+        }
+        for (OnFrameListener listener : listeners) listener.onFrame(msc, ust);
+    }
+
+    public synchronized long getMSC() {
+        return msc;
+    }
+
+    public synchronized long getUST() {
+        return ust;
+    }
+
+    /**
+     * Extrapolates the counter to the current time, useful when no frame callback was requested for a while.
+     */
+    public synchronized long getCurrentMSC() {
+        if (lastFrameTimeNanos == 0) return msc;
+        return msc + Math.max(0, (System.nanoTime() - lastFrameTimeNanos) / frameIntervalNanos);
+    }
+
+    public synchronized long getFrameIntervalNanos() {
+        return frameIntervalNanos;
+    }
+
+    public synchronized void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) frameIntervalNanos = (long)(1000000000L / refreshRate);
+    }
+
+    public void addOnFrameListener(OnFrameListener onFrameListener) {
+        synchronized (onFrameListeners) {
+            onFrameListeners.add(onFrameListener);
+        }
+    }
+
+    public void removeOnFrameListener(OnFrameListener onFrameListener) {
+        synchronized (onFrameListeners) {
+            onFrameListeners.remove(onFrameListener);
+        }
+    }
+}
@@ -6,31 +6,41 @@ import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
+import android.view.Display;
 
 import com.winlator.cmod.R;
 import com.winlator.cmod.XrActivity;
 import com.winlator.cmod.math.Mathf;
 import com.winlator.cmod.math.XForm;
 import com.winlator.cmod.renderer.material.CursorMaterial;
+import com.winlator.cmod.renderer.material.FusedScreenMaterial;
 import com.winlator.cmod.renderer.material.ShaderMaterial;
 import com.winlator.cmod.renderer.material.WindowMaterial;
 import com.winlator.cmod.widget.XServerView;
+import com.winlator.cmod.xserver.Atom;
 import com.winlator.cmod.xserver.Bitmask;
 import com.winlator.cmod.xserver.Cursor;
 import com.winlator.cmod.xserver.Drawable;
 import com.winlator.cmod.xserver.Pointer;
+import com.winlator.cmod.xserver.Property;
 import com.winlator.cmod.xserver.Window;
 import com.winlator.cmod.xserver.WindowAttributes;
 import com.winlator.cmod.xserver.WindowManager;
 import com.winlator.cmod.xserver.XLock;
+import com.winlator.cmod.xserver.XResource;
+import com.winlator.cmod.xserver.XResourceManager;
 import com.winlator.cmod.xserver.XServer;
 
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindowModificationListener, Pointer.OnPointerMotionListener {
+public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindowModificationListener, XResourceManager.OnResourceLifecycleListener, Pointer.OnPointerMotionListener {
     public final XServerView xServerView;
     private final XServer xServer;
     public final VertexAttribute quadVertices = new VertexAttribute("position", 2);
@@ -39,24 +49,55 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
     private final CursorMaterial cursorMaterial = new CursorMaterial();
     private final WindowMaterial windowMaterial = new WindowMaterial();
     public final ViewTransformation viewTransformation = new ViewTransformation();
+    public final FrameClock frameClock = new FrameClock();
     private final Drawable rootCursorDrawable;
     private final ArrayList<RenderableWindow> renderableWindows = new ArrayList<>();
+    private final SceneGraph sceneGraph;
     private boolean fullscreen = false;
     private boolean toggleFullscreen = false;
     public boolean viewportNeedsUpdate = true;
     private boolean cursorVisible = true;
     private boolean screenOffsetYRelativeToCursor = false;
-    private String[] unviewableWMClasses = null;
     private float magnifierZoom = 1.0f;
     private boolean magnifierEnabled = true;
     public int surfaceWidth;
     public int surfaceHeight;
     private final EffectComposer effectComposer;
+    private final DrawCommandQueue drawCommandQueue;
+    private float renderScale = 1.0f;
+    public static final int DIRTY_SCENE = 1;
+    public static final int DIRTY_CONTENT = 1<<1;
+    public static final int DIRTY_CURSOR = 1<<2;
+    public static final int DIRTY_ALL = DIRTY_SCENE | DIRTY_CONTENT | DIRTY_CURSOR;
+    private final AtomicInteger dirtyFlags = new AtomicInteger(DIRTY_ALL);
+    private final AtomicBoolean renderRequested = new AtomicBoolean(false);
+    private final AtomicLong framesRequested = new AtomicLong();
+    private final AtomicLong framesCoalesced = new AtomicLong();
+    private long framesRendered = 0;
+    private long cursorOnlyFrames = 0;
+    private RenderTarget sceneCache;
+    private boolean sceneCacheValid = false;
+    private FusedScreenMaterial copyMaterial;
+    private int lastFrameDrawnWindows = 0;
+    private WindowBatch windowBatch;
+    private final int[] textureUnits = new int[WindowMaterial.MAX_TEXTURES];
+    private int frameDrawCalls = 0;
+    private int frameStateChanges = 0;
+    private int lastFrameDrawCalls = 0;
+    private int lastFrameStateChanges = 0;
+    private volatile boolean debugEnabled = false;
+    private int lastFrameCulledWindows = 0;
+    private long lastFrameDrawnPixels = 0;
+    private float viewportScale = 1.0f;
+    private int frameUploadedBytes = 0;
+    private int lastFrameUploadedBytes = 0;
+    private long totalUploadedBytes = 0;
 
     public GLRenderer(XServerView xServerView, XServer xServer) {
         this.xServerView = xServerView;
         this.xServer = xServer;
         this.effectComposer = new EffectComposer(this);
+        this.drawCommandQueue = new DrawCommandQueue(this);
         rootCursorDrawable = createRootCursorDrawable();
 
         quadVertices.put(new float[]{
@@ -66,13 +107,27 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
             1.0f, 1.0f
         });
 
-        xServer.windowManager.addOnWindowModificationListener(this);
+        sceneGraph = new SceneGraph(xServer.windowManager.rootWindow);
+        try (XLock lock = xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+            sceneGraph.rebuild();
+            xServer.windowManager.addOnWindowModificationListener(this);
+            xServer.windowManager.addOnResourceLifecycleListener(this);
+        }
         xServer.pointer.addOnPointerMotionListener(this);
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         GPUImage.checkIsSupported();
+        drawCommandQueue.checkIsSupported();
+        sceneCache = null;
+        sceneCacheValid = false;
+        copyMaterial = null;
+
+        int[] maxTextureUnits = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_IMAGE_UNITS, maxTextureUnits, 0);
+        windowBatch = new WindowBatch(Math.max(1, Math.min(maxTextureUnits[0], WindowMaterial.MAX_TEXTURES)));
+        for (int i = 0; i < textureUnits.length; i++) textureUnits[i] = i;
 
         GLES20.glFrontFace(GLES20.GL_CCW);
         GLES20.glDisable(GLES20.GL_CULL_FACE);
@@ -96,22 +151,102 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
             magnifierEnabled = false;
         }
 
+        Display display = xServerView.getDisplay();
+        if (display != null) frameClock.setRefreshRate(display.getRefreshRate());
+
         surfaceWidth = width;
         surfaceHeight = height;
+        // A cursor move can land before the full frame and would otherwise blit the cache of the old size
+        sceneCacheValid = false;
         viewTransformation.update(width, height, xServer.screenInfo.width, xServer.screenInfo.height);
         viewportNeedsUpdate = true;
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        renderRequested.set(false);
+        int dirtyFlags = this.dirtyFlags.getAndSet(0);
+        // Frames requested directly through the view (or after a surface change) redraw everything
+        if (dirtyFlags == 0) dirtyFlags = DIRTY_ALL;
+
         if (toggleFullscreen) {
             fullscreen = !fullscreen;
             toggleFullscreen = false;
             viewportNeedsUpdate = true;
+            dirtyFlags |= DIRTY_SCENE;
+        }
+
+        framesRendered++;
+        frameUploadedBytes = 0;
+        frameDrawCalls = 0;
+        frameStateChanges = 0;
+        drawCommandQueue.execute();
+        if (sceneGraph.copyTo(renderableWindows)) updateOcclusion();
+
+        if (dirtyFlags == DIRTY_CURSOR && canUseSceneCache()) {
+            drawCursorFrame();
+            cursorOnlyFrames++;
+        }
+        else {
+            sceneCacheValid = false;
+            drawFrame();
+        }
+        lastFrameUploadedBytes = frameUploadedBytes;
+        totalUploadedBytes += frameUploadedBytes;
+        lastFrameDrawCalls = frameDrawCalls;
+        lastFrameStateChanges = frameStateChanges;
+    }
+
+    /**
+     * Marks parts of the frame as dirty and requests a render, requests arriving before the pending
+     * frame is drawn are coalesced into it.
+     */
+    public void requestRender(int flags) {
+        dirtyFlags.accumulateAndGet(flags, (a, b) -> a | b);
+        framesRequested.incrementAndGet();
+        if (renderRequested.compareAndSet(false, true)) {
+            xServerView.requestRender();
+        }
+        else framesCoalesced.incrementAndGet();
+    }
+
+    public void requestRender() {
+        requestRender(DIRTY_ALL);
+    }
+
+    private boolean canUseSceneCache() {
+        return !XrActivity.isEnabled(null) && !effectComposer.hasEffects() && renderScale == 1.0f;
+    }
 
+    // Draws the windows once into the scene cache, following cursor-only frames just copy it and draw the cursor on top
+    private void drawCursorFrame() {
+        if (!sceneCacheValid) {
+            if (sceneCache == null) sceneCache = new RenderTarget();
+            sceneCache.allocateFramebuffer(surfaceWidth, surfaceHeight);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, sceneCache.getFramebuffer());
+            viewportNeedsUpdate = true;
+            drawScene(true, false);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            sceneCacheValid = true;
         }
 
-        drawFrame();
+        if (copyMaterial == null) copyMaterial = new FusedScreenMaterial(null, new String[0], new String[0][]);
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        copyMaterial.use();
+        quadVertices.bind(copyMaterial.programId);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sceneCache.getTextureId());
+        copyMaterial.setUniformInt("screenTexture", 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, quadVertices.count());
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        quadVertices.disable();
+        GLES20.glEnable(GLES20.GL_BLEND);
+        frameDrawCalls++;
+        frameStateChanges += 3;
+
+        viewportNeedsUpdate = true;
+        drawScene(false, true);
     }
 
     public void drawFrame() {
@@ -122,19 +257,42 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
             xrFrame = XrActivity.getInstance().beginFrame(xrImmersive, XrActivity.getSBS());
         }
 
+        // With effects or a render scale the scene is drawn once into an offscreen target by the EffectComposer
+        if (effectComposer.hasEffects() || renderScale < 1.0f) {
+            effectComposer.render();
+        }
+        else drawScene();
+
+        // Finalize XR frame if supported
+        if (xrFrame) {
+            XrActivity.getInstance().endFrame();
+            XrActivity.updateControllers();
+            xServerView.requestRender();
+        }
+    }
+
+    private int scaleViewport(int value) {
+        return viewportScale != 1.0f ? Math.round(value * viewportScale) : value;
+    }
+
+    public void drawScene() {
+        drawScene(true, true);
+    }
+
+    private void drawScene(boolean drawWindows, boolean drawCursor) {
         // Update the viewport if necessary
         if (viewportNeedsUpdate && magnifierEnabled) {
             if (fullscreen) {
-                GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+                GLES20.glViewport(0, 0, scaleViewport(surfaceWidth), scaleViewport(surfaceHeight));
             }
             else {
-                GLES20.glViewport(viewTransformation.viewOffsetX, viewTransformation.viewOffsetY, viewTransformation.viewWidth, viewTransformation.viewHeight);
+                GLES20.glViewport(scaleViewport(viewTransformation.viewOffsetX), scaleViewport(viewTransformation.viewOffsetY), scaleViewport(viewTransformation.viewWidth), scaleViewport(viewTransformation.viewHeight));
             }
             viewportNeedsUpdate = false;
         }
 
         // Clear the screen before drawing
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        if (drawWindows) GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         // Apply basic transformations and draw windows
         if (magnifierEnabled) {
@@ -165,84 +323,91 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
                 XForm.makeTransform(tmpXForm2, viewTransformation.sceneOffsetX, viewTransformation.sceneOffsetY - pointerY, viewTransformation.sceneScaleX, viewTransformation.sceneScaleY, 0);
 
                 GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-                GLES20.glScissor(viewTransformation.viewOffsetX, viewTransformation.viewOffsetY, viewTransformation.viewWidth, viewTransformation.viewHeight);
+                GLES20.glScissor(scaleViewport(viewTransformation.viewOffsetX), scaleViewport(viewTransformation.viewOffsetY), scaleViewport(viewTransformation.viewWidth), scaleViewport(viewTransformation.viewHeight));
             } else {
                 XForm.identity(tmpXForm2);
             }
         }
 
-        renderWindows();
+        if (drawWindows) renderWindows();
 
         // Render cursor if enabled
-        if (cursorVisible) renderCursor();
+        if (drawCursor && cursorVisible) renderCursor();
 
         // Disable scissor test if magnifier is disabled and not in fullscreen mode
         if (!magnifierEnabled && !fullscreen) {
             GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
         }
-
-        // Apply all the effects using EffectComposer
-        if (effectComposer.hasEffects()) {
-            effectComposer.render();  // <-- This line applies the effects
-        }
-
-        // Finalize XR frame if supported
-        if (xrFrame) {
-            XrActivity.getInstance().endFrame();
-            XrActivity.updateControllers();
-            xServerView.requestRender();
-        }
     }
 
 
     @Override
     public void onMapWindow(Window window) {
-        xServerView.queueEvent(this::updateScene);
-        xServerView.requestRender();
+        sceneGraph.mapWindow(window);
+        requestRender(DIRTY_SCENE);
     }
 
     @Override
     public void onUnmapWindow(Window window) {
-        xServerView.queueEvent(this::updateScene);
-        xServerView.requestRender();
+        sceneGraph.unmapWindow(window);
+        requestRender(DIRTY_SCENE);
     }
 
     @Override
     public void onChangeWindowZOrder(Window window) {
-        xServerView.queueEvent(this::updateScene);
-        xServerView.requestRender();
+        sceneGraph.changeWindowZOrder(window);
+        requestRender(DIRTY_SCENE);
+    }
+
+    @Override
+    public void onReparentWindow(Window window) {
+        sceneGraph.reparentWindow(window);
+        requestRender(DIRTY_SCENE);
     }
 
     @Override
     public void onUpdateWindowContent(Window window) {
-        xServerView.requestRender();
+        if (window.attributes.isMapped()) requestRender(DIRTY_CONTENT);
     }
 
     @Override
     public void onUpdateWindowGeometry(final Window window, boolean resized) {
-        if (resized) {
-            xServerView.queueEvent(this::updateScene);
+        sceneGraph.updateWindowGeometry(window, resized);
+        requestRender(DIRTY_SCENE);
+    }
+
+    @Override
+    public void onModifyWindowProperty(Window window, Property property) {
+        if (property.name == Atom.WM_CLASS) {
+            sceneGraph.updateWindowClass(window);
+            requestRender(DIRTY_SCENE);
         }
-        else xServerView.queueEvent(() -> updateWindowPosition(window));
-        xServerView.requestRender();
+    }
+
+    @Override
+    public void onFreeResource(XResource resource) {
+        if (resource instanceof Window) sceneGraph.freeWindow((Window)resource);
     }
 
     @Override
     public void onUpdateWindowAttributes(Window window, Bitmask mask) {
-        if (mask.isSet(WindowAttributes.FLAG_CURSOR)) xServerView.requestRender();
+        if (mask.isSet(WindowAttributes.FLAG_CURSOR)) requestRender(DIRTY_CURSOR);
     }
 
     @Override
     public void onPointerMove(short x, short y) {
-        xServerView.requestRender();
+        if (screenOffsetYRelativeToCursor || (magnifierEnabled && magnifierZoom != 1.0f)) {
+            requestRender(DIRTY_SCENE);
+        }
+        else if (cursorVisible) requestRender(DIRTY_CURSOR);
     }
 
 
-    private void renderDrawable(Drawable drawable, int x, int y, ShaderMaterial material) {
+    private void renderDrawable(Drawable drawable, int x, int y, CursorMaterial material) {
         if (drawable == null) return;
         synchronized (drawable.renderLock) {
             Texture texture = drawable.getTexture();
-            texture.updateFromDrawable(drawable);
+            frameUploadedBytes += texture.updateFromDrawable(drawable);
 
             XForm.set(tmpXForm1, x, y, drawable.width, drawable.height);
 
@@ -250,39 +415,74 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
 
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.getTextureId());
-            GLES20.glUniform1i(material.getUniformLocation("texture"), 0);
-            GLES20.glUniform1fv(material.getUniformLocation("xform"), tmpXForm1.length, tmpXForm1, 0);
+            GLES20.glUniform1i(material.textureLocation, 0);
+            GLES20.glUniform1fv(material.xformLocation, tmpXForm1.length, tmpXForm1, 0);
             GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, quadVertices.count());
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            frameDrawCalls++;
+            frameStateChanges += 2;
         }
     }
 
     private void renderWindows() {
         windowMaterial.use();
-        GLES20.glUniform2f(windowMaterial.getUniformLocation("viewSize"), xServer.screenInfo.width, xServer.screenInfo.height);
-        quadVertices.bind(windowMaterial.programId);
-
-        try (XLock lock = xServer.lock(XServer.Lockable.DRAWABLE_MANAGER)) {
+        GLES20.glUniform2f(windowMaterial.viewSizeLocation, xServer.screenInfo.width, xServer.screenInfo.height);
+        GLES20.glUniform1fv(windowMaterial.xformLocation, tmpXForm2.length, tmpXForm2, 0);
+        GLES20.glUniform1iv(windowMaterial.texturesLocation, textureUnits.length, textureUnits, 0);
+        frameStateChanges++;
+
+        int drawnWindows = 0;
+        int culledWindows = 0;
+        long drawnPixels = 0;
+        windowBatch.begin();
+        try (XLock lock = xServer.lockShared(XServer.Lockable.DRAWABLE_MANAGER)) {
             for (RenderableWindow window : renderableWindows) {
-                renderDrawable(window.content, window.rootX, window.rootY, windowMaterial);
+                if (window.occluded) {
+                    culledWindows++;
+                    continue;
+                }
+
+                Drawable content = window.content;
+                Texture texture = content.getTexture();
+                if (texture.isLockFree()) {
+                    frameUploadedBytes += texture.updateFromDrawable(content);
+                    windowBatch.add(texture.getTextureId(), !window.opaque, window.rootX, window.rootY, content.width, content.height);
+                }
+                else {
+                    synchronized (content.renderLock) {
+                        texture = content.getTexture();
+                        frameUploadedBytes += texture.updateFromDrawable(content);
+                        windowBatch.add(texture.getTextureId(), !window.opaque, window.rootX, window.rootY, content.width, content.height);
+                    }
+                }
+                drawnWindows++;
+                drawnPixels += content.width * content.height;
             }
+
+            windowBatch.draw(windowMaterial);
         }
 
-        quadVertices.disable();
+        frameDrawCalls += windowBatch.getDrawCalls();
+        frameStateChanges += windowBatch.getStateChanges();
+        lastFrameDrawnWindows = drawnWindows;
+        lastFrameCulledWindows = culledWindows;
+        lastFrameDrawnPixels = drawnPixels;
 
-        int error = GLES20.glGetError();
-        if (error != GLES20.GL_NO_ERROR) {
-            Log.e("GLRenderer", "OpenGL Error: " + error);
+        if (debugEnabled) {
+            int error = GLES20.glGetError();
+            if (error != GLES20.GL_NO_ERROR) {
+                Log.e("GLRenderer", "OpenGL Error: " + error);
+            }
         }
-
     }
 
     private void renderCursor() {
         cursorMaterial.use();
-        GLES20.glUniform2f(cursorMaterial.getUniformLocation("viewSize"), xServer.screenInfo.width, xServer.screenInfo.height);
+        GLES20.glUniform2f(cursorMaterial.viewSizeLocation, xServer.screenInfo.width, xServer.screenInfo.height);
+        frameStateChanges++;
         quadVertices.bind(cursorMaterial.programId);
 
-        try (XLock lock = xServer.lock(XServer.Lockable.DRAWABLE_MANAGER)) {
+        try (XLock lock = xServer.lockShared(XServer.Lockable.DRAWABLE_MANAGER)) {
             Window pointWindow = xServer.inputDeviceManager.getPointWindow();
             Cursor cursor = pointWindow != null ? pointWindow.attributes.getCursor() : null;
             short x = xServer.pointer.getClampedX();
@@ -299,7 +499,7 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
 
     public void toggleFullscreen() {
         toggleFullscreen = true;
-        xServerView.requestRender();
+        requestRender(DIRTY_SCENE);
     }
 
     private Drawable createRootCursorDrawable() {
@@ -310,60 +510,26 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
         return Drawable.fromBitmap(bitmap);
     }
 
-    private void updateScene() {
-        try (XLock lock = xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
-            renderableWindows.clear();
-            collectRenderableWindows(xServer.windowManager.rootWindow, xServer.windowManager.rootWindow.getX(), xServer.windowManager.rootWindow.getY());
-        }
-    }
-
-    private void collectRenderableWindows(Window window, int x, int y) {
-        if (!window.attributes.isMapped()) return;
-        if (window != xServer.windowManager.rootWindow) {
-            boolean viewable = true;
-
-            if (unviewableWMClasses != null) {
-                String wmClass = window.getClassName();
-                for (String unviewableWMClass : unviewableWMClasses) {
-                    if (wmClass.contains(unviewableWMClass)) {
-                        if (window.attributes.isEnabled()) window.disableAllDescendants();
-                        viewable = false;
-                        break;
-                    }
-                }
-            }
-
-            if (viewable)
-                renderableWindows.add(new RenderableWindow(window.getContent(), x, y));
-        }
-
-        for (Window child : window.getChildren()) {
-            collectRenderableWindows(child, child.getX() + x, child.getY() + y);
-        }
-    }
-
-    private void removeRenderableWindow(Window window) {
-        for (int i = 0; i < renderableWindows.size(); i++) {
-            if (renderableWindows.get(i).content == window.getContent()) {
-                renderableWindows.remove(i);
-                break;
-            }
-        }
-    }
-
-    private void updateWindowPosition(Window window) {
-        for (RenderableWindow renderableWindow : renderableWindows) {
-            if (renderableWindow.content == window.getContent()) {
-                renderableWindow.rootX = window.getRootX();
-                renderableWindow.rootY = window.getRootY();
-                break;
+    /**
+     * Marks the windows that are outside of the screen or fully covered by a single opaque window above
+     * them, so that a fullscreen game window skips drawing the desktop and everything under it.
+     */
+    private void updateOcclusion() {
+        short screenWidth = xServer.screenInfo.width;
+        short screenHeight = xServer.screenInfo.height;
+        for (int i = renderableWindows.size()-1; i >= 0; i--) {
+            RenderableWindow window = renderableWindows.get(i);
+            window.occluded = window.isOutside(screenWidth, screenHeight);
+            for (int j = i+1; j < renderableWindows.size() && !window.occluded; j++) {
+                RenderableWindow above = renderableWindows.get(j);
+                if (above.opaque && !above.occluded && above.covers(window)) window.occluded = true;
             }
         }
     }
 
     public void setCursorVisible(boolean cursorVisible) {
         this.cursorVisible = cursorVisible;
-        xServerView.requestRender();
+        requestRender(DIRTY_CURSOR);
     }
 
     public boolean isCursorVisible() {
@@ -376,7 +542,7 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
 
     public void setScreenOffsetYRelativeToCursor(boolean screenOffsetYRelativeToCursor) {
         this.screenOffsetYRelativeToCursor = screenOffsetYRelativeToCursor;
-        xServerView.requestRender();
+        requestRender(DIRTY_SCENE);
     }
 
     public boolean isFullscreen() {
@@ -389,7 +555,24 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
 
     public void setMagnifierZoom(float magnifierZoom) {
         this.magnifierZoom = magnifierZoom;
-        xServerView.requestRender();
+        requestRender(DIRTY_SCENE);
+    }
+
+    public float getRenderScale() {
+        return renderScale;
+    }
+
+    /**
+     * Composites the scene at a fraction of the surface resolution and upscales it with UpscaleEffect,
+     * the X screen keeps its logical size.
+     */
+    public void setRenderScale(float renderScale) {
+        this.renderScale = Mathf.clamp(renderScale, 0.25f, 1.0f);
+        requestRender(DIRTY_SCENE);
+    }
+
+    void setViewportScale(float viewportScale) {
+        this.viewportScale = viewportScale;
     }
 
     public int getSurfaceWidth() {
@@ -416,11 +599,81 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
         return effectComposer;
     }
 
+    public XServer getXServer() {
+        return xServer;
+    }
+
+    public DrawCommandQueue getDrawCommandQueue() {
+        return drawCommandQueue;
+    }
+
+    public int getLastFrameUploadedBytes() {
+        return lastFrameUploadedBytes;
+    }
+
+    public long getTotalUploadedBytes() {
+        return totalUploadedBytes;
+    }
+
+    public long getFramesRequested() {
+        return framesRequested.get();
+    }
+
+    public int getLastFrameCulledWindows() {
+        return lastFrameCulledWindows;
+    }
+
+    /** Pixels drawn by the windows of the last frame relative to the screen size. */
+    public float getLastFrameOverdraw() {
+        int screenPixels = xServer.screenInfo.width * xServer.screenInfo.height;
+        return screenPixels > 0 ? (float)lastFrameDrawnPixels / screenPixels : 0.0f;
+    }
+
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    /** Polls glGetError after composing the windows, which stalls the pipeline on some drivers. */
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    public int getLastFrameDrawCalls() {
+        return lastFrameDrawCalls;
+    }
+
+    public int getLastFrameStateChanges() {
+        return lastFrameStateChanges;
+    }
+
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    public String getStatsSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Frames: requested=").append(framesRequested.get()).append(" coalesced=").append(framesCoalesced.get());
+        sb.append(" rendered=").append(framesRendered).append(" cursorOnly=").append(cursorOnlyFrames).append('\n');
+        int screenPixels = xServer.screenInfo.width * xServer.screenInfo.height;
+        sb.append(String.format(Locale.ENGLISH, "Windows: drawn=%d culled=%d overdraw=%.2f\n", lastFrameDrawnWindows, lastFrameCulledWindows,
+            screenPixels > 0 ? (float)lastFrameDrawnPixels / screenPixels : 0.0f));
+        sb.append("Draw calls: ").append(lastFrameDrawCalls).append(" state changes: ").append(lastFrameStateChanges).append('\n');
+        sb.append("Uploaded: last frame=").append(lastFrameUploadedBytes / 1024).append("KB total=").append(totalUploadedBytes / 1024).append("KB\n");
+        sb.append(GPUImageSwapchain.getStatsSummary());
+        if (drawCommandQueue.isEnabled()) sb.append(drawCommandQueue.getStatsSummary());
+        if (effectComposer.hasEffects() || renderScale < 1.0f) {
+            sb.append("Render scale: ").append(renderScale).append('\n');
+            sb.append("Effect passes: ").append(effectComposer.getPassCount()).append('\n');
+            sb.append(effectComposer.getGPUTimeSummary());
+        }
+        return sb.toString();
+    }
+
     private void renderWindowEffect(Drawable drawable, int x, int y, ShaderMaterial material) {
         // Implement the rendering effect logic here
         synchronized (drawable.renderLock) {
             Texture texture = drawable.getTexture();
-            texture.updateFromDrawable(drawable);
+            frameUploadedBytes += texture.updateFromDrawable(drawable);
 
             XForm.set(tmpXForm1, x, y, drawable.width, drawable.height);
             XForm.multiply(tmpXForm1, tmpXForm1, tmpXForm2);
@@ -439,6 +692,9 @@ public class GLRenderer implements GLSurfaceView.Renderer, WindowManager.OnWindo
     }
 
     public void setUnviewableWMClasses(String... unviewableWMNames) {
-        this.unviewableWMClasses = unviewableWMNames;
+        try (XLock lock = xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+            sceneGraph.setUnviewableWMClasses(unviewableWMNames);
+        }
+        requestRender(DIRTY_SCENE);
     }
 }
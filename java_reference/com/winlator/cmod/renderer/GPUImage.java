@@ -9,6 +9,9 @@ public class GPUImage extends Texture {
     private long imageKHRPtr;
     private ByteBuffer virtualData;
     private short stride;
+    private DrawCommandQueue commandQueue;
+    long drawSequence = 0;
+    volatile byte renderTargetState = DrawCommandQueue.RENDER_TARGET_UNKNOWN;
     private static boolean supported = false;
 
     static {
@@ -58,9 +61,10 @@ public class GPUImage extends Texture {
     }
 
     @Override
-    public void updateFromDrawable(Drawable drawable) {
+    public int updateFromDrawable(Drawable drawable) {
         if (!isAllocated()) allocateTexture(drawable.width, drawable.height, null);
         needsUpdate = false;
+        return 0;
     }
 
     public short getStride() {
@@ -76,8 +80,27 @@ public class GPUImage extends Texture {
         return virtualData;
     }
 
+    public DrawCommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    /**
+     * Lets the core drawing requests targeting this image run on the GPU through the given queue.
+     */
+    public void setCommandQueue(DrawCommandQueue commandQueue) {
+        this.commandQueue = commandQueue;
+    }
+
+    /**
+     * Waits for the pending GPU commands reading or writing this image, must be called before the mapped data is accessed.
+     */
+    public void waitForGPU() {
+        if (commandQueue != null) commandQueue.sync(this);
+    }
+
     @Override
     public void destroy() {
+        if (commandQueue != null) commandQueue.execute();
         if (imageKHRPtr != 0) {
             destroyImageKHR(imageKHRPtr);
             imageKHRPtr = 0;
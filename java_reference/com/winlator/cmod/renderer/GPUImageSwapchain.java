@@ -0,0 +1,223 @@
+package com.winlator.cmod.renderer;
+
+import android.opengl.GLES30;
+
+import com.winlator.cmod.xserver.DamageRegion;
+import com.winlator.cmod.xserver.Drawable;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring of GPUImages backing a window content, the X server draws into the back image while the
+ * renderer samples the last latched one. A frame is published once per Present, or lazily when the
+ * renderer latches a frame and the window was drawn to since, by handing the back image over through an
+ * atomic index and bringing a free image up to date by copying only the areas damaged since it was last
+ * published. An image the renderer stops sampling only becomes free again once the GPU has signaled the
+ * fence inserted after its last use, so the producer never writes into an image still being read.
+ * When no image is free the producer keeps drawing into the current back image and publishes later.
+ */
+public class GPUImageSwapchain extends Texture {
+    private static final int STATE_FREE = 0;
+    private static final int STATE_BACK = 1;
+    private static final int STATE_PENDING = 2;
+    private static final int STATE_FRONT = 3;
+    private static final int STATE_RETIRED = 4;
+    private static final AtomicLong presents = new AtomicLong();
+    private static final AtomicLong sampledFrames = new AtomicLong();
+    private static final AtomicLong droppedFrames = new AtomicLong();
+    private static final AtomicLong producerStalls = new AtomicLong();
+    private static final AtomicLong copiedBytes = new AtomicLong();
+    private final Drawable drawable;
+    private final GPUImage[] images;
+    private final AtomicIntegerArray states;
+    private final AtomicInteger pendingIndex = new AtomicInteger(-1);
+    private final DamageRegion[] staleRegions;
+    private final long[] fences;
+    private final int[] damagedRects = new int[DamageRegion.MAX_RECTS * 4];
+    private volatile boolean dirty = true;
+    private int backIndex = 0;
+    private int frontIndex = -1;
+
+    public GPUImageSwapchain(Drawable drawable, int size) {
+        this.drawable = drawable;
+        images = new GPUImage[Math.max(size, 2)];
+        states = new AtomicIntegerArray(images.length);
+        staleRegions = new DamageRegion[images.length];
+        fences = new long[images.length];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new GPUImage(drawable.width, drawable.height);
+            staleRegions[i] = new DamageRegion(drawable.width, drawable.height);
+        }
+        states.set(backIndex, STATE_BACK);
+    }
+
+    public boolean isValid() {
+        for (GPUImage image : images) {
+            if (image.getVirtualData() == null) return false;
+        }
+        return true;
+    }
+
+    public ByteBuffer getVirtualData() {
+        return images[backIndex].getVirtualData();
+    }
+
+    public short getStride() {
+        return images[backIndex].getStride();
+    }
+
+    @Override
+    public void setNeedsUpdate(boolean needsUpdate) {
+        super.setNeedsUpdate(needsUpdate);
+        if (needsUpdate) dirty = true;
+    }
+
+    /**
+     * Publishes the back image if it was drawn to, must be called with the producers of the drawable
+     * excluded (drawable lock or render lock held).
+     */
+    public synchronized void publish() {
+        if (!dirty) return;
+
+        int newBackIndex = -1;
+        for (int i = 1; i < images.length && newBackIndex == -1; i++) {
+            int index = (backIndex + i) % images.length;
+            if (states.compareAndSet(index, STATE_FREE, STATE_BACK)) newBackIndex = index;
+        }
+
+        if (newBackIndex == -1) {
+            producerStalls.incrementAndGet();
+            return;
+        }
+
+        int numRects = drawable.getDamageRegion().drain(damagedRects);
+        for (int i = 0; i < images.length; i++) {
+            if (i == backIndex) continue;
+            DamageRegion staleRegion = staleRegions[i];
+            if (numRects == DamageRegion.FULL) {
+                staleRegion.markFull();
+            }
+            else for (int j = 0; j < numRects; j++) {
+                staleRegion.add(damagedRects[j*4+0], damagedRects[j*4+1], damagedRects[j*4+2] - damagedRects[j*4+0], damagedRects[j*4+3] - damagedRects[j*4+1]);
+            }
+        }
+        staleRegions[backIndex].drain(damagedRects);
+        copyStaleAreas(images[backIndex], newBackIndex);
+
+        int publishedIndex = backIndex;
+        states.set(publishedIndex, STATE_PENDING);
+        int droppedIndex = pendingIndex.getAndSet(publishedIndex);
+        if (droppedIndex != -1) {
+            states.set(droppedIndex, STATE_FREE);
+            droppedFrames.incrementAndGet();
+        }
+
+        backIndex = newBackIndex;
+        drawable.replaceData(images[newBackIndex].getVirtualData());
+        dirty = false;
+        presents.incrementAndGet();
+    }
+
+    private void copyStaleAreas(GPUImage src, int dstIndex) {
+        GPUImage dst = images[dstIndex];
+        short srcStride = src.getStride();
+        short dstStride = dst.getStride();
+        int numRects = staleRegions[dstIndex].drain(damagedRects);
+        if (numRects == DamageRegion.FULL) {
+            Drawable.copyArea((short)0, (short)0, (short)0, (short)0, drawable.width, drawable.height, srcStride, dstStride, src.getVirtualData(), dst.getVirtualData());
+            copiedBytes.addAndGet(drawable.width * drawable.height * 4);
+            return;
+        }
+
+        for (int i = 0; i < numRects; i++) {
+            short x = (short)damagedRects[i*4+0];
+            short y = (short)damagedRects[i*4+1];
+            short width = (short)(damagedRects[i*4+2] - x);
+            short height = (short)(damagedRects[i*4+3] - y);
+            Drawable.copyArea(x, y, x, y, width, height, srcStride, dstStride, src.getVirtualData(), dst.getVirtualData());
+            copiedBytes.addAndGet(width * height * 4);
+        }
+    }
+
+    /**
+     * Latches the last published image, publishing the back image first if it was drawn to since.
+     * Called on the GL thread while the drawing requests are excluded by the drawable manager lock.
+     */
+    @Override
+    public int updateFromDrawable(Drawable drawable) {
+        for (GPUImage image : images) {
+            if (!image.isAllocated()) image.allocateTexture(drawable.width, drawable.height, null);
+        }
+        needsUpdate = false;
+        releaseRetiredImages();
+
+        if (dirty && pendingIndex.get() == -1) {
+            synchronized (drawable.renderLock) {
+                publish();
+            }
+        }
+
+        int index = pendingIndex.getAndSet(-1);
+        if (index != -1) {
+            states.set(index, STATE_FRONT);
+            if (frontIndex != -1) {
+                // Covers every draw call that sampled the previous front image
+                fences[frontIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                states.set(frontIndex, STATE_RETIRED);
+            }
+            frontIndex = index;
+            sampledFrames.incrementAndGet();
+        }
+        return 0;
+    }
+
+    private void releaseRetiredImages() {
+        for (int i = 0; i < images.length; i++) {
+            if (states.get(i) != STATE_RETIRED) continue;
+            int status = GLES30.glClientWaitSync(fences[i], 0, 0);
+            if (status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED || status == GLES30.GL_WAIT_FAILED) {
+                GLES30.glDeleteSync(fences[i]);
+                fences[i] = 0;
+                states.set(i, STATE_FREE);
+            }
+        }
+    }
+
+    @Override
+    public boolean isLockFree() {
+        return true;
+    }
+
+    @Override
+    public boolean isAllocated() {
+        for (GPUImage image : images) {
+            if (!image.isAllocated()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getTextureId() {
+        return frontIndex != -1 ? images[frontIndex].getTextureId() : 0;
+    }
+
+    @Override
+    public void destroy() {
+        for (int i = 0; i < images.length; i++) {
+            if (fences[i] != 0) {
+                GLES30.glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+            images[i].destroy();
+        }
+    }
+
+    public static String getStatsSummary() {
+        return String.format(Locale.ENGLISH, "Swapchain: presents=%d sampled=%d dropped=%d producer stalls=%d copied=%dKB\n",
+            presents.get(), sampledFrames.get(), droppedFrames.get(), producerStalls.get(), copiedBytes.get() / 1024);
+    }
+}
@@ -6,6 +6,9 @@ import android.opengl.GLES20;
 public class RenderTarget extends Texture {
     // Field to store the OpenGL framebuffer ID.
     private int framebuffer;
+    // Size of the texture attached to the framebuffer.
+    private int width;
+    private int height;
 
     // Constructor
     public RenderTarget() {
@@ -27,9 +30,14 @@ public class RenderTarget extends Texture {
     public void allocateFramebuffer(int width, int height) {
         // Check if the framebuffer is already allocated.
         if (framebuffer != 0) {
-            return; // If the framebuffer is already allocated, return.
+            // Reallocate the texture storage if the size changed, the framebuffer attachment stays valid.
+            if (width != this.width || height != this.height) resize(width, height);
+            return;
         }
 
+        this.width = width;
+        this.height = height;
+
         // Generate the framebuffer if not already done.
         generateFramebuffer();
 
@@ -70,8 +78,41 @@ public class RenderTarget extends Texture {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
 
+    // Reallocates the texture image with a new size.
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, GLES20.GL_UNSIGNED_BYTE, null
+        );
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
     // Returns the framebuffer ID.
     public int getFramebuffer() {
         return framebuffer;
     }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Deletes the framebuffer along with its texture.
+    @Override
+    public void destroy() {
+        if (framebuffer != 0) {
+            int[] framebuffers = new int[]{framebuffer};
+            GLES20.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+            framebuffer = 0;
+        }
+        super.destroy();
+    }
 }
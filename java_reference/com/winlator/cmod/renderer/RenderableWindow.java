@@ -3,13 +3,38 @@ package com.winlator.cmod.renderer;
 import com.winlator.cmod.xserver.Drawable;
 
 class RenderableWindow {
-    final Drawable content;
+    static final byte VIEWABILITY_UNKNOWN = 0;
+    static final byte VIEWABILITY_VIEWABLE = 1;
+    static final byte VIEWABILITY_UNVIEWABLE = 2;
+    Drawable content;
     short rootX;
     short rootY;
+    boolean opaque;
+    boolean occluded;
+    boolean listed;
+    byte viewability = VIEWABILITY_UNKNOWN;
 
     public RenderableWindow(Drawable content, int rootX, int rootY) {
-        this.content = content;
         this.rootX = (short) rootX;
         this.rootY = (short) rootY;
+        setContent(content);
+    }
+
+    void setContent(Drawable content) {
+        this.content = content;
+        // Only 32 bit visuals carry an alpha channel
+        this.opaque = content != null && (content.visual == null || content.visual.depth != 32);
+    }
+
+    boolean covers(RenderableWindow other) {
+        if (content == null || other.content == null) return false;
+        return rootX <= other.rootX && rootY <= other.rootY &&
+               rootX + content.width >= other.rootX + other.content.width &&
+               rootY + content.height >= other.rootY + other.content.height;
+    }
+
+    boolean isOutside(int width, int height) {
+        if (content == null) return true;
+        return rootX >= width || rootY >= height || rootX + content.width <= 0 || rootY + content.height <= 0;
     }
 }
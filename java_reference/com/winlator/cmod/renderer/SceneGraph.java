@@ -0,0 +1,231 @@
+package com.winlator.cmod.renderer;
+
+import android.util.SparseArray;
+
+import com.winlator.cmod.xserver.Window;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Render list of the viewable windows in painter's order, maintained incrementally from the window
+ * manager deltas instead of being rebuilt from the whole window tree. All the update methods must be
+ * called with the WINDOW_MANAGER lock held, the renderer only reads a copy of the list through copyTo().
+ */
+class SceneGraph {
+    private final Window rootWindow;
+    private final ArrayList<RenderableWindow> windows = new ArrayList<>();
+    private final SparseArray<RenderableWindow> entries = new SparseArray<>();
+    private String[] unviewableWMClasses = null;
+    private int version = 0;
+    private int copiedVersion = -1;
+
+    public SceneGraph(Window rootWindow) {
+        this.rootWindow = rootWindow;
+    }
+
+    public synchronized void setUnviewableWMClasses(String[] unviewableWMClasses) {
+        this.unviewableWMClasses = unviewableWMClasses;
+        for (int i = 0; i < entries.size(); i++) entries.valueAt(i).viewability = RenderableWindow.VIEWABILITY_UNKNOWN;
+        rebuild();
+    }
+
+    public synchronized void rebuild() {
+        for (RenderableWindow entry : windows) entry.listed = false;
+        windows.clear();
+        for (Window child : rootWindow.getChildren()) addSubtree(child, windows.size());
+        version++;
+    }
+
+    public synchronized void mapWindow(Window window) {
+        if (!isShown(window)) return;
+        addSubtree(window, findInsertionIndex(window));
+        version++;
+    }
+
+    public synchronized void unmapWindow(Window window) {
+        if (removeSubtree(window)) version++;
+    }
+
+    public synchronized void changeWindowZOrder(Window window) {
+        if (!isShown(window)) return;
+        removeSubtree(window);
+        addSubtree(window, findInsertionIndex(window));
+        version++;
+    }
+
+    /**
+     * The subtree of the window itself is unchanged and still contiguous in the render list, it is taken out
+     * of its old position and inserted again at the new one with fresh root coordinates.
+     */
+    public synchronized void reparentWindow(Window window) {
+        boolean changed = removeSubtree(window);
+        if (isShown(window)) {
+            addSubtree(window, findInsertionIndex(window));
+            changed = true;
+        }
+        if (changed) version++;
+    }
+
+    public synchronized void updateWindowGeometry(Window window, boolean resized) {
+        RenderableWindow entry = entries.get(window.id);
+        if (resized && entry != null) entry.setContent(window.getContent());
+        if (!isShown(window)) return;
+        updatePositions(window, window.getRootX(), window.getRootY());
+        version++;
+    }
+
+    public synchronized void updateWindowClass(Window window) {
+        RenderableWindow entry = entries.get(window.id);
+        if (entry == null) return;
+        entry.viewability = RenderableWindow.VIEWABILITY_UNKNOWN;
+        if (!isShown(window)) return;
+        if (entry.listed) {
+            if (!isViewable(window, entry)) {
+                windows.remove(entry);
+                entry.listed = false;
+                version++;
+            }
+        }
+        else if (isViewable(window, entry)) {
+            windows.add(findInsertionIndex(window), entry);
+            entry.listed = true;
+            version++;
+        }
+    }
+
+    public synchronized void freeWindow(Window window) {
+        RenderableWindow entry = entries.get(window.id);
+        if (entry == null) return;
+        if (entry.listed) {
+            windows.remove(entry);
+            version++;
+        }
+        entries.remove(window.id);
+    }
+
+    /**
+     * Copies the render list if it changed since the last call, returns false otherwise.
+     */
+    public synchronized boolean copyTo(ArrayList<RenderableWindow> renderableWindows) {
+        if (copiedVersion == version) return false;
+        renderableWindows.clear();
+        renderableWindows.addAll(windows);
+        copiedVersion = version;
+        return true;
+    }
+
+    private boolean isShown(Window window) {
+        if (window == rootWindow) return false;
+        while (window != rootWindow) {
+            if (window == null || !window.attributes.isMapped()) return false;
+            window = window.getParent();
+        }
+        return true;
+    }
+
+    private boolean isViewable(Window window, RenderableWindow entry) {
+        if (entry.viewability == RenderableWindow.VIEWABILITY_UNKNOWN) {
+            entry.viewability = RenderableWindow.VIEWABILITY_VIEWABLE;
+            if (unviewableWMClasses != null) {
+                String wmClass = window.getClassName();
+                for (String unviewableWMClass : unviewableWMClasses) {
+                    if (wmClass.contains(unviewableWMClass)) {
+                        entry.viewability = RenderableWindow.VIEWABILITY_UNVIEWABLE;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (entry.viewability == RenderableWindow.VIEWABILITY_UNVIEWABLE) {
+            if (window.attributes.isEnabled()) window.disableAllDescendants();
+            return false;
+        }
+        return true;
+    }
+
+    private int addSubtree(Window window, int index) {
+        if (!window.attributes.isMapped()) return index;
+        if (window.isInputOutput()) {
+            RenderableWindow entry = entries.get(window.id);
+            if (entry == null) entries.put(window.id, entry = new RenderableWindow(window.getContent(), 0, 0));
+            if (!entry.listed && isViewable(window, entry)) {
+                entry.rootX = window.getRootX();
+                entry.rootY = window.getRootY();
+                windows.add(index++, entry);
+                entry.listed = true;
+            }
+        }
+
+        for (Window child : window.getChildren()) index = addSubtree(child, index);
+        return index;
+    }
+
+    /** The listed windows of a subtree are contiguous in the render list, so they are removed as a single range. */
+    private boolean removeSubtree(Window window) {
+        RenderableWindow first = findFirstListed(window);
+        if (first == null) return false;
+        int start = windows.indexOf(first);
+        int count = countListed(window);
+        List<RenderableWindow> range = windows.subList(start, start + count);
+        for (RenderableWindow entry : range) entry.listed = false;
+        range.clear();
+        return true;
+    }
+
+    private RenderableWindow findFirstListed(Window window) {
+        RenderableWindow entry = entries.get(window.id);
+        if (entry != null && entry.listed) return entry;
+        for (Window child : window.getChildren()) {
+            entry = findFirstListed(child);
+            if (entry != null) return entry;
+        }
+        return null;
+    }
+
+    private RenderableWindow findLastListed(Window window) {
+        if (!window.attributes.isMapped()) return null;
+        List<Window> children = window.getChildren();
+        for (int i = children.size()-1; i >= 0; i--) {
+            RenderableWindow entry = findLastListed(children.get(i));
+            if (entry != null) return entry;
+        }
+        RenderableWindow entry = entries.get(window.id);
+        return entry != null && entry.listed ? entry : null;
+    }
+
+    private int countListed(Window window) {
+        RenderableWindow entry = entries.get(window.id);
+        int count = entry != null && entry.listed ? 1 : 0;
+        for (Window child : window.getChildren()) count += countListed(child);
+        return count;
+    }
+
+    /** Index right after the last listed window preceding the given window in painter's order. */
+    private int findInsertionIndex(Window window) {
+        while (window != rootWindow) {
+            Window parent = window.getParent();
+            List<Window> siblings = parent.getChildren();
+            for (int i = siblings.indexOf(window)-1; i >= 0; i--) {
+                RenderableWindow entry = findLastListed(siblings.get(i));
+                if (entry != null) return windows.indexOf(entry) + 1;
+            }
+
+            RenderableWindow entry = entries.get(parent.id);
+            if (entry != null && entry.listed) return windows.indexOf(entry) + 1;
+            window = parent;
+        }
+        return 0;
+    }
+
+    private void updatePositions(Window window, int rootX, int rootY) {
+        if (!window.attributes.isMapped()) return;
+        RenderableWindow entry = entries.get(window.id);
+        if (entry != null) {
+            entry.rootX = (short)rootX;
+            entry.rootY = (short)rootY;
+        }
+        for (Window child : window.getChildren()) updatePositions(child, rootX + child.getX(), rootY + child.getY());
+    }
+}
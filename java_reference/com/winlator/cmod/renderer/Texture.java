@@ -2,8 +2,10 @@ package com.winlator.cmod.renderer;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 
 import com.winlator.cmod.XrActivity;
+import com.winlator.cmod.xserver.DamageRegion;
 import com.winlator.cmod.xserver.Drawable;
 
 import java.nio.ByteBuffer;
@@ -17,6 +19,9 @@ public class Texture {
     protected int format = GLES11Ext.GL_BGRA;
     protected boolean needsUpdate = true;
     protected byte unpackAlignment = 4; // or add a getter method
+    private final int[] damagedRects = new int[DamageRegion.MAX_RECTS * 4];
+    private ByteBuffer uploadView;
+    private ByteBuffer uploadViewSource;
 
 
     public void allocateTexture(short width, short height, ByteBuffer data) {
@@ -88,25 +93,65 @@ public class Texture {
         this.needsUpdate = needsUpdate;
     }
 
-    public void updateFromDrawable(Drawable drawable) {
+    /**
+     * Uploads the damaged parts of the drawable and returns the number of bytes sent to the GPU.
+     */
+    public int updateFromDrawable(Drawable drawable) {
         ByteBuffer data = drawable.getData();
-        if (data == null) return;
+        if (data == null) return 0;
 
         if (!isAllocated()) {
+            needsUpdate = false;
+            drawable.getDamageRegion().drain(damagedRects);
             allocateTexture(drawable.width, drawable.height, data);
+            return drawable.width * drawable.height * 4;
         }
         else if (needsUpdate) {
+            needsUpdate = false;
+            int numRects = drawable.getDamageRegion().drain(damagedRects);
+            int uploadedBytes = 0;
+
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, drawable.width, drawable.height, format, GLES20.GL_UNSIGNED_BYTE, data);
+            if (numRects == DamageRegion.FULL || numRects == 0) {
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, drawable.width, drawable.height, format, GLES20.GL_UNSIGNED_BYTE, data);
+                uploadedBytes = drawable.width * drawable.height * 4;
+            }
+            else {
+                if (uploadView == null || uploadViewSource != data) {
+                    uploadView = data.duplicate();
+                    uploadViewSource = data;
+                }
+
+                GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, drawable.width);
+                for (int i = 0; i < numRects; i++) {
+                    int x = damagedRects[i*4+0];
+                    int y = damagedRects[i*4+1];
+                    int width = damagedRects[i*4+2] - x;
+                    int height = damagedRects[i*4+3] - y;
+                    uploadView.position((x + y * drawable.width) * 4);
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, width, height, format, GLES20.GL_UNSIGNED_BYTE, uploadView);
+                    uploadedBytes += width * height * 4;
+                }
+                GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+                uploadView.rewind();
+            }
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-            needsUpdate = false;
+            return uploadedBytes;
         }
+        return 0;
     }
 
     public boolean isAllocated() {
         return textureId > 0;
     }
 
+    /**
+     * Whether the texture can be sampled without holding the render lock of its drawable.
+     */
+    public boolean isLockFree() {
+        return false;
+    }
+
     public int getTextureId() {
         return textureId;
     }
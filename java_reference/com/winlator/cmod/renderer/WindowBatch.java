@@ -0,0 +1,190 @@
+package com.winlator.cmod.renderer;
+
+import android.opengl.GLES20;
+
+import com.winlator.cmod.renderer.material.WindowMaterial;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the window quads of a frame into one vertex buffer and splits them into draw calls that
+ * share the blend state and up to WindowMaterial.MAX_TEXTURES window textures, each bound to its own unit.
+ */
+class WindowBatch {
+    private static final int FLOATS_PER_VERTEX = 5;
+    private static final int VERTICES_PER_WINDOW = 6;
+    private final int maxTextures;
+    private FloatBuffer vertices = allocateVertices(64);
+    private int bufferId = 0;
+    private int bufferCapacity = 0;
+    private int batchCount = 0;
+    private int[] batchFirstWindow = new int[16];
+    private boolean[] batchBlend = new boolean[16];
+    private int[] batchTextures;
+    private int[] batchTextureCount = new int[16];
+    private final int[] boundTextures;
+    private int windowCount = 0;
+    private int drawCalls = 0;
+    private int stateChanges = 0;
+
+    public WindowBatch(int maxTextures) {
+        this.maxTextures = maxTextures;
+        batchTextures = new int[16 * maxTextures];
+        boundTextures = new int[maxTextures];
+    }
+
+    public void begin() {
+        vertices.clear();
+        windowCount = 0;
+        batchCount = 0;
+        drawCalls = 0;
+        stateChanges = 0;
+    }
+
+    public void add(int textureId, boolean blend, float x, float y, float width, float height) {
+        int batch = batchCount - 1;
+        int unit = -1;
+        if (batch >= 0 && batchBlend[batch] == blend) {
+            int offset = batch * maxTextures;
+            for (int i = 0; i < batchTextureCount[batch]; i++) {
+                if (batchTextures[offset + i] == textureId) {
+                    unit = i;
+                    break;
+                }
+            }
+            if (unit == -1 && batchTextureCount[batch] < maxTextures) {
+                unit = batchTextureCount[batch]++;
+                batchTextures[offset + unit] = textureId;
+            }
+        }
+
+        if (unit == -1) {
+            batch = addBatch(blend);
+            unit = batchTextureCount[batch]++;
+            batchTextures[batch * maxTextures + unit] = textureId;
+        }
+
+        if (vertices.remaining() < VERTICES_PER_WINDOW * FLOATS_PER_VERTEX) {
+            FloatBuffer newVertices = allocateVertices(vertices.capacity() / FLOATS_PER_VERTEX * 2);
+            vertices.flip();
+            newVertices.put(vertices);
+            vertices = newVertices;
+        }
+
+        float x1 = x + width;
+        float y1 = y + height;
+        putVertex(x, y, 0, 0, unit);
+        putVertex(x, y1, 0, 1, unit);
+        putVertex(x1, y, 1, 0, unit);
+        putVertex(x1, y, 1, 0, unit);
+        putVertex(x, y1, 0, 1, unit);
+        putVertex(x1, y1, 1, 1, unit);
+        windowCount++;
+    }
+
+    /**
+     * Uploads the vertices and issues the draw calls, the material must be in use. Leaves blending
+     * enabled and texture unit 0 active.
+     */
+    public void draw(WindowMaterial material) {
+        if (windowCount == 0) return;
+        if (bufferId == 0) {
+            int[] bufferIds = new int[1];
+            GLES20.glGenBuffers(1, bufferIds, 0);
+            bufferId = bufferIds[0];
+            bufferCapacity = 0;
+        }
+
+        int size = vertices.position() * 4;
+        vertices.flip();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferId);
+        if (size > bufferCapacity) {
+            bufferCapacity = vertices.capacity() * 4;
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, bufferCapacity, null, GLES20.GL_STREAM_DRAW);
+        }
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, size, vertices);
+        stateChanges++;
+
+        int stride = FLOATS_PER_VERTEX * 4;
+        GLES20.glEnableVertexAttribArray(material.positionLocation);
+        GLES20.glVertexAttribPointer(material.positionLocation, 2, GLES20.GL_FLOAT, false, stride, 0);
+        GLES20.glEnableVertexAttribArray(material.texCoordLocation);
+        GLES20.glVertexAttribPointer(material.texCoordLocation, 2, GLES20.GL_FLOAT, false, stride, 8);
+        GLES20.glEnableVertexAttribArray(material.textureIndexLocation);
+        GLES20.glVertexAttribPointer(material.textureIndexLocation, 1, GLES20.GL_FLOAT, false, stride, 16);
+
+        for (int i = 0; i < maxTextures; i++) boundTextures[i] = 0;
+        boolean blend = true;
+        for (int batch = 0; batch < batchCount; batch++) {
+            if (batchBlend[batch] != blend) {
+                blend = batchBlend[batch];
+                if (blend) {
+                    GLES20.glEnable(GLES20.GL_BLEND);
+                }
+                else GLES20.glDisable(GLES20.GL_BLEND);
+                stateChanges++;
+            }
+
+            int offset = batch * maxTextures;
+            for (int unit = 0; unit < batchTextureCount[batch]; unit++) {
+                int textureId = batchTextures[offset + unit];
+                if (boundTextures[unit] == textureId) continue;
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+                boundTextures[unit] = textureId;
+                stateChanges++;
+            }
+
+            int firstWindow = batchFirstWindow[batch];
+            int lastWindow = batch + 1 < batchCount ? batchFirstWindow[batch+1] : windowCount;
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, firstWindow * VERTICES_PER_WINDOW, (lastWindow - firstWindow) * VERTICES_PER_WINDOW);
+            drawCalls++;
+        }
+
+        if (!blend) GLES20.glEnable(GLES20.GL_BLEND);
+        for (int unit = maxTextures-1; unit >= 0; unit--) {
+            if (boundTextures[unit] == 0) continue;
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        GLES20.glDisableVertexAttribArray(material.positionLocation);
+        GLES20.glDisableVertexAttribArray(material.texCoordLocation);
+        GLES20.glDisableVertexAttribArray(material.textureIndexLocation);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public int getStateChanges() {
+        return stateChanges;
+    }
+
+    private int addBatch(boolean blend) {
+        if (batchCount == batchFirstWindow.length) {
+            int length = batchCount * 2;
+            batchFirstWindow = Arrays.copyOf(batchFirstWindow, length);
+            batchBlend = Arrays.copyOf(batchBlend, length);
+            batchTextureCount = Arrays.copyOf(batchTextureCount, length);
+            batchTextures = Arrays.copyOf(batchTextures, length * maxTextures);
+        }
+        batchFirstWindow[batchCount] = windowCount;
+        batchBlend[batchCount] = blend;
+        batchTextureCount[batchCount] = 0;
+        return batchCount++;
+    }
+
+    private void putVertex(float x, float y, float u, float v, int unit) {
+        vertices.put(x).put(y).put(u).put(v).put(unit);
+    }
+
+    private static FloatBuffer allocateVertices(int vertexCount) {
+        return ByteBuffer.allocateDirect(vertexCount * FLOATS_PER_VERTEX * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
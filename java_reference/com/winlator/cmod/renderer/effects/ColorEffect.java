@@ -46,6 +46,34 @@ public class ColorEffect extends Effect {
         this.gamma = gamma;
     }
 
+    @Override
+    public String getColorFunction() {
+        return String.join("\n", new CharSequence[]{
+                "uniform float brightness$;",
+                "uniform float contrast$;",
+                "uniform float gamma$;",
+                "vec4 applyColor$(vec4 texelColor) {",
+                "    vec3 color = texelColor.rgb;",
+                "    color = clamp(color + brightness$, 0.0, 1.0);",
+                "    color = (color - 0.5) * clamp(contrast$ + 1.0, 0.5, 2.0) + 0.5;",
+                "    color = pow(color, vec3(1.0 / gamma$));",
+                "    return vec4(color, texelColor.a);",
+                "}"
+        });
+    }
+
+    @Override
+    public String[] getColorFunctionUniforms() {
+        return new String[]{"brightness", "contrast", "gamma"};
+    }
+
+    @Override
+    public void setColorFunctionUniforms(ShaderMaterial material, String suffix) {
+        material.setUniformFloat("brightness"+suffix, Math.max(-1.0f, Math.min(brightness, 1.0f)));
+        material.setUniformFloat("contrast"+suffix, Math.max(0.0f, Math.min(contrast, 2.0f)));
+        material.setUniformFloat("gamma"+suffix, Math.max(0.1f, Math.min(gamma, 5.0f)));
+    }
+
     // Inner class implementing the Color effect shader material
     private class ColorEffectMaterial extends ScreenMaterial {
         public ColorEffectMaterial() {
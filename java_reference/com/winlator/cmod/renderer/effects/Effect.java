@@ -25,4 +25,25 @@ public abstract class Effect {
         }
         return material;
     }
+
+    // Sets the uniforms of the effect on the material of the pass it is rendered in
+    public void setUniforms(ShaderMaterial material) {}
+
+    // Effects that only transform the color of each pixel return the GLSL source of "vec4 applyColor$(vec4 color)"
+    // (with its uniforms suffixed by $), EffectComposer fuses them into the previous pass instead of adding a new one
+    public String getColorFunction() {
+        return null;
+    }
+
+    // Uniform names used by the color function, without the $ suffix
+    public String[] getColorFunctionUniforms() {
+        return new String[0];
+    }
+
+    // Sets the uniforms of the color function when fused into another pass
+    public void setColorFunctionUniforms(ShaderMaterial material, String suffix) {}
+
+    public boolean isFusible() {
+        return getColorFunction() != null;
+    }
 }
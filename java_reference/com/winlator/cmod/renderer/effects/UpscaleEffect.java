@@ -0,0 +1,78 @@
+package com.winlator.cmod.renderer.effects;
+
+import com.winlator.cmod.renderer.material.ScreenMaterial;
+import com.winlator.cmod.renderer.material.ShaderMaterial;
+
+public class UpscaleEffect extends Effect {
+    private float sharpness = 0.5f;
+
+    public UpscaleEffect() {
+        super(); // Calls the constructor of the superclass Effect
+    }
+
+    // Creates and returns the ShaderMaterial for this effect
+    @Override
+    protected ShaderMaterial createMaterial() {
+        return new UpscaleMaterial();
+    }
+
+    public float getSharpness() {
+        return sharpness;
+    }
+
+    public void setSharpness(float sharpness) {
+        this.sharpness = sharpness;
+    }
+
+    @Override
+    public void setUniforms(ShaderMaterial material) {
+        material.setUniformFloat("sharpness", Math.max(0.0f, Math.min(sharpness, 1.0f)));
+    }
+
+    // Inner class implementing the upscale shader material, textureSize is the size of the low resolution source
+    private class UpscaleMaterial extends ScreenMaterial {
+        public UpscaleMaterial() {
+            super();
+            setUniformNames("resolution", "screenTexture", "textureSize", "sharpness");
+        }
+
+        @Override
+        protected String getFragmentShader() {
+            // Interpolates along the local edge direction instead of across it, then applies a contrast
+            // adaptive sharpening clamped to the neighbourhood range so that it does not produce halos.
+            return String.join("\n", new CharSequence[]{
+                    "precision highp float;",
+                    "#define EDGE_THRESHOLD 0.02",
+                    "uniform sampler2D screenTexture;",
+                    "uniform vec2 textureSize;",
+                    "uniform float sharpness;",
+                    "varying vec2 vUV;",
+                    "const vec3 luma = vec3(0.299, 0.587, 0.114);",
+                    "void main() {",
+                    "    vec2 texel = 1.0 / textureSize;",
+                    "    vec2 nearest = (floor(vUV * textureSize) + 0.5) * texel;",
+                    "    vec3 c = texture2D(screenTexture, nearest).rgb;",
+                    "    vec3 n = texture2D(screenTexture, nearest - vec2(0.0, texel.y)).rgb;",
+                    "    vec3 s = texture2D(screenTexture, nearest + vec2(0.0, texel.y)).rgb;",
+                    "    vec3 w = texture2D(screenTexture, nearest - vec2(texel.x, 0.0)).rgb;",
+                    "    vec3 e = texture2D(screenTexture, nearest + vec2(texel.x, 0.0)).rgb;",
+                    "    vec4 bilinear = texture2D(screenTexture, vUV);",
+                    "    vec2 gradient = vec2(dot(e - w, luma), dot(s - n, luma));",
+                    "    float edge = length(gradient);",
+                    "    vec3 color = bilinear.rgb;",
+                    "    if (edge > EDGE_THRESHOLD) {",
+                    "        vec2 dir = vec2(-gradient.y, gradient.x) / edge * texel * 0.75;",
+                    "        vec3 along = 0.5 * (texture2D(screenTexture, vUV + dir).rgb + texture2D(screenTexture, vUV - dir).rgb);",
+                    "        color = mix(color, along, clamp(edge * 4.0, 0.0, 1.0) * 0.5);",
+                    "    }",
+                    "    vec3 minColor = min(c, min(min(n, s), min(w, e)));",
+                    "    vec3 maxColor = max(c, max(max(n, s), max(w, e)));",
+                    "    float contrast = dot(maxColor - minColor, luma);",
+                    "    float amount = sharpness * (1.0 - clamp(contrast * 2.0, 0.0, 1.0));",
+                    "    color += (color - (n + s + w + e) * 0.25) * amount;",
+                    "    gl_FragColor = vec4(clamp(color, minColor, maxColor), bilinear.a);",
+                    "}"
+            });
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package com.winlator.cmod.renderer.material;
 
 public class CursorMaterial extends ShaderMaterial {
+    public int xformLocation = -1;
+    public int viewSizeLocation = -1;
+    public int textureLocation = -1;
+
     public CursorMaterial() {
         setUniformNames("xform", "viewSize", "texture");
     }
 
+    @Override
+    protected void resolveLocations() {
+        xformLocation = getUniformLocation("xform");
+        viewSizeLocation = getUniformLocation("viewSize");
+        textureLocation = getUniformLocation("texture");
+    }
+
     @Override
     protected String getVertexShader() {
         return
@@ -0,0 +1,58 @@
+package com.winlator.cmod.renderer.material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Single pass material made of an optional base screen material followed by a chain of per-pixel
+ * color functions, the output of the base shader is fed to each color function in order.
+ */
+public class FusedScreenMaterial extends ScreenMaterial {
+    private final ShaderMaterial baseMaterial;
+    private final String[] colorFunctions;
+
+    public FusedScreenMaterial(ShaderMaterial baseMaterial, String[] colorFunctions, String[][] colorFunctionUniforms) {
+        super();
+        this.baseMaterial = baseMaterial;
+        this.colorFunctions = colorFunctions;
+
+        ArrayList<String> uniformNames = new ArrayList<>(Arrays.asList("resolution", "screenTexture"));
+        if (baseMaterial != null) {
+            for (String name : baseMaterial.getUniformNames()) {
+                if (!uniformNames.contains(name)) uniformNames.add(name);
+            }
+        }
+        for (int i = 0; i < colorFunctionUniforms.length; i++) {
+            for (String name : colorFunctionUniforms[i]) uniformNames.add(name+getSuffix(i));
+        }
+        setUniformNames(uniformNames.toArray(new String[0]));
+    }
+
+    public static String getSuffix(int index) {
+        return "_"+index;
+    }
+
+    @Override
+    protected String getFragmentShader() {
+        String baseShader = baseMaterial != null ? baseMaterial.getFragmentShader() : String.join("\n", new CharSequence[]{
+            "precision highp float;",
+            "uniform sampler2D screenTexture;",
+            "varying vec2 vUV;",
+            "void main() {",
+            "    gl_FragColor = texture2D(screenTexture, vUV);",
+            "}"
+        });
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(baseShader.replace("gl_FragColor", "baseColor").replace("void main()", "vec4 baseColor;\nvoid baseMain()")).append('\n');
+        for (int i = 0; i < colorFunctions.length; i++) sb.append(colorFunctions[i].replace("$", getSuffix(i))).append('\n');
+
+        sb.append("void main() {\n");
+        sb.append("    baseMain();\n");
+        sb.append("    vec4 color = baseColor;\n");
+        for (int i = 0; i < colorFunctions.length; i++) sb.append("    color = applyColor").append(getSuffix(i)).append("(color);\n");
+        sb.append("    gl_FragColor = color;\n");
+        sb.append("}");
+        return sb.toString();
+    }
+}
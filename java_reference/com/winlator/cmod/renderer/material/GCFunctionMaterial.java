@@ -0,0 +1,91 @@
+package com.winlator.cmod.renderer.material;
+
+/**
+ * Copies a rectangle of the source texture into the bound framebuffer applying a GC function,
+ * channels are combined bitwise the same way as Drawable.copyAreaOp() and the destination alpha is kept.
+ * COPY takes the source texel as is (alpha included) and does not read the destination.
+ */
+public class GCFunctionMaterial extends ShaderMaterial {
+    public int rectLocation = -1;
+    public int targetSizeLocation = -1;
+    public int srcTextureLocation = -1;
+    public int dstTextureLocation = -1;
+    public int srcOffsetLocation = -1;
+    public int dstOffsetLocation = -1;
+    public int functionLocation = -1;
+
+    public GCFunctionMaterial() {
+        setUniformNames("rect", "targetSize", "srcTexture", "dstTexture", "srcOffset", "dstOffset", "function");
+    }
+
+    @Override
+    protected void resolveLocations() {
+        rectLocation = getUniformLocation("rect");
+        targetSizeLocation = getUniformLocation("targetSize");
+        srcTextureLocation = getUniformLocation("srcTexture");
+        dstTextureLocation = getUniformLocation("dstTexture");
+        srcOffsetLocation = getUniformLocation("srcOffset");
+        dstOffsetLocation = getUniformLocation("dstOffset");
+        functionLocation = getUniformLocation("function");
+    }
+
+    @Override
+    protected String getVertexShader() {
+        return
+            "#version 300 es\n" +
+            "uniform vec4 rect;\n" +
+            "uniform vec2 targetSize;\n" +
+            "in vec2 position;\n" +
+
+            "void main() {\n" +
+                "vec2 p = (rect.xy + position * rect.zw) / targetSize;\n" +
+                "gl_Position = vec4(p * 2.0 - 1.0, 0.0, 1.0);\n" +
+            "}"
+        ;
+    }
+
+    @Override
+    protected String getFragmentShader() {
+        return
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+
+            "uniform highp sampler2D srcTexture;\n" +
+            "uniform highp sampler2D dstTexture;\n" +
+            "uniform ivec2 srcOffset;\n" +
+            "uniform ivec2 dstOffset;\n" +
+            "uniform int function;\n" +
+            "out vec4 fragColor;\n" +
+
+            "void main() {\n" +
+                "ivec2 p = ivec2(gl_FragCoord.xy);\n" +
+                "vec4 srcColor = texelFetch(srcTexture, p + srcOffset, 0);\n" +
+                "if (function == 3) {\n" +
+                    "fragColor = srcColor;\n" +
+                    "return;\n" +
+                "}\n" +
+                "vec4 dstColor = texelFetch(dstTexture, p + dstOffset, 0);\n" +
+                "uvec3 s = uvec3(srcColor.rgb * 255.0 + 0.5);\n" +
+                "uvec3 d = uvec3(dstColor.rgb * 255.0 + 0.5);\n" +
+                "uvec3 r;\n" +
+                "if (function == 0) r = uvec3(0u);\n" +
+                "else if (function == 1) r = s & d;\n" +
+                "else if (function == 2) r = s & ~d;\n" +
+                "else if (function == 4) r = ~s & d;\n" +
+                "else if (function == 6) r = s ^ d;\n" +
+                "else if (function == 7) r = s | d;\n" +
+                "else if (function == 8) r = ~s & ~d;\n" +
+                "else if (function == 9) r = ~s ^ d;\n" +
+                "else if (function == 10) r = ~d;\n" +
+                "else if (function == 11) r = s | ~d;\n" +
+                "else if (function == 12) r = ~s;\n" +
+                "else if (function == 13) r = ~s | d;\n" +
+                "else if (function == 14) r = ~s | ~d;\n" +
+                "else if (function == 15) r = uvec3(255u);\n" +
+                "else r = d;\n" +
+                "fragColor = vec4(vec3(r & 255u) / 255.0, dstColor.a);\n" +
+            "}"
+        ;
+    }
+}
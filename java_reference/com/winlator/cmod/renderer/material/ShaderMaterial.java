@@ -15,6 +15,12 @@ public class ShaderMaterial {
         for (String name : names) uniforms.put(name, -1);
     }
 
+    public String[] getUniformNames() {
+        String[] names = new String[uniforms.size()];
+        for (int i = 0; i < names.length; i++) names[i] = uniforms.keyAt(i);
+        return names;
+    }
+
     protected static int compileShaders(String vertexShader, String fragmentShader) {
         int beginIndex = vertexShader.indexOf("void main() {");
         vertexShader = vertexShader.substring(0, beginIndex) +
@@ -62,18 +68,20 @@ public class ShaderMaterial {
     }
 
     public void use() {
-        if (programId == 0) programId = compileShaders(getVertexShader(), getFragmentShader());
-        GLES20.glUseProgram(programId);
-
-        for (int i = 0; i < uniforms.size(); i++) {
-            int location = uniforms.valueAt(i);
-            if (location == -1) {
-                String name = uniforms.keyAt(i);
-                uniforms.put(name, GLES20.glGetUniformLocation(programId, name));
-            }
+        if (programId == 0) {
+            programId = compileShaders(getVertexShader(), getFragmentShader());
+            for (int i = 0; i < uniforms.size(); i++) uniforms.setValueAt(i, GLES20.glGetUniformLocation(programId, uniforms.keyAt(i)));
+            resolveLocations();
         }
+        GLES20.glUseProgram(programId);
     }
 
+    /**
+     * Called once after the program is linked, subclasses used on hot paths keep their uniform and
+     * attribute locations in fields instead of looking them up by name on every draw.
+     */
+    protected void resolveLocations() {}
+
     public int getUniformLocation(String name) {
         Integer location = uniforms.get(name);
         if (location == null) {
@@ -1,8 +1,32 @@
 package com.winlator.cmod.renderer.material;
 
+import android.opengl.GLES20;
+
+/**
+ * Draws a batch of windows in a single call, every vertex carries its root position, texture
+ * coordinates and the index of the texture unit holding the window content.
+ */
 public class WindowMaterial extends ShaderMaterial {
+    public static final int MAX_TEXTURES = 8;
+    public int xformLocation = -1;
+    public int viewSizeLocation = -1;
+    public int texturesLocation = -1;
+    public int positionLocation = -1;
+    public int texCoordLocation = -1;
+    public int textureIndexLocation = -1;
+
     public WindowMaterial() {
-        setUniformNames("xform", "viewSize", "texture");
+        setUniformNames("xform", "viewSize", "textures");
+    }
+
+    @Override
+    protected void resolveLocations() {
+        xformLocation = getUniformLocation("xform");
+        viewSizeLocation = getUniformLocation("viewSize");
+        texturesLocation = getUniformLocation("textures");
+        positionLocation = GLES20.glGetAttribLocation(programId, "position");
+        texCoordLocation = GLES20.glGetAttribLocation(programId, "texCoord");
+        textureIndexLocation = GLES20.glGetAttribLocation(programId, "textureIndex");
     }
 
     @Override
@@ -11,10 +35,14 @@ public class WindowMaterial extends ShaderMaterial {
             "uniform float xform[6];\n" +
             "uniform vec2 viewSize;\n" +
             "attribute vec2 position;\n" +
+            "attribute vec2 texCoord;\n" +
+            "attribute float textureIndex;\n" +
             "varying vec2 vUV;\n" +
+            "varying float vTextureIndex;\n" +
 
             "void main() {\n" +
-                "vUV = position;\n" +
+                "vUV = texCoord;\n" +
+                "vTextureIndex = textureIndex;\n" +
                 "vec2 transformedPos = applyXForm(position, xform);\n" +
                 "gl_Position = vec4(2.0 * transformedPos.x / viewSize.x - 1.0, 1.0 - 2.0 * transformedPos.y / viewSize.y, 0.0, 1.0);\n" +
             "}"
@@ -23,15 +51,21 @@ public class WindowMaterial extends ShaderMaterial {
 
     @Override
     protected String getFragmentShader() {
-        return
-            "precision mediump float;\n" +
-
-            "uniform sampler2D texture;\n" +
-            "varying vec2 vUV;\n" +
-
-            "void main() {\n" +
-                "gl_FragColor = vec4(texture2D(texture, vUV).rgb, 1.0);\n" +
-            "}"
-        ;
+        // Samplers can only be indexed with constant expressions in GLSL ES 1.0
+        StringBuilder sb = new StringBuilder();
+        sb.append("precision mediump float;\n");
+        sb.append("uniform sampler2D textures[").append(MAX_TEXTURES).append("];\n");
+        sb.append("varying vec2 vUV;\n");
+        sb.append("varying float vTextureIndex;\n");
+        sb.append("void main() {\n");
+        sb.append("vec3 color;\n");
+        for (int i = 0; i < MAX_TEXTURES; i++) {
+            if (i > 0) sb.append("else ");
+            if (i < MAX_TEXTURES - 1) sb.append("if (vTextureIndex < ").append(i).append(".5) ");
+            sb.append("color = texture2D(textures[").append(i).append("], vUV).rgb;\n");
+        }
+        sb.append("gl_FragColor = vec4(color, 1.0);\n");
+        sb.append("}");
+        return sb.toString();
     }
 }
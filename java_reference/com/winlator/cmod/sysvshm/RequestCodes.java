@@ -4,4 +4,5 @@ public abstract class RequestCodes {
     public static final byte SHMGET = 0;
     public static final byte GET_FD = 1;
     public static final byte DELETE = 2;
+    public static final byte SHMGET_KEY = 3;
 }
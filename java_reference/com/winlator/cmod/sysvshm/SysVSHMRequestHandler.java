@@ -42,6 +42,18 @@ public class SysVSHMRequestHandler implements RequestHandler {
                 sysVSharedMemory.delete(shmid);
                 break;
             }
+            case RequestCodes.SHMGET_KEY: {
+                if (inputStream.available() < 12) return false;
+                int key = inputStream.readInt();
+                long size = inputStream.readUnsignedInt();
+                int flags = inputStream.readInt();
+                int shmid = sysVSharedMemory.get(key, size, flags);
+
+                try (XStreamLock lock = outputStream.lock()) {
+                    outputStream.writeInt(shmid);
+                }
+                break;
+            }
         }
         return true;
     }
@@ -2,26 +2,50 @@ package com.winlator.cmod.sysvshm;
 
 import android.os.SharedMemory;
 import android.system.ErrnoException;
-import android.util.SparseArray;
 
 import com.winlator.cmod.xconnector.XConnectorEpoll;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+
+/**
+ * Registry of the SysV shared memory segments, indexed by shmid, by key and by mapping (identity, since
+ * ByteBuffer equality compares contents). Attachments are refcounted and deleted segments are only released
+ * once the last attachment is gone. Regions are never reused, the fd of a segment is handed to guest
+ * processes which may still have it mapped (or their forked children) without the server knowing.
+ */
 public class SysVSharedMemory {
-    private final SparseArray<SHMemory> shmemories = new SparseArray<>();
+    public static final int IPC_PRIVATE = 0;
+    public static final int IPC_CREAT = 01000;
+    public static final int IPC_EXCL = 02000;
+    private static final int ENOENT = 2;
+    private static final int ENOMEM = 12;
+    private static final int EEXIST = 17;
+    private static final int EINVAL = 22;
+    private final HashMap<Integer, SHMemory> shmemories = new HashMap<>();
+    private final HashMap<Integer, SHMemory> shmemoriesByKey = new HashMap<>();
+    private final IdentityHashMap<ByteBuffer, SHMemory> shmemoriesByData = new IdentityHashMap<>();
     private int maxSHMemoryId = 0;
+    private int createdCount = 0;
+    private int releasedCount = 0;
 
     static {
         System.loadLibrary("winlator");
     }
 
     private static class SHMemory {
+        private int id;
+        private int key = IPC_PRIVATE;
         private int fd;
         private long size;
         private ByteBuffer data;
+        private int attachCount = 0;
+        private boolean deleted = false;
     }
 
     public int getFd(int shmid) {
@@ -32,35 +56,78 @@ public class SysVSharedMemory {
     }
 
     public int get(long size) {
+        return get(IPC_PRIVATE, size, IPC_CREAT);
+    }
+
+    /**
+     * Follows shmget() semantics, returns the shmid or a negative errno. A segment found by key is returned
+     * as is unless IPC_CREAT and IPC_EXCL are both set.
+     */
+    public int get(int key, long size, int flags) {
         synchronized (shmemories) {
-            int index = shmemories.size();
+            if (key != IPC_PRIVATE) {
+                SHMemory shmemory = shmemoriesByKey.get(key);
+                if (shmemory != null) {
+                    if ((flags & IPC_CREAT) != 0 && (flags & IPC_EXCL) != 0) return -EEXIST;
+                    if (size > shmemory.size) return -EINVAL;
+                    return shmemory.id;
+                }
+                else if ((flags & IPC_CREAT) == 0) return -ENOENT;
+            }
+
+            if (size <= 0) return -EINVAL;
+            int index = maxSHMemoryId + 1;
             int fd = ashmemCreateRegion(index, size);
             if (fd < 0) fd = createSharedMemory("sysvshm-"+index, (int)size);
-            if (fd < 0) return -1;
+            if (fd < 0) return -ENOMEM;
 
             SHMemory shmemory = new SHMemory();
-            int id = ++maxSHMemoryId;
+            shmemory.id = ++maxSHMemoryId;
             shmemory.fd = fd;
             shmemory.size = size;
-            shmemories.put(id, shmemory);
-            return id;
+            shmemory.key = key;
+            shmemories.put(shmemory.id, shmemory);
+            if (key != IPC_PRIVATE) shmemoriesByKey.put(key, shmemory);
+            createdCount++;
+            return shmemory.id;
         }
     }
 
     public void delete(int shmid) {
-        SHMemory shmemory = shmemories.get(shmid);
-        if (shmemory != null) {
-            if (shmemory.fd != -1) {
-                XConnectorEpoll.closeFd(shmemory.fd);
-                shmemory.fd = -1;
-            }
-            shmemories.remove(shmid);
+        synchronized (shmemories) {
+            SHMemory shmemory = shmemories.remove(shmid);
+            if (shmemory == null) return;
+
+            if (shmemory.key != IPC_PRIVATE) shmemoriesByKey.remove(shmemory.key);
+            shmemory.deleted = true;
+            if (shmemory.attachCount == 0) release(shmemory);
+        }
+    }
+
+    private void release(SHMemory shmemory) {
+        if (shmemory.data != null) {
+            shmemoriesByData.remove(shmemory.data);
+            unmapSHMSegment(shmemory.data, shmemory.size);
+            shmemory.data = null;
         }
+
+        if (shmemory.fd != -1) {
+            XConnectorEpoll.closeFd(shmemory.fd);
+            shmemory.fd = -1;
+        }
+        releasedCount++;
     }
 
     public void deleteAll() {
         synchronized (shmemories) {
-            for (int i = shmemories.size() - 1; i >= 0; i--) delete(shmemories.keyAt(i));
+            for (SHMemory shmemory : shmemories.values()) release(shmemory);
+            // Deleted segments that are still attached are only reachable through their mapping
+            for (SHMemory shmemory : new ArrayList<>(shmemoriesByData.values())) {
+                if (shmemory.deleted && shmemory.attachCount > 0) release(shmemory);
+            }
+            shmemories.clear();
+            shmemoriesByKey.clear();
+            shmemoriesByData.clear();
         }
     }
 
@@ -68,26 +135,36 @@ public class SysVSharedMemory {
         synchronized (shmemories) {
             SHMemory shmemory = shmemories.get(shmid);
             if (shmemory != null) {
-                if (shmemory.data == null) shmemory.data = mapSHMSegment(shmemory.fd, shmemory.size, 0, false);
+                if (shmemory.data == null) {
+                    shmemory.data = mapSHMSegment(shmemory.fd, shmemory.size, 0, false);
+                    if (shmemory.data == null) return null;
+                    shmemoriesByData.put(shmemory.data, shmemory);
+                }
 
+                shmemory.attachCount++;
                 return shmemory.data;
             }
             else return null;
         }
     }
 
+    /**
+     * Drops one attachment of the segment mapped at data. The mapping is kept for the next attach, it is
+     * only unmapped when the deleted segment is released.
+     */
     public void detach(ByteBuffer data) {
         synchronized (shmemories) {
-            for (int i = 0; i < shmemories.size(); i++) {
-                SHMemory shmemory = shmemories.valueAt(i);
-                if (shmemory.data == data) {
-                    if (shmemory.data != null) {
-                        unmapSHMSegment(shmemory.data, shmemory.size);
-                        shmemory.data = null;
-                    }
-                    break;
-                }
-            }
+            SHMemory shmemory = shmemoriesByData.get(data);
+            if (shmemory == null || shmemory.attachCount == 0) return;
+
+            if (--shmemory.attachCount == 0 && shmemory.deleted) release(shmemory);
+        }
+    }
+
+    public String getStatsSummary() {
+        synchronized (shmemories) {
+            return String.format(Locale.ENGLISH, "SysV SHM: segments=%d created=%d released=%d\n",
+                shmemories.size(), createdCount, releasedCount);
         }
     }
 
@@ -111,7 +188,9 @@ public class SysVSharedMemory {
 
     private static native int ashmemCreateRegion(int index, long size);
 
+    public static native long getRegionSize(int fd);
+
     public static native ByteBuffer mapSHMSegment(int fd, long size, int offset, boolean readonly);
 
     public static native void unmapSHMSegment(ByteBuffer data, long size);
-}
\ No newline at end of file
+}
@@ -12,6 +12,7 @@ import android.widget.TextView;
 
 import com.winlator.cmod.R;
 
+import com.winlator.cmod.alsaserver.ALSAClient;
 import com.winlator.cmod.container.Container;
 import com.winlator.cmod.container.Shortcut;
 import com.winlator.cmod.core.GPUInformation;
@@ -30,6 +31,8 @@ public class FrameRating extends FrameLayout implements Runnable {
     private final TextView tvRenderer;
     private final TextView tvGPU;
     private final TextView tvRAM;
+    private final View llAudio;
+    private final TextView tvAudio;
     private HashMap graphicsDriverConfig;
 
     public FrameRating(Context context, HashMap graphicsDriverConfig) {
@@ -50,6 +53,8 @@ public class FrameRating extends FrameLayout implements Runnable {
         tvGPU = view.findViewById(R.id.TVGPU);
         tvGPU.setText(GPUInformation.getRenderer(graphicsDriverConfig.get("version").toString(), context));
         tvRAM = view.findViewById(R.id.TVRAM);
+        llAudio = view.findViewById(R.id.LLAudio);
+        tvAudio = view.findViewById(R.id.TVAudio);
         totalRAM = getTotalRAM();
         this.graphicsDriverConfig = graphicsDriverConfig;
         addView(view);
@@ -104,5 +109,9 @@ public class FrameRating extends FrameLayout implements Runnable {
         if (getVisibility() == GONE) setVisibility(View.VISIBLE);
         tvFPS.setText(String.format(Locale.ENGLISH, "%.1f", lastFPS));
         tvRAM.setText(getAvailableRAM() + " GB Used / " + totalRAM + " Total");
+
+        String audioSummary = ALSAClient.getOverlaySummary();
+        llAudio.setVisibility(audioSummary != null ? View.VISIBLE : View.GONE);
+        if (audioSummary != null) tvAudio.setText(audioSummary);
     }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package com.winlator.cmod.xconnector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Direct buffers grouped in power of two size classes, shared by the client streams so that growing
+ * buffers and new connections reuse native memory instead of waiting for the GC to reclaim it.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE_CLASS = 12;
+    public static final int MAX_SIZE_CLASS = 26;
+    private static final BufferPool sharedPool = new BufferPool();
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+    private int maxBuffersPerClass = 4;
+    private long maxPooledBytes = 64 * 1024 * 1024;
+    private long pooledBytes = 0;
+    private long allocations = 0;
+    private long reuses = 0;
+    private long discards = 0;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool() {
+        freeBuffers = new ArrayDeque[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (int i = 0; i < freeBuffers.length; i++) freeBuffers[i] = new ArrayDeque<>();
+    }
+
+    public static BufferPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Returns a cleared big endian direct buffer of at least the given capacity, rounded up to its size class.
+     * Requests above the largest size class are allocated exactly and never pooled.
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass > MAX_SIZE_CLASS) return ByteBuffer.allocateDirect(capacity);
+
+        synchronized (this) {
+            ByteBuffer buffer = freeBuffers[sizeClass - MIN_SIZE_CLASS].pollLast();
+            if (buffer != null) {
+                pooledBytes -= buffer.capacity();
+                reuses++;
+                buffer.clear();
+                return buffer;
+            }
+            allocations++;
+        }
+        return ByteBuffer.allocateDirect(1 << sizeClass);
+    }
+
+    /**
+     * Gives the buffer back to the pool, the caller must not keep any reference to it (including slices).
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int capacity = buffer.capacity();
+        int sizeClass = getSizeClass(capacity);
+        if (capacity != (1 << sizeClass) || sizeClass > MAX_SIZE_CLASS) return;
+
+        ArrayDeque<ByteBuffer> buffers = freeBuffers[sizeClass - MIN_SIZE_CLASS];
+        if (buffers.size() >= maxBuffersPerClass || pooledBytes + capacity > maxPooledBytes) {
+            discards++;
+            return;
+        }
+
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffers.addLast(buffer);
+        pooledBytes += capacity;
+    }
+
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> buffers : freeBuffers) buffers.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized void setMaxBuffersPerClass(int maxBuffersPerClass) {
+        this.maxBuffersPerClass = maxBuffersPerClass;
+    }
+
+    public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized long getDiscards() {
+        return discards;
+    }
+
+    private static int getSizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SIZE_CLASS)) return MIN_SIZE_CLASS;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "allocations=%d reuses=%d discards=%d pooled=%dKB", allocations, reuses, discards, pooledBytes / 1024);
+    }
+}
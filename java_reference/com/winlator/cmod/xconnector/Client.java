@@ -13,6 +13,10 @@ public class Client {
     protected Thread pollThread;
     protected int shutdownFd;
     protected boolean connected;
+    protected volatile boolean suspended;
+    protected boolean scheduled;
+    protected boolean readPending;
+    protected boolean resumePending;
 
     public Client(XConnectorEpoll connector, ClientSocket clientSocket) {
         this.connector = connector;
@@ -25,6 +29,7 @@ public class Client {
         outputStream = new XOutputStream(clientSocket, connector.getInitialOutputBufferCapacity());
         inputStream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
         outputStream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        if (connector.getFlushScheduler() != null) outputStream.setDeferredFlush(connector.getFlushScheduler(), connector.getEventFlushDelay());
     }
 
     public XInputStream getInputStream() {
@@ -43,6 +48,18 @@ public class Client {
         this.tag = tag;
     }
 
+    public boolean suspend() {
+        return connector.suspendClient(this);
+    }
+
+    public void resume() {
+        connector.resumeClient(this);
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
     protected void requestShutdown() {
         try {
             ByteBuffer data = ByteBuffer.allocateDirect(8);
@@ -1,7 +1,5 @@
 package com.winlator.cmod.xconnector;
 
-import android.util.Log;
-
 import androidx.annotation.Keep;
 
 import java.io.IOException;
@@ -51,7 +49,19 @@ public class ClientSocket {
         if (bytesWritten >= 0) {
             data.position(bytesWritten);
         }
-        else Log.d("ClientSocket", "Failed to write data.");
+        else throw new IOException("Failed to write data.");
+    }
+
+    /**
+     * Writes the header (from 0 to its limit) followed by rows of the given direct buffer and zero padding
+     * with a single gather write, without copying the rows into an intermediate buffer.
+     */
+    public void writeRows(ByteBuffer header, ByteBuffer data, int offset, int rowLength, int stride, int rows, int padding) throws IOException {
+        int bytesWritten = writeRows(fd, header, header.limit(), data, offset, rowLength, stride, rows, padding);
+        if (bytesWritten >= 0) {
+            header.position(header.limit());
+        }
+        else throw new IOException("Failed to write rows.");
     }
 
     public int recvAncillaryMsg(ByteBuffer data) throws IOException {
@@ -79,6 +89,8 @@ public class ClientSocket {
 
     private native int write(int fd, ByteBuffer data, int length);
 
+    private native int writeRows(int fd, ByteBuffer header, int headerLength, ByteBuffer data, int offset, int rowLength, int stride, int rows, int padding);
+
     private native int recvAncillaryMsg(int clientFd, ByteBuffer data, int offset, int length);
 
     private native int sendAncillaryMsg(int clientFd, ByteBuffer data, int length, int ancillaryFd);
@@ -6,6 +6,11 @@ import androidx.annotation.Keep;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class XConnectorEpoll implements Runnable {
     private final ConnectionHandler connectionHandler;
@@ -13,13 +18,22 @@ public class XConnectorEpoll implements Runnable {
     private final int epollFd;
     private final int serverFd;
     private final int shutdownFd;
+    private final int wakeupFd;
     private Thread epollThread;
     private boolean running = false;
     private boolean multithreadedClients = false;
     private boolean canReceiveAncillaryMessages = false;
     private int initialInputBufferCapacity = 4096;
     private int initialOutputBufferCapacity = 4096;
+    private int eventFlushDelay = 0;
+    private int workerThreads = 0;
+    private ExecutorService workerPool;
+    private ScheduledExecutorService flushScheduler;
     private final SparseArray<Client> connectedClients = new SparseArray<>();
+    private final ArrayDeque<Client> resumedClients = new ArrayDeque<>();
+    private final ByteBuffer wakeupData = ByteBuffer.allocateDirect(8);
+    // Written as is by any thread, the native write always starts at 0 and the limit never changes
+    private final ByteBuffer signalData = ByteBuffer.allocateDirect(8).putLong(0, 1);
 
     static {
         System.loadLibrary("winlator");
@@ -54,12 +68,23 @@ public class XConnectorEpoll implements Runnable {
             throw new RuntimeException("Failed to add shutdown fd to epoll.");
         }
 
+        wakeupFd = createEventFd();
+        if (!addFdToEpoll(epollFd, wakeupFd)) {
+            closeFd(serverFd);
+            closeFd(shutdownFd);
+            closeFd(wakeupFd);
+            closeFd(epollFd);
+            throw new RuntimeException("Failed to add wakeup fd to epoll.");
+        }
+
         epollThread = new Thread(this);
     }
 
     public synchronized void start() {
         if (running || epollThread == null) return;
         running = true;
+        if (eventFlushDelay > 0) flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        if (workerThreads > 0 && !multithreadedClients) workerPool = Executors.newFixedThreadPool(workerThreads);
         epollThread.start();
     }
 
@@ -75,6 +100,11 @@ public class XConnectorEpoll implements Runnable {
             catch (InterruptedException e) {}
         }
         epollThread = null;
+
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+            flushScheduler = null;
+        }
     }
 
     @Override
@@ -95,22 +125,38 @@ public class XConnectorEpoll implements Runnable {
             });
             client.pollThread.start();
         }
-        else connectionHandler.handleNewConnection(client);
-        connectedClients.put(fd, client);
+        else {
+            connectionHandler.handleNewConnection(client);
+            if (workerPool != null) rearmFdInEpoll(epollFd, fd);
+        }
+
+        synchronized (connectedClients) {
+            connectedClients.put(fd, client);
+        }
     }
 
     @Keep
     private void handleExistingConnection(int fd) {
-        Client client = connectedClients.get(fd);
+        if (fd == wakeupFd) {
+            handleResumedClients();
+            return;
+        }
+
+        Client client = getClient(fd);
         if (client == null) return;
 
+        if (workerPool != null) {
+            scheduleClient(client, true, false);
+        }
+        else readAndProcessRequests(client);
+    }
+
+    private void readAndProcessRequests(Client client) {
         XInputStream inputStream = client.getInputStream();
         try {
             if (inputStream != null) {
                 if (inputStream.readMoreData(canReceiveAncillaryMessages) > 0) {
-                    int activePosition = 0;
-                    while (running && requestHandler.handleRequest(client)) activePosition = inputStream.getActivePosition();
-                    inputStream.setActivePosition(activePosition);
+                    if (!client.suspended) processRequests(client);
                 }
                 else killConnection(client);
             }
@@ -121,12 +167,127 @@ public class XConnectorEpoll implements Runnable {
         }
     }
 
+    /**
+     * Hands the client to the worker pool, a client is never dispatched by more than one worker at a time
+     * and its socket stays disarmed (EPOLLONESHOT) until the worker is done reading from it.
+     */
+    private void scheduleClient(Client client, boolean readPending, boolean resumePending) {
+        synchronized (client) {
+            client.readPending |= readPending;
+            client.resumePending |= resumePending;
+            if (client.scheduled) return;
+            client.scheduled = true;
+        }
+        workerPool.execute(() -> dispatchClient(client));
+    }
+
+    private void dispatchClient(Client client) {
+        while (true) {
+            boolean readPending, resumePending;
+            synchronized (client) {
+                readPending = client.readPending;
+                resumePending = client.resumePending;
+                client.readPending = false;
+                client.resumePending = false;
+                if (!readPending && !resumePending) {
+                    client.scheduled = false;
+                    return;
+                }
+            }
+
+            if (!client.connected) continue;
+            if (resumePending) resumeRequests(client);
+            if (readPending) {
+                readAndProcessRequests(client);
+                if (client.connected) rearmFdInEpoll(epollFd, client.clientSocket.fd);
+            }
+        }
+    }
+
+    private void processRequests(Client client) throws IOException {
+        XInputStream inputStream = client.getInputStream();
+        XOutputStream outputStream = client.getOutputStream();
+        int activePosition = inputStream.getActivePosition();
+        if (outputStream != null) outputStream.cork();
+        try {
+            while (running && !client.suspended && requestHandler.handleRequest(client)) activePosition = inputStream.getActivePosition();
+        }
+        finally {
+            if (outputStream != null) outputStream.uncork();
+        }
+        inputStream.setActivePosition(activePosition);
+    }
+
+    /**
+     * Stops dispatching the requests of a client, the ones already received stay buffered until
+     * resumeClient() is called. Must be called from the request handler of that client,
+     * returns false if the connector cannot suspend clients (multithreaded clients).
+     */
+    public boolean suspendClient(Client client) {
+        if (multithreadedClients || client.getInputStream() == null) return false;
+        client.suspended = true;
+        return true;
+    }
+
+    /**
+     * Can be called from any thread, the buffered requests are dispatched on the epoll thread.
+     */
+    public void resumeClient(Client client) {
+        if (workerPool != null) {
+            scheduleClient(client, false, true);
+            return;
+        }
+
+        synchronized (resumedClients) {
+            resumedClients.add(client);
+        }
+
+        try {
+            (new ClientSocket(wakeupFd)).write(signalData);
+        }
+        catch (IOException e) {}
+    }
+
+    private void handleResumedClients() {
+        try {
+            wakeupData.clear();
+            (new ClientSocket(wakeupFd)).read(wakeupData);
+        }
+        catch (IOException e) {}
+
+        while (true) {
+            Client client;
+            synchronized (resumedClients) {
+                client = resumedClients.poll();
+            }
+            if (client == null) break;
+            resumeRequests(client);
+        }
+    }
+
+    private void resumeRequests(Client client) {
+        if (!client.connected || !client.suspended || getClient(client.clientSocket.fd) != client) return;
+
+        client.suspended = false;
+        try {
+            processRequests(client);
+        }
+        catch (IOException e) {
+            killConnection(client);
+        }
+    }
+
     public Client getClient(int fd) {
-        return connectedClients.get(fd);
+        synchronized (connectedClients) {
+            return connectedClients.get(fd);
+        }
     }
 
     public void killConnection(Client client) {
-        client.connected = false;
+        synchronized (client) {
+            if (!client.connected) return;
+            client.connected = false;
+        }
         connectionHandler.handleConnectionShutdown(client);
         if (multithreadedClients) {
             if (Thread.currentThread() != client.pollThread) {
@@ -144,20 +305,39 @@ public class XConnectorEpoll implements Runnable {
             closeFd(client.shutdownFd);
         }
         else removeFdFromEpoll(epollFd, client.clientSocket.fd);
+        if (client.getOutputStream() != null) client.getOutputStream().shutdown();
+        if (client.getInputStream() != null) client.getInputStream().release();
+        synchronized (connectedClients) {
+            connectedClients.remove(client.clientSocket.fd);
+        }
         closeFd(client.clientSocket.fd);
-        connectedClients.remove(client.clientSocket.fd);
     }
 
     private void shutdown() {
-        while (connectedClients.size() > 0) {
-            Client client = connectedClients.valueAt(connectedClients.size()-1);
+        if (workerPool != null) {
+            workerPool.shutdown();
+            try {
+                workerPool.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {}
+            workerPool = null;
+        }
+
+        while (true) {
+            Client client;
+            synchronized (connectedClients) {
+                if (connectedClients.size() == 0) break;
+                client = connectedClients.valueAt(connectedClients.size()-1);
+            }
             killConnection(client);
         }
 
         removeFdFromEpoll(epollFd, serverFd);
         removeFdFromEpoll(epollFd, shutdownFd);
+        removeFdFromEpoll(epollFd, wakeupFd);
         closeFd(serverFd);
         closeFd(shutdownFd);
+        closeFd(wakeupFd);
         closeFd(epollFd);
     }
 
@@ -177,6 +357,34 @@ public class XConnectorEpoll implements Runnable {
         this.initialOutputBufferCapacity = initialOutputBufferCapacity;
     }
 
+    public int getEventFlushDelay() {
+        return eventFlushDelay;
+    }
+
+    /**
+     * Delay in milliseconds used to coalesce events written outside of request dispatching
+     * (e.g. injected input), 0 flushes them immediately. Must be set before start().
+     */
+    public void setEventFlushDelay(int eventFlushDelay) {
+        this.eventFlushDelay = eventFlushDelay;
+    }
+
+    protected ScheduledExecutorService getFlushScheduler() {
+        return flushScheduler;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Number of threads dispatching client requests, 0 dispatches everything on the epoll thread.
+     * Must be set before start(), ignored when multithreadedClients is enabled.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
     public boolean isMultithreadedClients() {
         return multithreadedClients;
     }
@@ -195,9 +403,7 @@ public class XConnectorEpoll implements Runnable {
 
     private void requestShutdown() {
         try {
-            ByteBuffer data = ByteBuffer.allocateDirect(8);
-            data.asLongBuffer().put(1);
-            (new ClientSocket(shutdownFd)).write(data);
+            (new ClientSocket(shutdownFd)).write(signalData);
         }
         catch (IOException e) {}
     }
@@ -214,6 +420,8 @@ public class XConnectorEpoll implements Runnable {
 
     private native void removeFdFromEpoll(int epollFd, int fd);
 
+    private native boolean rearmFdInEpoll(int epollFd, int fd);
+
     private native boolean waitForSocketRead(int clientFd, int shutdownFd);
 
     private native int createAFUnixSocket(String path);
@@ -9,6 +9,7 @@ import java.nio.ByteOrder;
 public class XInputStream {
     private ByteBuffer activeBuffer;
     private ByteBuffer buffer;
+    private int requiredCapacity = 0;
     public final ClientSocket clientSocket;
 
     public XInputStream(int initialCapacity) {
@@ -17,7 +18,7 @@ public class XInputStream {
 
     public XInputStream(ClientSocket clientSocket, int initialCapacity) {
         this.clientSocket = clientSocket;
-        this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+        this.buffer = BufferPool.getSharedPool().acquire(initialCapacity);
     }
 
     public int readMoreData(boolean canReceiveAncillaryMessages) throws IOException {
@@ -50,12 +51,33 @@ public class XInputStream {
     }
 
     private void growInputBufferIfNecessary() {
-        if (buffer.position() == buffer.capacity()) {
-            ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity() * 2).order(buffer.order());
-            buffer.rewind();
+        int capacity = buffer.capacity();
+        if (buffer.position() == capacity || requiredCapacity > capacity) {
+            ByteBuffer newBuffer = BufferPool.getSharedPool().acquire(Math.max(capacity * 2, requiredCapacity)).order(buffer.order());
+            buffer.flip();
             newBuffer.put(buffer);
+            BufferPool.getSharedPool().release(buffer);
             buffer = newBuffer;
         }
+        requiredCapacity = 0;
+    }
+
+    /**
+     * Hint that the request at the active position spans the given number of bytes, so that the next read
+     * grows the buffer once to hold all of it instead of doubling (and copying) several times.
+     */
+    public void setRequiredCapacity(int requiredCapacity) {
+        this.requiredCapacity = requiredCapacity;
+    }
+
+    /**
+     * Returns the buffer to the pool, must be called from the thread reading the stream once the connection is closed.
+     */
+    public void release() {
+        if (buffer == null) return;
+        activeBuffer = null;
+        BufferPool.getSharedPool().release(buffer);
+        buffer = null;
     }
 
     public void setByteOrder(ByteOrder byteOrder) {
@@ -5,14 +5,27 @@ import com.winlator.cmod.xserver.XServer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class XOutputStream {
     private static final byte[] ZERO = new byte[64];
+    private static final int MIN_GATHER_WRITE_LENGTH = 65536;
     public ByteBuffer buffer;
     public final ClientSocket clientSocket;
     private final ReentrantLock lock = new ReentrantLock();
+    private final OutputStreamLock streamLock = new OutputStreamLock();
     private int ancillaryFd = -1;
+    private boolean corked = false;
+    private boolean closed = false;
+    private boolean flushScheduled = false;
+    private IOException writeError;
+    private ScheduledExecutorService flushScheduler;
+    private int flushDelay = 0;
+    private long flushCount = 0;
+    private long flushedBytes = 0;
+    private final Runnable deferredFlush = this::deferredFlush;
 
     public XOutputStream(int initialCapacity) {
         this(null, initialCapacity);
@@ -20,7 +33,7 @@ public class XOutputStream {
 
     public XOutputStream(ClientSocket clientSocket, int initialCapacity) {
         this.clientSocket = clientSocket;
-        buffer = ByteBuffer.allocateDirect(initialCapacity);
+        buffer = BufferPool.getSharedPool().acquire(initialCapacity);
     }
 
     public void setByteOrder(ByteOrder byteOrder) {
@@ -77,42 +90,201 @@ public class XOutputStream {
         write(ZERO, 0, length);
     }
 
+    /**
+     * Reserves the given number of bytes and returns them as a slice for the caller to fill in place,
+     * avoiding an intermediate buffer for large replies. The slice is only valid until the next write.
+     */
+    public ByteBuffer reserve(int length) {
+        ensureSpaceIsAvailable(length);
+        int position = buffer.position();
+        ByteBuffer slice = buffer.slice().order(buffer.order());
+        slice.limit(length);
+        buffer.position(position + length);
+        return slice;
+    }
+
+    /**
+     * Writes rows of a direct buffer followed by zero padding. Large payloads are sent together with
+     * the pending data using a gather write straight from the source rows, skipping the output buffer.
+     */
+    public void writeRows(ByteBuffer data, int offset, int rowLength, int stride, int rows, int padding) throws IOException {
+        int length = rowLength * rows + padding;
+        if (length < MIN_GATHER_WRITE_LENGTH || clientSocket == null || closed || lock.getHoldCount() == 0) {
+            ByteBuffer dstData = reserve(length);
+            for (int i = 0, srcOffset = offset; i < rows; i++, srcOffset += stride) {
+                ByteBuffer row = data.duplicate();
+                row.limit(srcOffset + rowLength).position(srcOffset);
+                dstData.put(row);
+            }
+            while (dstData.hasRemaining()) dstData.put(ZERO, 0, Math.min(ZERO.length, dstData.remaining()));
+            return;
+        }
+
+        if (ancillaryFd != -1 || writeError != null) flush();
+        flushCount++;
+        flushedBytes += buffer.position() + length;
+        buffer.flip();
+        try {
+            clientSocket.writeRows(buffer, data, offset, rowLength, stride, rows, padding);
+        }
+        catch (IOException e) {
+            writeError = e;
+            throw e;
+        }
+        finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Defers flushing of locally written data when the stream is locked outside of a corked section,
+     * so that events coming from other threads (UI input, frame callbacks) are coalesced into a single write.
+     */
+    public void setDeferredFlush(ScheduledExecutorService flushScheduler, int flushDelay) {
+        lock.lock();
+        try {
+            this.flushScheduler = flushScheduler;
+            this.flushDelay = flushDelay;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * While corked, releasing the stream lock does not flush the buffer, everything written
+     * is sent with a single write when uncork() is called.
+     */
+    public void cork() {
+        lock.lock();
+        corked = true;
+        lock.unlock();
+    }
+
+    public void uncork() throws IOException {
+        lock.lock();
+        try {
+            corked = false;
+            flush();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the stream and returns its buffer to the pool, anything written afterwards is discarded.
+     */
+    public void shutdown() {
+        lock.lock();
+        if (!closed) {
+            closed = true;
+            ByteOrder byteOrder = buffer.order();
+            BufferPool.getSharedPool().release(buffer);
+            buffer = ByteBuffer.allocate(ZERO.length).order(byteOrder);
+        }
+        ancillaryFd = -1;
+        lock.unlock();
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getFlushedBytes() {
+        return flushedBytes;
+    }
+
+    public int getBytesPerFlush() {
+        long flushCount = this.flushCount;
+        return flushCount > 0 ? (int)(flushedBytes / flushCount) : 0;
+    }
+
+    /**
+     * Runs on the flush scheduler where nobody can handle a failure, flush() keeps the error and throws
+     * it again on the next flush so that the connector tears the client down from its own thread.
+     */
+    private void deferredFlush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (!corked) flush();
+        }
+        catch (IOException e) {}
+        finally {
+            lock.unlock();
+        }
+    }
+
     private void flush() throws IOException {
+        if (closed) return;
+        if (writeError != null) {
+            buffer.clear();
+            throw writeError;
+        }
         if (buffer.position() != 0) {
+            flushCount++;
+            flushedBytes += buffer.position();
             buffer.flip();
 
-            if (ancillaryFd != -1) {
-                clientSocket.sendAncillaryMsg(buffer, ancillaryFd);
-                ancillaryFd = -1;
+            try {
+                if (ancillaryFd != -1) {
+                    int fd = ancillaryFd;
+                    ancillaryFd = -1;
+                    clientSocket.sendAncillaryMsg(buffer, fd);
+                }
+                else clientSocket.write(buffer);
+            }
+            catch (IOException e) {
+                writeError = e;
+                throw e;
+            }
+            finally {
+                buffer.clear();
             }
-            else clientSocket.write(buffer);
-
-            buffer.clear();
         }
     }
 
     public XStreamLock lock() {
-        return new OutputStreamLock();
+        lock.lock();
+        return streamLock;
     }
 
     private void ensureSpaceIsAvailable(int length) {
         int position = buffer.position();
         if ((buffer.capacity() - position) >= length) return;
-        ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity() + length).order(buffer.order());
-        buffer.rewind();
-        newBuffer.put(buffer).position(position);
+        if (closed) {
+            buffer = ByteBuffer.allocate(Math.max(buffer.capacity(), length)).order(buffer.order());
+            return;
+        }
+
+        ByteBuffer newBuffer = BufferPool.getSharedPool().acquire(Math.max(buffer.capacity() * 2, position + length)).order(buffer.order());
+        buffer.flip();
+        newBuffer.put(buffer);
+        BufferPool.getSharedPool().release(buffer);
         buffer = newBuffer;
     }
 
     private class OutputStreamLock implements XStreamLock {
-        public OutputStreamLock() {
-            lock.lock();
-        }
-
         @Override
         public void close() throws IOException {
             try {
-                flush();
+                if (lock.getHoldCount() > 1) return;
+                if (closed) {
+                    buffer.clear();
+                }
+                else if (ancillaryFd != -1) {
+                    flush();
+                }
+                else if (!corked) {
+                    if (flushDelay > 0 && flushScheduler != null) {
+                        if (!flushScheduled) {
+                            flushScheduled = true;
+                            flushScheduler.schedule(deferredFlush, flushDelay, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    else flush();
+                }
             }
             finally {
                 lock.unlock();
@@ -1,6 +1,7 @@
 package com.winlator.cmod.xenvironment.components;
 
 import com.winlator.cmod.alsaserver.ALSAClientConnectionHandler;
+import com.winlator.cmod.alsaserver.ALSAMixer;
 import com.winlator.cmod.alsaserver.ALSARequestHandler;
 import com.winlator.cmod.xconnector.UnixSocketConfig;
 import com.winlator.cmod.xconnector.XConnectorEpoll;
@@ -9,15 +10,23 @@ import com.winlator.cmod.xenvironment.EnvironmentComponent;
 public class ALSAServerComponent extends EnvironmentComponent {
     private XConnectorEpoll connector;
     private final UnixSocketConfig socketConfig;
+    private final boolean mixingEnabled;
+    private ALSAMixer mixer;
 
     public ALSAServerComponent(UnixSocketConfig socketConfig) {
+        this(socketConfig, false);
+    }
+
+    public ALSAServerComponent(UnixSocketConfig socketConfig, boolean mixingEnabled) {
         this.socketConfig = socketConfig;
+        this.mixingEnabled = mixingEnabled;
     }
 
     @Override
     public void start() {
         if (connector != null) return;
-        connector = new XConnectorEpoll(socketConfig, new ALSAClientConnectionHandler(), new ALSARequestHandler());
+        if (mixingEnabled) mixer = new ALSAMixer();
+        connector = new XConnectorEpoll(socketConfig, new ALSAClientConnectionHandler(mixer), new ALSARequestHandler());
         connector.setMultithreadedClients(true);
         connector.start();
     }
@@ -28,5 +37,10 @@ public class ALSAServerComponent extends EnvironmentComponent {
             connector.stop();
             connector = null;
         }
+
+        if (mixer != null) {
+            mixer.release();
+            mixer = null;
+        }
     }
 }
@@ -1,31 +1,77 @@
 package com.winlator.cmod.xserver;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Atom table with lock free lookups, names are indexed by a concurrent hash map and ids by an append
+ * only array. Only interning a new atom takes the monitor.
+ */
 public abstract class Atom {
-    private static final ArrayList<String> atoms = new ArrayList<>(Arrays.asList(null, "PRIMARY", "SECONDARY", "ARC", "ATOM", "BITMAP", "CARDINAL", "COLORMAP", "CURSOR", "CUT_BUFFER0", "CUT_BUFFER1", "CUT_BUFFER2", "CUT_BUFFER3", "CUT_BUFFER4", "CUT_BUFFER5", "CUT_BUFFER6", "CUT_BUFFER7", "DRAWABLE", "FONT", "INTEGER", "PIXMAP", "POINT", "RECTANGLE", "RESOURCE_MANAGER", "RGB_COLOR_MAP", "RGB_BEST_MAP", "RGB_BLUE_MAP", "RGB_DEFAULT_MAP", "RGB_GRAY_MAP", "RGB_GREEN_MAP", "RGB_RED_MAP", "STRING", "VISUALID", "WINDOW", "WM_COMMAND", "WM_HINTS", "WM_CLIENT_MACHINE", "WM_ICON_NAME", "WM_ICON_SIZE", "WM_NAME", "WM_NORMAL_HINTS", "WM_SIZE_HINTS", "WM_ZOOM_HINTS", "MIN_SPACE", "NORM_SPACE", "MAX_SPACE", "END_SPACE", "SUPERSC.LPT_X", "SUPERSC.LPT_Y", "SUBSC.LPT_X", "SUBSC.LPT_Y", "UNDERLINE_POSITION", "UNDERLINE_THICKNESS", "STRIKEOUT_ASCENT", "STRIKEOUT_DESCENT", "ITALIC_ANGLE", "X_HEIGHT", "QUAD_WIDTH", "WEIGHT", "POINT_SIZE", "RESOLUTION", "COPYRIGHT", "NOTICE", "FONT_NAME", "FAMILY_NAME", "FULL_NAME", "CAP_HEIGHT", "WM_CLASS", "WM_TRANSIENT_FOR"));
+    private static final String[] predefinedAtoms = {null, "PRIMARY", "SECONDARY", "ARC", "ATOM", "BITMAP", "CARDINAL", "COLORMAP", "CURSOR", "CUT_BUFFER0", "CUT_BUFFER1", "CUT_BUFFER2", "CUT_BUFFER3", "CUT_BUFFER4", "CUT_BUFFER5", "CUT_BUFFER6", "CUT_BUFFER7", "DRAWABLE", "FONT", "INTEGER", "PIXMAP", "POINT", "RECTANGLE", "RESOURCE_MANAGER", "RGB_COLOR_MAP", "RGB_BEST_MAP", "RGB_BLUE_MAP", "RGB_DEFAULT_MAP", "RGB_GRAY_MAP", "RGB_GREEN_MAP", "RGB_RED_MAP", "STRING", "VISUALID", "WINDOW", "WM_COMMAND", "WM_HINTS", "WM_CLIENT_MACHINE", "WM_ICON_NAME", "WM_ICON_SIZE", "WM_NAME", "WM_NORMAL_HINTS", "WM_SIZE_HINTS", "WM_ZOOM_HINTS", "MIN_SPACE", "NORM_SPACE", "MAX_SPACE", "END_SPACE", "SUPERSC.LPT_X", "SUPERSC.LPT_Y", "SUBSC.LPT_X", "SUBSC.LPT_Y", "UNDERLINE_POSITION", "UNDERLINE_THICKNESS", "STRIKEOUT_ASCENT", "STRIKEOUT_DESCENT", "ITALIC_ANGLE", "X_HEIGHT", "QUAD_WIDTH", "WEIGHT", "POINT_SIZE", "RESOLUTION", "COPYRIGHT", "NOTICE", "FONT_NAME", "FAMILY_NAME", "FULL_NAME", "CAP_HEIGHT", "WM_CLASS", "WM_TRANSIENT_FOR"};
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names;
+    private static volatile int count;
 
-    public synchronized static String getName(int id) {
-        return atoms.get(id);
+    public static final int PRIMARY = 1;
+    public static final int ATOM = 4;
+    public static final int CARDINAL = 6;
+    public static final int INTEGER = 19;
+    public static final int RESOURCE_MANAGER = 23;
+    public static final int STRING = 31;
+    public static final int WINDOW = 33;
+    public static final int WM_HINTS = 35;
+    public static final int WM_ICON_NAME = 37;
+    public static final int WM_NAME = 39;
+    public static final int WM_NORMAL_HINTS = 40;
+    public static final int WM_CLASS = 67;
+    public static final int WM_TRANSIENT_FOR = 68;
+    public static final int _NET_WM_PID;
+    public static final int _NET_WM_WOW64;
+    public static final int _NET_WM_HWND;
+    public static final int UTF8_STRING;
+
+    static {
+        names = Arrays.copyOf(predefinedAtoms, 256);
+        for (int i = 1; i < predefinedAtoms.length; i++) ids.put(predefinedAtoms[i], i);
+        count = predefinedAtoms.length;
+
+        _NET_WM_PID = internAtom("_NET_WM_PID");
+        _NET_WM_WOW64 = internAtom("_NET_WM_WOW64");
+        _NET_WM_HWND = internAtom("_NET_WM_HWND");
+        UTF8_STRING = internAtom("UTF8_STRING");
     }
 
-    public synchronized static int getId(String name) {
+    public static String getName(int id) {
+        int count = Atom.count;
+        return id >= 0 && id < count ? names[id] : null;
+    }
+
+    public static int getId(String name) {
         if (name == null) return 0;
-        for (int i = 0; i < atoms.size(); i++) if (name.equals(atoms.get(i))) return i;
-        return -1;
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
     }
 
-    public synchronized static int internAtom(String name) {
+    public static int internAtom(String name) {
         int id = getId(name);
-        if (id == -1) {
-            id = atoms.size();
-            atoms.add(name);
+        if (id != -1) return id;
+
+        synchronized (Atom.class) {
+            id = getId(name);
+            if (id == -1) {
+                id = count;
+                if (id == names.length) names = Arrays.copyOf(names, id * 2);
+                names[id] = name;
+                // The name is published before the count so that readers never see an empty slot
+                count = id + 1;
+                ids.put(name, id);
+            }
         }
         return id;
     }
 
-    public synchronized static boolean isValid(int id) {
-        return id > 0 && id < atoms.size();
+    public static boolean isValid(int id) {
+        return id > 0 && id < count;
     }
 }
@@ -0,0 +1,130 @@
+package com.winlator.cmod.xserver;
+
+public class DamageRegion {
+    public static final int MAX_RECTS = 8;
+    public static final int FULL = -1;
+    private final short width;
+    private final short height;
+    private final int[] rects = new int[MAX_RECTS * 4];
+    private int count = 0;
+    private boolean full = true;
+
+    public DamageRegion(short width, short height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public synchronized void add(int x, int y, int width, int height) {
+        if (full) return;
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + width, this.width);
+        int y1 = Math.min(y + height, this.height);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        if (x0 == 0 && y0 == 0 && x1 == this.width && y1 == this.height) {
+            markFull();
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int j = i * 4;
+            if (x0 <= rects[j+2] && x1 >= rects[j] && y0 <= rects[j+3] && y1 >= rects[j+1]) {
+                unionAt(i, x0, y0, x1, y1);
+                coalesce(i);
+                return;
+            }
+        }
+
+        if (count == MAX_RECTS) {
+            int best = 0;
+            long bestGrowth = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int j = i * 4;
+                long growth = area(Math.min(x0, rects[j]), Math.min(y0, rects[j+1]), Math.max(x1, rects[j+2]), Math.max(y1, rects[j+3])) - area(rects[j], rects[j+1], rects[j+2], rects[j+3]);
+                if (growth < bestGrowth) {
+                    bestGrowth = growth;
+                    best = i;
+                }
+            }
+            unionAt(best, x0, y0, x1, y1);
+            coalesce(best);
+            return;
+        }
+
+        int j = count * 4;
+        rects[j] = x0;
+        rects[j+1] = y0;
+        rects[j+2] = x1;
+        rects[j+3] = y1;
+        count++;
+    }
+
+    public synchronized void markFull() {
+        full = true;
+        count = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return !full && count == 0;
+    }
+
+    /**
+     * Copies the accumulated rectangles as (x0, y0, x1, y1) quadruples into <code>out</code>
+     * and resets the region. Returns the number of rectangles or FULL if the whole drawable is damaged.
+     */
+    public synchronized int drain(int[] out) {
+        int result;
+        if (full) {
+            result = FULL;
+        }
+        else {
+            System.arraycopy(rects, 0, out, 0, count * 4);
+            result = count;
+        }
+        full = false;
+        count = 0;
+        return result;
+    }
+
+    private void unionAt(int index, int x0, int y0, int x1, int y1) {
+        int j = index * 4;
+        rects[j] = Math.min(rects[j], x0);
+        rects[j+1] = Math.min(rects[j+1], y0);
+        rects[j+2] = Math.max(rects[j+2], x1);
+        rects[j+3] = Math.max(rects[j+3], y1);
+    }
+
+    private void coalesce(int index) {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            int j = index * 4;
+            for (int i = 0; i < count; i++) {
+                if (i == index) continue;
+                int k = i * 4;
+                if (rects[j] <= rects[k+2] && rects[j+2] >= rects[k] && rects[j+1] <= rects[k+3] && rects[j+3] >= rects[k+1]) {
+                    unionAt(index, rects[k], rects[k+1], rects[k+2], rects[k+3]);
+                    removeAt(i);
+                    if (i < index) index--;
+                    merged = true;
+                    break;
+                }
+            }
+        }
+
+        int j = index * 4;
+        if (rects[j] == 0 && rects[j+1] == 0 && rects[j+2] == width && rects[j+3] == height) markFull();
+    }
+
+    private void removeAt(int index) {
+        int last = (count - 1) * 4;
+        int j = index * 4;
+        if (j != last) System.arraycopy(rects, j + 4, rects, j, last - j);
+        count--;
+    }
+
+    private static long area(int x0, int y0, int x1, int y1) {
+        return (long)(x1 - x0) * (y1 - y0);
+    }
+}
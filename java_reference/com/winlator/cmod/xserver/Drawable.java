@@ -4,9 +4,13 @@ import android.graphics.Bitmap;
 
 import com.winlator.cmod.core.Callback;
 import com.winlator.cmod.math.Mathf;
+import com.winlator.cmod.renderer.DrawCommandQueue;
 import com.winlator.cmod.renderer.GPUImage;
+import com.winlator.cmod.renderer.GPUImageSwapchain;
 import com.winlator.cmod.renderer.Texture;
+import com.winlator.cmod.xconnector.XOutputStream;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -16,6 +20,7 @@ public class Drawable extends XResource {
     public final Visual visual;
     private Texture texture = new Texture();
     private ByteBuffer data;
+    private final DamageRegion damageRegion;
     private Runnable onDrawListener;
     private Callback<Drawable> onDestroyListener;
     public final Object renderLock = new Object();
@@ -25,11 +30,19 @@ public class Drawable extends XResource {
     }
 
     public Drawable(int id, int width, int height, Visual visual) {
+        this(id, width, height, visual, ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Creates a drawable backed by the given buffer instead of allocating its own, e.g. shared memory.
+     */
+    public Drawable(int id, int width, int height, Visual visual, ByteBuffer data) {
         super(id);
         this.width = (short)width;
         this.height = (short)height;
         this.visual = visual;
-        this.data = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+        this.damageRegion = new DamageRegion(this.width, this.height);
+        this.data = data;
         if (this.data == null) {
             throw new IllegalStateException("Drawable.data initialized as null!");
         }
@@ -46,8 +59,16 @@ public class Drawable extends XResource {
     }
 
     public void setTexture(Texture texture) {
-        if (texture instanceof GPUImage) data = ((GPUImage)texture).getVirtualData();
+        if (texture instanceof GPUImage) {
+            data = ((GPUImage)texture).getVirtualData();
+        }
+        else if (texture instanceof GPUImageSwapchain) data = ((GPUImageSwapchain)texture).getVirtualData();
         this.texture = texture;
+        damageRegion.markFull();
+    }
+
+    public DamageRegion getDamageRegion() {
+        return damageRegion;
     }
 
     public ByteBuffer getData() {
@@ -59,10 +80,35 @@ public class Drawable extends XResource {
             throw new IllegalArgumentException("Attempting to set Drawable.data to null!");
         }
         this.data = data;
+        damageRegion.markFull();
+    }
+
+    /**
+     * Swaps in a buffer already holding the current contents (the next image of a swapchain),
+     * unlike setData() the damage accumulated so far is kept.
+     */
+    public void replaceData(ByteBuffer data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Attempting to set Drawable.data to null!");
+        }
+        this.data = data;
     }
 
     private short getStride() {
-        return texture instanceof GPUImage ? ((GPUImage)texture).getStride() : width;
+        if (texture instanceof GPUImage) return ((GPUImage)texture).getStride();
+        if (texture instanceof GPUImageSwapchain) return ((GPUImageSwapchain)texture).getStride();
+        return width;
+    }
+
+    private DrawCommandQueue getCommandQueue() {
+        return texture instanceof GPUImage ? ((GPUImage)texture).getCommandQueue() : null;
+    }
+
+    /**
+     * Waits for the drawing requests still running on the GPU, must be called before accessing the data from the CPU.
+     */
+    public void waitForGPU() {
+        if (texture instanceof GPUImage) ((GPUImage)texture).waitForGPU();
     }
 
     public Runnable getOnDrawListener() {
@@ -82,8 +128,11 @@ public class Drawable extends XResource {
     }
 
     public void drawImage(short srcX, short srcY, short dstX, short dstY, short width, short height, byte depth, ByteBuffer data, short totalWidth, short totalHeight) {
+        waitForGPU();
         if (depth == 1) {
             drawBitmap(width, height, data, this.data);
+            dstX = 0;
+            dstY = 0;
         }
         else if (depth == 24 || depth == 32) {
             dstX = (short)Mathf.clamp(dstX, 0, this.width-1);
@@ -97,23 +146,48 @@ public class Drawable extends XResource {
         this.data.rewind();
         data.rewind();
 
-        texture.setNeedsUpdate(true);
-        if (onDrawListener != null) onDrawListener.run();
+        markDamaged(dstX, dstY, width, height);
     }
 
     public ByteBuffer getImage(short x, short y, short width, short height) {
         ByteBuffer dstData = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+        getImage(x, y, width, height, dstData);
+        return dstData;
+    }
 
+    /**
+     * Copies the image into a direct buffer of at least width * height * 4 bytes (e.g. space reserved
+     * in the client output stream), the part outside of the drawable is zero filled.
+     */
+    public void getImage(short x, short y, short width, short height, ByteBuffer dstData) {
+        int length = width * height * 4;
         x = (short)Mathf.clamp(x, 0, this.width-1);
         y = (short)Mathf.clamp(y, 0, this.height-1);
         if ((x + width) > this.width) width = (short)(this.width - x);
         if ((y + height) > this.height) height = (short)(this.height - y);
 
+        waitForGPU();
         copyArea(x, y, (short)0, (short)0, width, height, this.getStride(), width, this.data, dstData);
 
         this.data.rewind();
+        dstData.position(width * height * 4);
+        while (dstData.position() < length) dstData.put((byte)0);
         dstData.rewind();
-        return dstData;
+    }
+
+    /**
+     * Writes the image to the client stream directly from the drawable rows, same layout as getImage.
+     */
+    public void writeImage(short x, short y, short width, short height, XOutputStream outputStream) throws IOException {
+        int length = width * height * 4;
+        x = (short)Mathf.clamp(x, 0, this.width-1);
+        y = (short)Mathf.clamp(y, 0, this.height-1);
+        if ((x + width) > this.width) width = (short)(this.width - x);
+        if ((y + height) > this.height) height = (short)(this.height - y);
+
+        waitForGPU();
+        int stride = getStride();
+        outputStream.writeRows(data, (y * stride + x) * 4, width * 4, stride * 4, height, length - width * height * 4);
     }
 
     public void copyArea(short srcX, short srcY, short dstX, short dstY, short width, short height, Drawable drawable) {
@@ -126,16 +200,22 @@ public class Drawable extends XResource {
         if ((dstX + width) > this.width) width = (short)(this.width - dstX);
         if ((dstY + height) > this.height) height = (short)(this.height - dstY);
 
-        if (gcFunction == GraphicsContext.Function.COPY) {
-            copyArea(srcX, srcY, dstX, dstY, width, height, drawable.getStride(), this.getStride(), drawable.data, this.data);
+        DrawCommandQueue commandQueue = getCommandQueue();
+        boolean srcInside = srcX >= 0 && srcY >= 0 && (srcX + width) <= drawable.width && (srcY + height) <= drawable.height;
+        if (commandQueue == null || !(drawable.texture instanceof GPUImage) || !srcInside ||
+            !commandQueue.copyArea((GPUImage)drawable.texture, (GPUImage)texture, this.width, this.height, srcX, srcY, dstX, dstY, width, height, gcFunction.ordinal())) {
+            waitForGPU();
+            drawable.waitForGPU();
+            if (gcFunction == GraphicsContext.Function.COPY) {
+                copyArea(srcX, srcY, dstX, dstY, width, height, drawable.getStride(), this.getStride(), drawable.data, this.data);
+            }
+            else copyAreaOp(srcX, srcY, dstX, dstY, width, height, drawable.getStride(), this.getStride(), drawable.data, this.data, gcFunction.ordinal());
+
+            this.data.rewind();
+            drawable.data.rewind();
         }
-        else copyAreaOp(srcX, srcY, dstX, dstY, width, height, drawable.getStride(), this.getStride(), drawable.data, this.data, gcFunction.ordinal());
 
-        this.data.rewind();
-        drawable.data.rewind();
-
-        texture.setNeedsUpdate(true);
-        if (onDrawListener != null) onDrawListener.run();
+        markDamaged(dstX, dstY, width, height);
     }
 
     public void fillColor(int color) {
@@ -148,11 +228,14 @@ public class Drawable extends XResource {
         if ((x + width) > this.width) width = (short)((this.width - x));
         if ((y + height) > this.height) height = (short)((this.height - y));
 
-        fillRect((short)x, (short)y, (short)width, (short)height, color, this.getStride(), this.data);
-        this.data.rewind();
+        DrawCommandQueue commandQueue = getCommandQueue();
+        if (commandQueue == null || !commandQueue.fillRect((GPUImage)texture, this.width, this.height, (short)x, (short)y, (short)width, (short)height, color)) {
+            waitForGPU();
+            fillRect((short)x, (short)y, (short)width, (short)height, color, this.getStride(), this.data);
+            this.data.rewind();
+        }
 
-        texture.setNeedsUpdate(true);
-        if (onDrawListener != null) onDrawListener.run();
+        markDamaged(x, y, width, height);
     }
 
     public void drawLines(int color, int lineWidth, short... points) {
@@ -167,18 +250,32 @@ public class Drawable extends XResource {
         x1 = Mathf.clamp(x1, 0, width-lineWidth);
         y1 = Mathf.clamp(y1, 0, height-lineWidth);
 
-        drawLine((short)x0, (short)y0, (short)x1, (short)y1, color, (short)lineWidth, this.getStride(), this.data);
-
-        this.data.rewind();
+        // Horizontal and vertical lines cover exactly one rectangle and can be filled on the GPU
+        DrawCommandQueue commandQueue = getCommandQueue();
+        if (commandQueue == null || (x0 != x1 && y0 != y1) || !commandQueue.fillRect((GPUImage)texture, width, height,
+            (short)Math.min(x0, x1), (short)Math.min(y0, y1), (short)(Math.abs(x1 - x0) + lineWidth), (short)(Math.abs(y1 - y0) + lineWidth), color)) {
+            waitForGPU();
+            drawLine((short)x0, (short)y0, (short)x1, (short)y1, color, (short)lineWidth, this.getStride(), this.data);
+            this.data.rewind();
+        }
 
-        texture.setNeedsUpdate(true);
-        if (onDrawListener != null) onDrawListener.run();
+        markDamaged(Math.min(x0, x1), Math.min(y0, y1), Math.abs(x1 - x0) + lineWidth, Math.abs(y1 - y0) + lineWidth);
     }
 
     public void drawAlphaMaskedBitmap(byte foreRed, byte foreGreen, byte foreBlue, byte backRed, byte backGreen, byte backBlue, Drawable srcDrawable, Drawable maskDrawable) {
+        waitForGPU();
+        srcDrawable.waitForGPU();
+        maskDrawable.waitForGPU();
         drawAlphaMaskedBitmap(foreRed, foreGreen, foreBlue, backRed, backGreen, backBlue, srcDrawable.data, maskDrawable.data, this.data);
         this.data.rewind();
 
+        damageRegion.markFull();
+        texture.setNeedsUpdate(true);
+        if (onDrawListener != null) onDrawListener.run();
+    }
+
+    private void markDamaged(int x, int y, int width, int height) {
+        damageRegion.add(x, y, width, height);
         texture.setNeedsUpdate(true);
         if (onDrawListener != null) onDrawListener.run();
     }
@@ -187,11 +284,11 @@ public class Drawable extends XResource {
 
     private static native void drawAlphaMaskedBitmap(byte foreRed, byte foreGreen, byte foreBlue, byte backRed, byte backGreen, byte backBlue, ByteBuffer srcData, ByteBuffer maskData, ByteBuffer dstData);
 
-    private static native void copyArea(short srcX, short srcY, short dstX, short dstY, short width, short height, short srcStride, short dstStride, ByteBuffer srcData, ByteBuffer dstData);
+    public static native void copyArea(short srcX, short srcY, short dstX, short dstY, short width, short height, short srcStride, short dstStride, ByteBuffer srcData, ByteBuffer dstData);
 
-    private static native void copyAreaOp(short srcX, short srcY, short dstX, short dstY, short width, short height, short srcStride, short dstStride, ByteBuffer srcData, ByteBuffer dstData, int gcFunction);
+    public static native void copyAreaOp(short srcX, short srcY, short dstX, short dstY, short width, short height, short srcStride, short dstStride, ByteBuffer srcData, ByteBuffer dstData, int gcFunction);
 
-    private static native void fillRect(short x, short y, short width, short height, int color, short stride, ByteBuffer data);
+    public static native void fillRect(short x, short y, short width, short height, int color, short stride, ByteBuffer data);
 
     private static native void drawLine(short x0, short y0, short x1, short y1, int color, short lineWidth, short stride, ByteBuffer data);
 
@@ -5,6 +5,8 @@ import android.util.SparseArray;
 import com.winlator.cmod.core.Callback;
 import com.winlator.cmod.renderer.Texture;
 
+import java.nio.ByteBuffer;
+
 public class DrawableManager extends XResourceManager implements XResourceManager.OnResourceLifecycleListener {
     private final XServer xServer;
     private final SparseArray<Drawable> drawables = new SparseArray<>();
@@ -27,6 +29,13 @@ public class DrawableManager extends XResourceManager implements XResourceManage
         return createDrawable(id, width, height, xServer.pixmapManager.getVisualForDepth(depth));
     }
 
+    public Drawable createDrawable(int id, short width, short height, byte depth, ByteBuffer data) {
+        if (drawables.indexOfKey(id) >= 0) return null;
+        Drawable drawable = new Drawable(id, width, height, xServer.pixmapManager.getVisualForDepth(depth), data);
+        drawables.put(id, drawable);
+        return drawable;
+    }
+
     public Drawable createDrawable(int id, short width, short height, Visual visual) {
         if (id == 0) {
             Drawable drawable = new Drawable(id, width, height, visual);
@@ -53,12 +62,12 @@ public class DrawableManager extends XResourceManager implements XResourceManage
             throw new IllegalStateException("Drawable with id " + id + " has null data during removal.");
         }
 
-        final Texture texture = drawable.getTexture();
-        if (texture != null) xServer.getRenderer().xServerView.queueEvent(texture::destroy);
-
         Callback<Drawable> onDestroyListener = drawable.getOnDestroyListener();
         if (onDestroyListener != null) onDestroyListener.call(drawable);
 
+        final Texture texture = drawable.getTexture();
+        if (texture != null) xServer.getRenderer().xServerView.queueEvent(texture::destroy);
+
         drawable.setOnDrawListener(null);
         drawables.remove(id);
     }
@@ -1,12 +1,14 @@
 package com.winlator.cmod.xserver;
 
 import com.winlator.cmod.xserver.events.Event;
+import com.winlator.cmod.xserver.events.MotionNotify;
 
 import java.io.IOException;
 
 public class EventListener {
     public final XClient client;
     public final Bitmask eventMask;
+    private boolean motionHintSent = false;
 
     public EventListener(XClient client, Bitmask eventMask) {
         this.client = client;
@@ -21,6 +23,24 @@ public class EventListener {
         return this.eventMask.intersects(mask);
     }
 
+    /**
+     * Honors POINTER_MOTION_HINT: a listener that selected it gets a single hinted MotionNotify
+     * until resetMotionHint() is called (QueryPointer, button or key state change, pointer leaving the window).
+     */
+    public void sendMotionEvent(MotionNotify event) {
+        boolean hint = eventMask.isSet(Event.POINTER_MOTION_HINT);
+        if (hint) {
+            if (motionHintSent) return;
+            motionHintSent = true;
+        }
+        event.setHint(hint);
+        sendEvent(event);
+    }
+
+    public void resetMotionHint() {
+        motionHintSent = false;
+    }
+
     public void sendEvent(Event event) {
         try {
             event.send(client.getSequenceNumber(), client.getOutputStream());
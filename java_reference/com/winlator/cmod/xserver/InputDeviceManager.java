@@ -1,5 +1,9 @@
 package com.winlator.cmod.xserver;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
 import com.winlator.cmod.winhandler.MouseEventFlags;
 import com.winlator.cmod.winhandler.WinHandler;
 import com.winlator.cmod.xserver.events.ButtonPress;
@@ -17,6 +21,20 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
     private static final byte MOUSE_WHEEL_DELTA = 120;
     private Window pointWindow;
     private final XServer xServer;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushMotionRunnable = this::flushPendingMotionLocked;
+    private final MotionNotify motionNotify = new MotionNotify();
+    private final Bitmask motionEventMask = new Bitmask();
+    private final Bitmask motionKeyButMask = new Bitmask();
+    private int motionCoalesceInterval = 4;
+    private long lastMotionTime = 0;
+    private Window lastMotionWindow;
+    private boolean motionPending = false;
+    private Window pendingWindow;
+    private Window pendingEventWindow;
+    private Window pendingPointWindow;
+    private short pendingX;
+    private short pendingY;
 
     public InputDeviceManager(XServer xServer) {
         this.xServer = xServer;
@@ -42,6 +60,11 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
         updatePointWindow();
     }
 
+    @Override
+    public void onReparentWindow(Window window) {
+        updatePointWindow();
+    }
+
     @Override
     public void onUpdateWindowGeometry(Window window, boolean resized) {
         updatePointWindow();
@@ -54,6 +77,11 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
 
     @Override
     public void onFreeResource(XResource resource) {
+        if (resource == lastMotionWindow) lastMotionWindow = null;
+        if (motionPending && (resource == pendingWindow || resource == pendingEventWindow || resource == pendingPointWindow)) {
+            motionPending = false;
+            handler.removeCallbacks(flushMotionRunnable);
+        }
         updatePointWindow();
     }
 
@@ -98,13 +126,28 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
         }
     }
 
+    public int getMotionCoalesceInterval() {
+        return motionCoalesceInterval;
+    }
+
+    /**
+     * Minimum time in milliseconds between two MotionNotify sent to the same window, samples arriving
+     * faster are collapsed into the latest position. 0 sends every sample.
+     */
+    public void setMotionCoalesceInterval(int motionCoalesceInterval) {
+        this.motionCoalesceInterval = motionCoalesceInterval;
+    }
+
     public void sendEnterLeaveNotify(Window windowA, Window windowB, PointerWindowEvent.Mode mode) {
         if (windowA == windowB) return;
+        flushPendingMotion();
         short x = xServer.pointer.getX();
         short y = xServer.pointer.getY();
 
-        short[] localPointA = windowA.rootPointToLocal(x, y);
-        short[] localPointB = windowB.rootPointToLocal(x, y);
+        short localAX = (short)(x - windowA.getRootX());
+        short localAY = (short)(y - windowA.getRootY());
+        short localBX = (short)(x - windowB.getRootX());
+        short localBY = (short)(y - windowB.getRootY());
 
         boolean sameScreenAndFocus = windowB.isAncestorOf(xServer.windowManager.getFocusedWindow());
         PointerWindowEvent.Detail detailA = PointerWindowEvent.Detail.NONLINEAR;
@@ -120,12 +163,14 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
         }
 
         Bitmask keyButMask = getKeyButMask();
-        sendEvent(windowA, Event.LEAVE_WINDOW, new LeaveNotify(detailA, xServer.windowManager.rootWindow, windowA, null, x, y, localPointA[0], localPointA[1], keyButMask, mode, sameScreenAndFocus));
-        sendEvent(windowB, Event.ENTER_WINDOW, new EnterNotify(detailB, xServer.windowManager.rootWindow, windowB, null, x, y, localPointB[0], localPointB[1], keyButMask, mode, sameScreenAndFocus));
+        sendEvent(windowA, Event.LEAVE_WINDOW, new LeaveNotify(detailA, xServer.windowManager.rootWindow, windowA, null, x, y, localAX, localAY, keyButMask, mode, sameScreenAndFocus));
+        sendEvent(windowB, Event.ENTER_WINDOW, new EnterNotify(detailB, xServer.windowManager.rootWindow, windowB, null, x, y, localBX, localBY, keyButMask, mode, sameScreenAndFocus));
     }
 
     @Override
     public void onPointerButtonPress(Pointer.Button button) {
+        flushPendingMotion();
+        resetMotionHints();
         if (xServer.isRelativeMouseMovement()) {
             WinHandler winHandler = xServer.getWinHandler();
             int wheelDelta = button == Pointer.Button.BUTTON_SCROLL_UP ? MOUSE_WHEEL_DELTA : (button == Pointer.Button.BUTTON_SCROLL_DOWN ? -MOUSE_WHEEL_DELTA : 0);
@@ -144,16 +189,19 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
 
                 short x = xServer.pointer.getX();
                 short y = xServer.pointer.getY();
-                short[] localPoint = grabWindow.rootPointToLocal(x, y);
+                short localX = (short)(x - grabWindow.getRootX());
+                short localY = (short)(y - grabWindow.getRootY());
 
                 Window child = grabWindow.isAncestorOf(pointWindow) ? pointWindow : null;
-                grabWindow.sendEvent(Event.BUTTON_PRESS, new ButtonPress(button.code(), xServer.windowManager.rootWindow, grabWindow, child, x, y, localPoint[0], localPoint[1], eventMask));
+                grabWindow.sendEvent(Event.BUTTON_PRESS, new ButtonPress(button.code(), xServer.windowManager.rootWindow, grabWindow, child, x, y, localX, localY, eventMask));
             }
         }
     }
 
     @Override
     public void onPointerButtonRelease(Pointer.Button button) {
+        flushPendingMotion();
+        resetMotionHints();
         if (xServer.isRelativeMouseMovement()) {
             WinHandler winHandler = xServer.getWinHandler();
             winHandler.mouseEvent(MouseEventFlags.getFlagFor(button, false), 0, 0, 0);
@@ -168,10 +216,11 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
 
                 short x = xServer.pointer.getX();
                 short y = xServer.pointer.getY();
-                short[] localPoint = eventWindow.rootPointToLocal(x, y);
+                short localX = (short)(x - eventWindow.getRootX());
+                short localY = (short)(y - eventWindow.getRootY());
 
                 Window child = eventWindow.isAncestorOf(pointWindow) ? pointWindow : null;
-                ButtonRelease buttonRelease = new ButtonRelease(button.code(), xServer.windowManager.rootWindow, eventWindow, child, x, y, localPoint[0], localPoint[1], eventMask);
+                ButtonRelease buttonRelease = new ButtonRelease(button.code(), xServer.windowManager.rootWindow, eventWindow, child, x, y, localX, localY, eventMask);
                 sendEvent(window, eventMask, buttonRelease);
             }
 
@@ -184,21 +233,86 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
     @Override
     public void onPointerMove(short x, short y) {
         updatePointWindow();
-        Bitmask eventMask = createPointerEventMask();
+        Bitmask eventMask = updatePointerEventMask(motionEventMask);
         Window grabWindow = xServer.grabManager.getWindow();
         Window window = grabWindow == null || xServer.grabManager.isOwnerEvents() ? pointWindow.getAncestorWithEventMask(eventMask) : null;
+        Window eventWindow = window != null ? window : grabWindow;
+        if (eventWindow == null) return;
+
+        motionKeyButMask.clear();
+        motionKeyButMask.join(xServer.pointer.getButtonMask());
+        motionKeyButMask.join(xServer.keyboard.getModifiersMask());
+
+        if (motionPending && pendingEventWindow != eventWindow) flushPendingMotion();
+        if (eventWindow != lastMotionWindow) {
+            if (lastMotionWindow != null) lastMotionWindow.resetMotionHints();
+            lastMotionWindow = eventWindow;
+            lastMotionTime = 0;
+        }
+
+        long currentTime = SystemClock.uptimeMillis();
+        if (!motionPending && currentTime - lastMotionTime >= motionCoalesceInterval) {
+            lastMotionTime = currentTime;
+            sendMotionNotify(window, eventWindow, pointWindow, x, y);
+        }
+        else {
+            pendingWindow = window;
+            pendingEventWindow = eventWindow;
+            pendingPointWindow = pointWindow;
+            pendingX = x;
+            pendingY = y;
+            if (!motionPending) {
+                motionPending = true;
+                handler.postAtTime(flushMotionRunnable, lastMotionTime + motionCoalesceInterval);
+            }
+        }
+    }
 
-        if (grabWindow != null || window != null) {
-            Window eventWindow = window != null ? window : grabWindow;
-            short[] localPoint = eventWindow.rootPointToLocal(x, y);
+    private void flushPendingMotionLocked() {
+        try (XLock lock = xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+            flushPendingMotion();
+        }
+    }
+
+    private void flushPendingMotion() {
+        if (!motionPending) return;
+        motionPending = false;
+        handler.removeCallbacks(flushMotionRunnable);
+        lastMotionTime = SystemClock.uptimeMillis();
+        sendMotionNotify(pendingWindow, pendingEventWindow, pendingPointWindow, pendingX, pendingY);
+    }
+
+    private void sendMotionNotify(Window window, Window eventWindow, Window pointWindow, short x, short y) {
+        Window child = eventWindow.isAncestorOf(pointWindow) ? pointWindow : null;
+        short eventX = (short)(x - eventWindow.getRootX());
+        short eventY = (short)(y - eventWindow.getRootY());
+        motionNotify.set(xServer.windowManager.rootWindow, eventWindow, child, x, y, eventX, eventY, motionKeyButMask);
 
-            Window child = eventWindow.isAncestorOf(pointWindow) ? pointWindow : null;
-            sendEvent(window, eventMask, new MotionNotify(false, xServer.windowManager.rootWindow, eventWindow, child, x, y, localPoint[0], localPoint[1], getKeyButMask()));
+        Window grabWindow = xServer.grabManager.getWindow();
+        if (grabWindow != null && grabWindow.attributes.isEnabled()) {
+            EventListener eventListener = xServer.grabManager.getEventListener();
+            if (xServer.grabManager.isOwnerEvents() && window != null) {
+                window.sendMotionEvent(motionEventMask, motionNotify, eventListener.client);
+            }
+            else if (eventListener.isInterestedIn(motionEventMask)) {
+                eventListener.sendMotionEvent(motionNotify);
+            }
+        }
+        else if (window != null && window.attributes.isEnabled()) {
+            window.sendMotionEvent(motionEventMask, motionNotify, null);
         }
     }
 
+    private void resetMotionHints() {
+        if (lastMotionWindow != null) lastMotionWindow.resetMotionHints();
+        EventListener eventListener = xServer.grabManager.getEventListener();
+        if (eventListener != null) eventListener.resetMotionHint();
+    }
+
     @Override
     public void onKeyPress(byte keycode, int keysym) {
+        flushPendingMotion();
+        resetMotionHints();
         Window focusedWindow = xServer.windowManager.getFocusedWindow();
         if (focusedWindow == null) return;
         updatePointWindow();
@@ -219,18 +333,21 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
         Bitmask keyButMask = getKeyButMask();
         short x = xServer.pointer.getX();
         short y = xServer.pointer.getY();
-        short[] localPoint = eventWindow.rootPointToLocal(x, y);
+        short localX = (short)(x - eventWindow.getRootX());
+        short localY = (short)(y - eventWindow.getRootY());
 
         if (keysym != 0 && !xServer.keyboard.hasKeysym(keycode, keysym)) {
             xServer.keyboard.setKeysyms(keycode, keysym, keysym);
             eventWindow.sendEvent(new MappingNotify(MappingNotify.Request.KEYBOARD, keycode, 1));
         }
 
-        eventWindow.sendEvent(Event.KEY_PRESS, new KeyPress(keycode, xServer.windowManager.rootWindow, eventWindow, child, x, y, localPoint[0], localPoint[1], keyButMask));
+        eventWindow.sendEvent(Event.KEY_PRESS, new KeyPress(keycode, xServer.windowManager.rootWindow, eventWindow, child, x, y, localX, localY, keyButMask));
     }
 
     @Override
     public void onKeyRelease(byte keycode) {
+        flushPendingMotion();
+        resetMotionHints();
         Window focusedWindow = xServer.windowManager.getFocusedWindow();
         if (focusedWindow == null) return;
         updatePointWindow();
@@ -251,13 +368,18 @@ public class InputDeviceManager implements Pointer.OnPointerMotionListener, Keyb
         Bitmask keyButMask = getKeyButMask();
         short x = xServer.pointer.getX();
         short y = xServer.pointer.getY();
-        short[] localPoint = eventWindow.rootPointToLocal(x, y);
+        short localX = (short)(x - eventWindow.getRootX());
+        short localY = (short)(y - eventWindow.getRootY());
 
-        eventWindow.sendEvent(Event.KEY_RELEASE, new KeyRelease(keycode, xServer.windowManager.rootWindow, eventWindow, child, x, y, localPoint[0], localPoint[1], keyButMask));
+        eventWindow.sendEvent(Event.KEY_RELEASE, new KeyRelease(keycode, xServer.windowManager.rootWindow, eventWindow, child, x, y, localX, localY, keyButMask));
     }
 
     private Bitmask createPointerEventMask() {
-        Bitmask eventMask = new Bitmask();
+        return updatePointerEventMask(new Bitmask());
+    }
+
+    private Bitmask updatePointerEventMask(Bitmask eventMask) {
+        eventMask.clear();
         eventMask.set(Event.POINTER_MOTION);
 
         Bitmask buttonMask = xServer.pointer.getButtonMask();
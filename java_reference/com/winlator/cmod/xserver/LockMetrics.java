@@ -0,0 +1,77 @@
+package com.winlator.cmod.xserver;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LockMetrics {
+    private static final int ACQUISITIONS = 0;
+    private static final int CONTENDED = 1;
+    private static final int WAIT_TIME = 2;
+    private static final int MAX_WAIT_TIME = 3;
+    private static final int HOLD_TIME = 4;
+    private static final int NUM_VALUES = 5;
+    private final AtomicLongArray values = new AtomicLongArray(XServer.Lockable.values().length * NUM_VALUES);
+    private volatile boolean enabled = false;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    protected void recordAcquire(XServer.Lockable lockable, boolean contended, long waitTime) {
+        int index = lockable.ordinal() * NUM_VALUES;
+        values.incrementAndGet(index + ACQUISITIONS);
+        if (contended) {
+            values.incrementAndGet(index + CONTENDED);
+            values.addAndGet(index + WAIT_TIME, waitTime);
+            long maxWaitTime;
+            while (waitTime > (maxWaitTime = values.get(index + MAX_WAIT_TIME))) {
+                if (values.compareAndSet(index + MAX_WAIT_TIME, maxWaitTime, waitTime)) break;
+            }
+        }
+    }
+
+    protected void recordRelease(XServer.Lockable lockable, long holdTime) {
+        values.addAndGet(lockable.ordinal() * NUM_VALUES + HOLD_TIME, holdTime);
+    }
+
+    public long getAcquisitions(XServer.Lockable lockable) {
+        return values.get(lockable.ordinal() * NUM_VALUES + ACQUISITIONS);
+    }
+
+    public long getContendedAcquisitions(XServer.Lockable lockable) {
+        return values.get(lockable.ordinal() * NUM_VALUES + CONTENDED);
+    }
+
+    /** Total time in nanoseconds spent waiting for the lock. */
+    public long getWaitTime(XServer.Lockable lockable) {
+        return values.get(lockable.ordinal() * NUM_VALUES + WAIT_TIME);
+    }
+
+    public long getMaxWaitTime(XServer.Lockable lockable) {
+        return values.get(lockable.ordinal() * NUM_VALUES + MAX_WAIT_TIME);
+    }
+
+    /** Total time in nanoseconds the lock was held, shared holders are accumulated individually. */
+    public long getHoldTime(XServer.Lockable lockable) {
+        return values.get(lockable.ordinal() * NUM_VALUES + HOLD_TIME);
+    }
+
+    public void reset() {
+        for (int i = 0; i < values.length(); i++) values.set(i, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (XServer.Lockable lockable : XServer.Lockable.values()) {
+            sb.append(String.format(Locale.ENGLISH, "%s: acquisitions=%d contended=%d wait=%.3fms maxWait=%.3fms hold=%.3fms\n",
+                lockable.name(), getAcquisitions(lockable), getContendedAcquisitions(lockable),
+                getWaitTime(lockable) / 1e6, getMaxWaitTime(lockable) / 1e6, getHoldTime(lockable) / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -55,34 +55,33 @@ public class Property {
     @NonNull
     @Override
     public String toString() {
-        String type = Atom.getName(this.type);
         data.rewind();
-        switch (type) {
-            case "UTF8_STRING":
-                return StringUtils.fromANSIString(data.array(), StandardCharsets.UTF_8);
-            case "STRING":
-                return StringUtils.fromANSIString(data.array(), XServer.LATIN1_CHARSET);
-            case "ATOM":
-                return Atom.getName(data.getInt(0));
-            default:
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0, size = data.capacity() / (format.value >> 3); i < size; i++) {
-                    if (i > 0) sb.append(",");
-                    switch (format) {
-                        case BYTE_ARRAY:
-                            sb.append(data.get());
-                            break;
-                        case SHORT_ARRAY:
-                            sb.append(data.getShort());
-                            break;
-                        case INT_ARRAY:
-                            sb.append(data.getInt());
-                            break;
-                    }
-                }
-                data.rewind();
-                return sb.toString();
+        if (type == Atom.UTF8_STRING) {
+            return StringUtils.fromANSIString(data.array(), StandardCharsets.UTF_8);
         }
+        else if (type == Atom.STRING) {
+            return StringUtils.fromANSIString(data.array(), XServer.LATIN1_CHARSET);
+        }
+        else if (type == Atom.ATOM) {
+            return Atom.getName(data.getInt(0));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0, size = data.capacity() / (format.value >> 3); i < size; i++) {
+            if (i > 0) sb.append(",");
+            switch (format) {
+                case BYTE_ARRAY:
+                    sb.append(data.get());
+                    break;
+                case SHORT_ARRAY:
+                    sb.append(data.getShort());
+                    break;
+                case INT_ARRAY:
+                    sb.append(data.getInt());
+                    break;
+            }
+        }
+        data.rewind();
+        return sb.toString();
     }
 
     public int getInt(int index) {
@@ -0,0 +1,145 @@
+package com.winlator.cmod.xserver;
+
+import com.winlator.cmod.xserver.extensions.Extension;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request counters of a single client, written by the thread dispatching the client requests
+ * and readable from any thread. Latencies are kept in power of two buckets of microseconds.
+ */
+public class RequestMetrics {
+    public static final int NUM_BUCKETS = 20;
+    private static String[] coreOpcodeNames;
+    public final String clientName;
+    private final XServer xServer;
+    private final Entry[] coreEntries = new Entry[128];
+    private final Entry[][] extensionEntries = new Entry[128][];
+
+    public static class Entry {
+        private static final int COUNT = 0;
+        private static final int BYTES = 1;
+        private static final int TOTAL_TIME = 2;
+        private static final int MAX_TIME = 3;
+        private static final int FIRST_BUCKET = 4;
+        private final AtomicLongArray values = new AtomicLongArray(FIRST_BUCKET + NUM_BUCKETS);
+
+        private void record(int length, long time) {
+            values.incrementAndGet(COUNT);
+            values.addAndGet(BYTES, length);
+            values.addAndGet(TOTAL_TIME, time);
+            values.accumulateAndGet(MAX_TIME, time, Math::max);
+            values.incrementAndGet(FIRST_BUCKET + getBucket(time));
+        }
+
+        public long getCount() {
+            return values.get(COUNT);
+        }
+
+        public long getBytes() {
+            return values.get(BYTES);
+        }
+
+        /** Total time in nanoseconds spent handling the request. */
+        public long getTotalTime() {
+            return values.get(TOTAL_TIME);
+        }
+
+        public long getMaxTime() {
+            return values.get(MAX_TIME);
+        }
+
+        /** Number of requests that took less than 2^bucket microseconds and at least half of it (the last bucket is unbounded). */
+        public long getBucketCount(int bucket) {
+            return values.get(FIRST_BUCKET + bucket);
+        }
+
+        /** Upper bound in microseconds of the bucket containing the given percentile (0-1). */
+        public long getPercentile(float percentile) {
+            long count = getCount();
+            if (count == 0) return 0;
+            long target = (long)Math.ceil(count * percentile);
+            long sum = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                sum += getBucketCount(i);
+                if (sum >= target) return 1L<<i;
+            }
+            return 1L<<NUM_BUCKETS;
+        }
+
+        private static int getBucket(long time) {
+            long micros = time / 1000;
+            return Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+        }
+    }
+
+    public RequestMetrics(XServer xServer, String clientName) {
+        this.xServer = xServer;
+        this.clientName = clientName;
+    }
+
+    public void record(byte opcode, byte minorOpcode, int length, long time) {
+        Entry entry;
+        if (opcode >= 0) {
+            entry = coreEntries[opcode];
+            if (entry == null) coreEntries[opcode] = entry = new Entry();
+        }
+        else {
+            Entry[] entries = extensionEntries[opcode & 0x7f];
+            if (entries == null) extensionEntries[opcode & 0x7f] = entries = new Entry[256];
+            entry = entries[minorOpcode & 0xff];
+            if (entry == null) entries[minorOpcode & 0xff] = entry = new Entry();
+        }
+        entry.record(length, time);
+    }
+
+    public Entry getEntry(byte opcode, byte minorOpcode) {
+        if (opcode >= 0) return coreEntries[opcode];
+        Entry[] entries = extensionEntries[opcode & 0x7f];
+        return entries != null ? entries[minorOpcode & 0xff] : null;
+    }
+
+    public void dump(StringBuilder sb) {
+        sb.append("Client ").append(clientName).append('\n');
+        sb.append(String.format(Locale.ENGLISH, "%-28s %10s %12s %10s %10s %8s %8s %8s\n", "request", "count", "bytes", "total(ms)", "max(us)", "p50(us)", "p99(us)", "avg(us)"));
+        for (int i = 0; i < coreEntries.length; i++) {
+            if (coreEntries[i] != null) dumpEntry(sb, getCoreOpcodeName(i), coreEntries[i]);
+        }
+
+        for (int i = 0; i < extensionEntries.length; i++) {
+            Entry[] entries = extensionEntries[i];
+            if (entries == null) continue;
+            Extension extension = xServer.extensions.get((byte)(i | 0x80));
+            String extensionName = extension != null ? extension.getName() : "EXT"+(i | 0x80);
+            for (int j = 0; j < entries.length; j++) {
+                if (entries[j] != null) dumpEntry(sb, extensionName+":"+j, entries[j]);
+            }
+        }
+    }
+
+    private static void dumpEntry(StringBuilder sb, String name, Entry entry) {
+        long count = entry.getCount();
+        sb.append(String.format(Locale.ENGLISH, "%-28s %10d %12d %10.3f %10d %8d %8d %8d\n", name, count, entry.getBytes(),
+            entry.getTotalTime() / 1e6, entry.getMaxTime() / 1000, entry.getPercentile(0.5f), entry.getPercentile(0.99f),
+            count > 0 ? entry.getTotalTime() / count / 1000 : 0));
+    }
+
+    private static synchronized String getCoreOpcodeName(int opcode) {
+        if (coreOpcodeNames == null) {
+            coreOpcodeNames = new String[128];
+            for (Field field : ClientOpcodes.class.getFields()) {
+                if (field.getType() != byte.class || !Modifier.isStatic(field.getModifiers())) continue;
+                try {
+                    byte value = field.getByte(null);
+                    if (value >= 0) coreOpcodeNames[value] = field.getName();
+                }
+                catch (IllegalAccessException e) {}
+            }
+        }
+        String name = coreOpcodeNames[opcode];
+        return name != null ? name : String.valueOf(opcode);
+    }
+}
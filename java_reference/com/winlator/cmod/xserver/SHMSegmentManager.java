@@ -3,32 +3,105 @@ package com.winlator.cmod.xserver;
 import android.util.SparseArray;
 
 import com.winlator.cmod.sysvshm.SysVSharedMemory;
+import com.winlator.cmod.xconnector.XConnectorEpoll;
 
 import java.nio.ByteBuffer;
 
 public class SHMSegmentManager {
     private final SysVSharedMemory sysVSharedMemory;
-    private final SparseArray<ByteBuffer> shmSegments = new SparseArray<>();
+    private final SparseArray<Segment> shmSegments = new SparseArray<>();
+
+    /**
+     * A segment attached by a client, either a SysV segment or a region passed as a file descriptor.
+     * Pixmaps created on a segment hold a reference so that it stays mapped after the client detaches it.
+     */
+    public static class Segment {
+        public final ByteBuffer data;
+        public final boolean readOnly;
+        private final boolean sysV;
+        private int refCount = 1;
+
+        private Segment(ByteBuffer data, boolean readOnly, boolean sysV) {
+            this.data = data;
+            this.readOnly = readOnly;
+            this.sysV = sysV;
+        }
+    }
 
     public SHMSegmentManager(SysVSharedMemory sysVSharedMemory) {
         this.sysVSharedMemory = sysVSharedMemory;
     }
 
     public void attach(int xid, int shmid) {
+        attach(xid, shmid, false);
+    }
+
+    public synchronized void attach(int xid, int shmid, boolean readOnly) {
         if (shmSegments.indexOfKey(xid) >= 0) detach(xid);
         ByteBuffer data = sysVSharedMemory.attach(shmid);
-        if (data != null) shmSegments.put(xid, data);
+        if (data != null) shmSegments.put(xid, new Segment(data, readOnly, true));
     }
 
-    public void detach(int xid) {
-        ByteBuffer data = shmSegments.get(xid);
-        if (data != null) {
-            sysVSharedMemory.detach(data);
+    /**
+     * Maps the whole region behind fd, the caller keeps ownership of fd.
+     */
+    public synchronized boolean attachFd(int xid, int fd, boolean readOnly) {
+        if (shmSegments.indexOfKey(xid) >= 0) detach(xid);
+        long size = SysVSharedMemory.getRegionSize(fd);
+        if (size <= 0) return false;
+
+        ByteBuffer data = SysVSharedMemory.mapSHMSegment(fd, size, 0, readOnly);
+        if (data == null) return false;
+        shmSegments.put(xid, new Segment(data, readOnly, false));
+        return true;
+    }
+
+    /**
+     * Creates a new region of size bytes, attaches it as xid and returns its file descriptor to be sent
+     * to the client (the caller closes it), or -1 on failure.
+     */
+    public synchronized int createSegment(int xid, int size, boolean readOnly) {
+        if (shmSegments.indexOfKey(xid) >= 0) detach(xid);
+        int fd = SysVSharedMemory.createMemoryFd("xshm-"+xid, size);
+        if (fd < 0) return -1;
+
+        ByteBuffer data = SysVSharedMemory.mapSHMSegment(fd, size, 0, false);
+        if (data == null) {
+            XConnectorEpoll.closeFd(fd);
+            return -1;
+        }
+        shmSegments.put(xid, new Segment(data, readOnly, false));
+        return fd;
+    }
+
+    public synchronized void detach(int xid) {
+        Segment segment = shmSegments.get(xid);
+        if (segment != null) {
             shmSegments.remove(xid);
+            release(segment);
         }
     }
 
-    public ByteBuffer getData(int xid) {
+    public synchronized void retain(Segment segment) {
+        segment.refCount++;
+    }
+
+    public synchronized void release(Segment segment) {
+        if (--segment.refCount > 0) return;
+        if (segment.sysV) sysVSharedMemory.detach(segment.data);
+        else SysVSharedMemory.unmapSHMSegment(segment.data, segment.data.capacity());
+    }
+
+    public synchronized Segment getSegment(int xid) {
         return shmSegments.get(xid);
     }
-}
\ No newline at end of file
+
+    public synchronized ByteBuffer getData(int xid) {
+        Segment segment = shmSegments.get(xid);
+        return segment != null ? segment.data : null;
+    }
+
+    public String getStatsSummary() {
+        return sysVSharedMemory.getStatsSummary();
+    }
+}
@@ -4,6 +4,7 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.winlator.cmod.xserver.events.Event;
+import com.winlator.cmod.xserver.events.MotionNotify;
 import com.winlator.cmod.xserver.events.PropertyNotify;
 
 import java.util.ArrayList;
@@ -29,6 +30,9 @@ public class Window extends XResource {
     private short height;
     private short borderWidth;
     private Window parent;
+    private short rootX;
+    private short rootY;
+    private volatile boolean rootPositionValid = false;
     public final XClient originClient;
     public final WindowAttributes attributes = new WindowAttributes(this);
     private final SparseArray<Property> properties = new SparseArray<>();
@@ -51,7 +55,9 @@ public class Window extends XResource {
     }
 
     public void setX(short x) {
+        if (this.x == x) return;
         this.x = x;
+        invalidateRootPosition();
     }
 
     public short getY() {
@@ -59,7 +65,9 @@ public class Window extends XResource {
     }
 
     public void setY(short y) {
+        if (this.y == y) return;
         this.y = y;
+        invalidateRootPosition();
     }
 
     public short getWidth() {
@@ -100,6 +108,7 @@ public class Window extends XResource {
 
     public void setParent(Window parent) {
         this.parent = parent;
+        invalidateRootPosition();
     }
 
     public Property getProperty(int id) {
@@ -147,32 +156,32 @@ public class Window extends XResource {
     }
 
     public String getName() {
-        Property property = getProperty(Atom.getId("WM_NAME"));
+        Property property = getProperty(Atom.WM_NAME);
         return property != null ? property.toString() : "";
     }
 
     public String getClassName() {
-        Property property = getProperty(Atom.getId("WM_CLASS"));
+        Property property = getProperty(Atom.WM_CLASS);
         return property != null ? property.toString() : "";
     }
 
     public int getWMHintsValue(WMHints wmHints) {
-        Property property = getProperty(Atom.getId("WM_HINTS"));
+        Property property = getProperty(Atom.WM_HINTS);
         return property != null ? property.getInt(wmHints.ordinal()) : 0;
     }
 
     public int getProcessId() {
-        Property property = getProperty(Atom.getId("_NET_WM_PID"));
+        Property property = getProperty(Atom._NET_WM_PID);
         return property != null ? property.getInt(0) : 0;
     }
 
     public boolean isWoW64() {
-        Property property = getProperty(Atom.getId("_NET_WM_WOW64"));
+        Property property = getProperty(Atom._NET_WM_WOW64);
         return property != null && property.data.get(0) == 1;
     }
 
     public long getHandle() {
-        Property property = getProperty(Atom.getId("_NET_WM_HWND"));
+        Property property = getProperty(Atom._NET_WM_HWND);
         return property != null ? property.getLong(0) : 0;
     }
 
@@ -188,12 +197,14 @@ public class Window extends XResource {
     public void addChild(Window child) {
         if (child == null || child.parent == this) return;
         child.parent = this;
+        child.invalidateRootPosition();
         children.add(child);
     }
 
     public void removeChild(Window child) {
         if (child == null || child.parent != this) return;
         child.parent = null;
+        child.invalidateRootPosition();
         children.remove(child);
     }
 
@@ -287,49 +298,64 @@ public class Window extends XResource {
         for (EventListener eventListener : eventListeners) eventListener.sendEvent(event);
     }
 
+    public void sendMotionEvent(Bitmask eventMask, MotionNotify event, XClient client) {
+        for (int i = 0; i < eventListeners.size(); i++) {
+            EventListener eventListener = eventListeners.get(i);
+            if (eventListener.isInterestedIn(eventMask) && (client == null || eventListener.client == client)) {
+                eventListener.sendMotionEvent(event);
+            }
+        }
+    }
+
+    public void resetMotionHints() {
+        for (int i = 0; i < eventListeners.size(); i++) eventListeners.get(i).resetMotionHint();
+    }
+
     public boolean containsPoint(short rootX, short rootY) {
-        short[] localPoint = rootPointToLocal(rootX, rootY);
-        return localPoint[0] >= 0 && localPoint[1] >= 0 && localPoint[0] < width && localPoint[1] < height;
+        short localX = (short)(rootX - getRootX());
+        short localY = (short)(rootY - getRootY());
+        return localX >= 0 && localY >= 0 && localX < width && localY < height;
     }
 
     public short[] rootPointToLocal(short x, short y) {
-        Window window = this;
-        while (window != null) {
-            x -= window.x;
-            y -= window.y;
-            window = window.parent;
-        }
-        return new short[]{x, y};
+        return new short[]{(short)(x - getRootX()), (short)(y - getRootY())};
     }
 
     public short[] localPointToRoot(short x, short y) {
-        Window window = this;
-        while (window != null) {
-            x += window.x;
-            y += window.y;
-            window = window.parent;
-        }
-        return new short[]{x, y};
+        return new short[]{(short)(x + getRootX()), (short)(y + getRootY())};
     }
 
     public short getRootX() {
-        short rootX = x;
-        Window window = parent;
-        while (window != null) {
-            rootX += window.x;
-            window = window.parent;
-        }
+        if (!rootPositionValid) updateRootPosition();
         return rootX;
     }
 
     public short getRootY() {
+        if (!rootPositionValid) updateRootPosition();
+        return rootY;
+    }
+
+    /**
+     * The root position is cached and only computed again after the window or one of its ancestors
+     * moves or is reparented. A valid window always has valid ancestors, so invalidation stops at the
+     * first window that is already invalid.
+     */
+    private void updateRootPosition() {
+        short rootX = x;
         short rootY = y;
-        Window window = parent;
-        while (window != null) {
-            rootY += window.y;
-            window = window.parent;
+        if (parent != null) {
+            rootX += parent.getRootX();
+            rootY += parent.getRootY();
         }
-        return rootY;
+        this.rootX = rootX;
+        this.rootY = rootY;
+        rootPositionValid = true;
+    }
+
+    private void invalidateRootPosition() {
+        if (!rootPositionValid) return;
+        rootPositionValid = false;
+        for (int i = 0; i < children.size(); i++) children.get(i).invalidateRootPosition();
     }
 
     public Window getAncestorWithEventMask(Bitmask eventMask) {
@@ -27,6 +27,7 @@ public class WindowManager extends XResourceManager {
     private Window focusedWindow;
     private FocusRevertTo focusRevertTo = FocusRevertTo.NONE;
     private final ArrayList<OnWindowModificationListener> onWindowModificationListeners = new ArrayList<>();
+    private final WindowSpatialIndex topLevelWindowIndex;
 
     public interface OnWindowModificationListener {
         default void onMapWindow(Window window) {}
@@ -35,6 +36,8 @@ public class WindowManager extends XResourceManager {
 
         default void onChangeWindowZOrder(Window window) {}
 
+        default void onReparentWindow(Window window) {}
+
         default void onUpdateWindowContent(Window window) {}
 
         default void onUpdateWindowGeometry(Window window, boolean resized) {}
@@ -51,6 +54,7 @@ public class WindowManager extends XResourceManager {
         rootWindow = new Window(id, drawable, 0, 0, screenInfo.width, screenInfo.height, null);
         rootWindow.attributes.setMapped(true);
         windows.put(id, rootWindow);
+        topLevelWindowIndex = new WindowSpatialIndex(rootWindow);
     }
 
     public Window getWindow(int id) {
@@ -84,6 +88,7 @@ public class WindowManager extends XResourceManager {
         if (window.isInputOutput()) drawableManager.removeDrawable(window.getContent().id);
         triggerOnFreeResourceListener(window);
         if (window == focusedWindow) revertFocus();
+        invalidateTopLevelWindowIndex(window);
         parent.removeChild(window);
     }
 
@@ -95,6 +100,7 @@ public class WindowManager extends XResourceManager {
                 window.sendEvent(Event.STRUCTURE_NOTIFY, new MapNotify(window, window));
                 parent.sendEvent(Event.SUBSTRUCTURE_NOTIFY, new MapNotify(parent, window));
                 window.sendEvent(Event.EXPOSURE, new Expose(window));
+                invalidateTopLevelWindowIndex(window);
                 triggerOnMapWindow(window);
             }
             else parent.sendEvent(Event.SUBSTRUCTURE_REDIRECT, new MapRequest(parent, window));
@@ -108,6 +114,7 @@ public class WindowManager extends XResourceManager {
             window.sendEvent(Event.STRUCTURE_NOTIFY, new UnmapNotify(window, window));
             parent.sendEvent(Event.SUBSTRUCTURE_NOTIFY, new UnmapNotify(parent, window));
             if (window == focusedWindow) revertFocus();
+            invalidateTopLevelWindowIndex(window);
             triggerOnUnmapWindow(window);
         }
     }
@@ -201,6 +208,7 @@ public class WindowManager extends XResourceManager {
             window.setY(y);
             window.setWidth(width);
             window.setHeight(height);
+            invalidateTopLevelWindowIndex(window);
             triggerOnUpdateWindowGeometry(window, resized);
         }
 
@@ -219,6 +227,7 @@ public class WindowManager extends XResourceManager {
                 parent.moveChildBelow(window, sibling);
                 break;
         }
+        invalidateTopLevelWindowIndex(window);
         triggerOnChangeWindowZOrder(window);
     }
 
@@ -276,10 +285,14 @@ public class WindowManager extends XResourceManager {
         Window oldParent = window.getParent();
         if (oldParent != null) oldParent.removeChild(window);
         newParent.addChild(window);
+        if (oldParent == rootWindow || newParent == rootWindow) topLevelWindowIndex.invalidate();
+        triggerOnReparentWindow(window);
     }
 
     public Window findPointWindow(short rootX, short rootY) {
-        return findPointWindow(rootWindow, rootX, rootY);
+        if (!rootWindow.containsPoint(rootX, rootY)) return null;
+        Window child = topLevelWindowIndex.find(rootX, rootY);
+        return child != null ? findPointWindow(child, rootX, rootY) : rootWindow;
     }
 
     private Window findPointWindow(Window window, short rootX, short rootY) {
@@ -288,6 +301,10 @@ public class WindowManager extends XResourceManager {
         return child != null ? findPointWindow(child, rootX, rootY) : window;
     }
 
+    private void invalidateTopLevelWindowIndex(Window window) {
+        if (window.getParent() == rootWindow) topLevelWindowIndex.invalidate();
+    }
+
     public void addOnWindowModificationListener(OnWindowModificationListener onWindowModificationListener) {
         onWindowModificationListeners.add(onWindowModificationListener);
     }
@@ -314,6 +331,12 @@ public class WindowManager extends XResourceManager {
         }
     }
 
+    private void triggerOnReparentWindow(Window window) {
+        for (int i = onWindowModificationListeners.size()-1; i >= 0; i--) {
+            onWindowModificationListeners.get(i).onReparentWindow(window);
+        }
+    }
+
     protected void triggerOnUpdateWindowContent(Window window) {
         for (int i = onWindowModificationListeners.size()-1; i >= 0; i--) {
             onWindowModificationListeners.get(i).onUpdateWindowContent(window);
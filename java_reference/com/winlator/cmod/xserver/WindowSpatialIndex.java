@@ -0,0 +1,120 @@
+package com.winlator.cmod.xserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the mapped children of the root window, each cell lists the windows overlapping it
+ * in stacking order so that a point lookup only tests the few windows of one cell. The grid is rebuilt
+ * lazily after the top level windows are mapped, unmapped, moved or restacked.
+ */
+class WindowSpatialIndex {
+    private static final int CELL_SHIFT = 7;
+    private final Window rootWindow;
+    private Window[] windows = new Window[16];
+    private int[] bounds = new int[64];
+    private int windowCount = 0;
+    private int columns = 0;
+    private int rows = 0;
+    private int[] cellStart = new int[1];
+    private int[] cellFill = new int[0];
+    private int[] cellEntries = new int[64];
+    private boolean dirty = true;
+
+    public WindowSpatialIndex(Window rootWindow) {
+        this.rootWindow = rootWindow;
+    }
+
+    public synchronized void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Returns the topmost mapped top level window containing the point, or null if there is none.
+     */
+    public synchronized Window find(short rootX, short rootY) {
+        if (dirty) rebuild();
+        int x = rootX - rootWindow.getRootX();
+        int y = rootY - rootWindow.getRootY();
+        if (x < 0 || y < 0) return null;
+        int column = x >> CELL_SHIFT;
+        int row = y >> CELL_SHIFT;
+        if (column >= columns || row >= rows) return null;
+
+        int cell = row * columns + column;
+        for (int i = cellStart[cell+1]-1; i >= cellStart[cell]; i--) {
+            int index = cellEntries[i];
+            int offset = index * 4;
+            if (x >= bounds[offset] && y >= bounds[offset+1] && x < bounds[offset+2] && y < bounds[offset+3]) return windows[index];
+        }
+        return null;
+    }
+
+    private void rebuild() {
+        List<Window> children = rootWindow.getChildren();
+        if (windows.length < children.size()) {
+            windows = new Window[children.size()];
+            bounds = new int[children.size() * 4];
+        }
+        else Arrays.fill(windows, null);
+
+        int width = rootWindow.getWidth();
+        int height = rootWindow.getHeight();
+        windowCount = 0;
+        for (int i = 0; i < children.size(); i++) {
+            Window child = children.get(i);
+            int x0 = child.getX();
+            int y0 = child.getY();
+            int x1 = x0 + child.getWidth();
+            int y1 = y0 + child.getHeight();
+            if (!child.attributes.isMapped() || x1 <= Math.max(x0, 0) || y1 <= Math.max(y0, 0) || x0 >= width || y0 >= height) continue;
+            int offset = windowCount * 4;
+            bounds[offset] = x0;
+            bounds[offset+1] = y0;
+            bounds[offset+2] = x1;
+            bounds[offset+3] = y1;
+            windows[windowCount++] = child;
+        }
+
+        columns = (width + (1 << CELL_SHIFT) - 1) >> CELL_SHIFT;
+        rows = (height + (1 << CELL_SHIFT) - 1) >> CELL_SHIFT;
+        int cellCount = columns * rows;
+        if (cellStart.length != cellCount + 1) {
+            cellStart = new int[cellCount + 1];
+            cellFill = new int[cellCount];
+        }
+        else Arrays.fill(cellStart, 0);
+
+        for (int i = 0; i < windowCount; i++) {
+            int offset = i * 4;
+            for (int row = getCell(bounds[offset+1], rows), lastRow = getCell(bounds[offset+3] - 1, rows); row <= lastRow; row++) {
+                for (int column = getCell(bounds[offset], columns), lastColumn = getCell(bounds[offset+2] - 1, columns); column <= lastColumn; column++) {
+                    cellStart[row * columns + column + 1]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < cellCount; i++) {
+            cellStart[i+1] += cellStart[i];
+            cellFill[i] = cellStart[i];
+        }
+        if (cellEntries.length < cellStart[cellCount]) cellEntries = new int[cellStart[cellCount]];
+
+        // Windows are visited from bottom to top, so the entries of every cell end up in stacking order
+        for (int i = 0; i < windowCount; i++) {
+            int offset = i * 4;
+            for (int row = getCell(bounds[offset+1], rows), lastRow = getCell(bounds[offset+3] - 1, rows); row <= lastRow; row++) {
+                for (int column = getCell(bounds[offset], columns), lastColumn = getCell(bounds[offset+2] - 1, columns); column <= lastColumn; column++) {
+                    int cell = row * columns + column;
+                    cellEntries[cellFill[cell]++] = i;
+                }
+            }
+        }
+
+        dirty = false;
+    }
+
+    private static int getCell(int position, int count) {
+        return Math.max(0, Math.min(position >> CELL_SHIFT, count - 1));
+    }
+}
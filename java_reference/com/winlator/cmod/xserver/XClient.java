@@ -2,6 +2,7 @@ package com.winlator.cmod.xserver;
 
 import androidx.collection.ArrayMap;
 
+import com.winlator.cmod.xconnector.Client;
 import com.winlator.cmod.xconnector.XInputStream;
 import com.winlator.cmod.xconnector.XOutputStream;
 import com.winlator.cmod.xserver.events.Event;
@@ -19,13 +20,22 @@ public class XClient implements XResourceManager.OnResourceLifecycleListener {
     private int initialLength;
     private final XInputStream inputStream;
     private final XOutputStream outputStream;
+    private final Client connection;
     private final ArrayMap<Window, EventListener> eventListeners = new ArrayMap<>();
     private final ArrayList<XResource> resources = new ArrayList<>();
+    private final XLockGuard lockGuard;
+    private RequestMetrics requestMetrics;
 
     public XClient(XServer xServer, XInputStream inputStream, XOutputStream outputStream) {
+        this(xServer, null, inputStream, outputStream);
+    }
+
+    public XClient(XServer xServer, Client connection, XInputStream inputStream, XOutputStream outputStream) {
         this.xServer = xServer;
+        this.connection = connection;
         this.inputStream = inputStream;
         this.outputStream = outputStream;
+        lockGuard = new XLockGuard(xServer);
 
         try (XLock lock = xServer.lockAll()) {
             resourceIDBase = xServer.resourceIDs.get();
@@ -36,6 +46,30 @@ public class XClient implements XResourceManager.OnResourceLifecycleListener {
         }
     }
 
+    public XLock lock(XServer.Lockable lockable) {
+        return lockGuard.lock(lockable);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2) {
+        return lockGuard.lock(lockable1, lockable2);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2, XServer.Lockable lockable3) {
+        return lockGuard.lock(lockable1, lockable2, lockable3);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2, XServer.Lockable lockable3, XServer.Lockable lockable4) {
+        return lockGuard.lock(lockable1, lockable2, lockable3, lockable4);
+    }
+
+    public XLock lockShared(XServer.Lockable lockable) {
+        return lockGuard.lockShared(lockable);
+    }
+
+    public XLock lockShared(XServer.Lockable lockable1, XServer.Lockable lockable2) {
+        return lockGuard.lockShared(lockable1, lockable2);
+    }
+
     public void registerAsOwnerOfResource(XResource resource) {
         resources.add(resource);
     }
@@ -58,6 +92,11 @@ public class XClient implements XResourceManager.OnResourceLifecycleListener {
         }
     }
 
+    public void resetMotionHint(Window window) {
+        EventListener eventListener = eventListeners.get(window);
+        if (eventListener != null) eventListener.resetMotionHint();
+    }
+
     public boolean isInterestedIn(int eventId, Window window) {
         EventListener eventListener = eventListeners.get(window);
         return eventListener != null && eventListener.isInterestedIn(eventId);
@@ -144,6 +183,22 @@ public class XClient implements XResourceManager.OnResourceLifecycleListener {
         return outputStream;
     }
 
+    /**
+     * Stops dispatching the requests of this client after the current one until resume() is called.
+     */
+    public boolean suspend() {
+        return connection != null && connection.suspend();
+    }
+
+    public void resume() {
+        if (connection != null) connection.resume();
+    }
+
+    public RequestMetrics getRequestMetrics() {
+        if (requestMetrics == null) requestMetrics = xServer.createRequestMetrics(String.format("0x%08x", resourceIDBase));
+        return requestMetrics;
+    }
+
     public Bitmask getEventMaskForWindow(Window window) {
         EventListener eventListener = eventListeners.get(window);
         return eventListener != null ? eventListener.eventMask : new Bitmask();
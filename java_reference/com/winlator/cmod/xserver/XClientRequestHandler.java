@@ -2,6 +2,7 @@ package com.winlator.cmod.xserver;
 
 import android.util.Log;
 
+import com.winlator.cmod.renderer.GLRenderer;
 import com.winlator.cmod.xconnector.Client;
 import com.winlator.cmod.xconnector.RequestHandler;
 import com.winlator.cmod.xconnector.XInputStream;
@@ -141,7 +142,7 @@ public class XClientRequestHandler implements RequestHandler {
         if (nameLength > 0) inputStream.readString8(nameLength);
         if (dataLength > 0) inputStream.readString8(dataLength);
 
-        try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+        try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
             sendServerInformation(client, outputStream);
         }
 
@@ -155,77 +156,98 @@ public class XClientRequestHandler implements RequestHandler {
         byte requestData = inputStream.readByte();
 
         int requestLength = inputStream.readUnsignedShort();
+        int headerLength = 4;
         if (requestLength != 0) {
             requestLength = requestLength * 4 - 4;
         }
         else if (inputStream.available() < 4) {
             return false;
         }
-        else requestLength = inputStream.readInt() * 4 - 8;
-        if (inputStream.available() < requestLength) return false;
+        else {
+            requestLength = inputStream.readInt() * 4 - 8;
+            headerLength = 8;
+        }
+        if (inputStream.available() < requestLength) {
+            inputStream.setRequiredCapacity(headerLength + requestLength);
+            return false;
+        }
 
         client.generateSequenceNumber();
         client.setRequestData(requestData);
         client.setRequestLength(requestLength);
 
+        if (client.xServer.isRequestMetricsEnabled()) {
+            long startTime = System.nanoTime();
+            try {
+                dispatchRequest(client, opcode, requestData, inputStream, outputStream);
+            }
+            finally {
+                client.getRequestMetrics().record(opcode, requestData, headerLength + requestLength, System.nanoTime() - startTime);
+            }
+        }
+        else dispatchRequest(client, opcode, requestData, inputStream, outputStream);
+        return true;
+    }
+
+    private void dispatchRequest(XClient client, byte opcode, byte requestData, XInputStream inputStream, XOutputStream outputStream) throws IOException {
         try {
             switch (opcode) {
                 case ClientOpcodes.CREATE_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE, XServer.Lockable.CURSOR_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE, XServer.Lockable.CURSOR_MANAGER)) {
                         WindowRequests.createWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.CHANGE_WINDOW_ATTRIBUTES:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
                         WindowRequests.changeWindowAttributes(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.GET_WINDOW_ATTRIBUTES:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.getWindowAttributes(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.DESTROY_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.destroyWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.DESTROY_SUB_WINDOWS:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.destroySubWindows(client, inputStream, outputStream);
                     }
                 case ClientOpcodes.REPARENT_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.reparentWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.MAP_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.mapWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.MAP_SUB_WINDOWS:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.mapSubWindows(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.UNMAP_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.unmapWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.CONFIGURE_WINDOW:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.configureWindow(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.GET_GEOMETRY:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
                         WindowRequests.getGeometry(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.QUERY_TREE:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.queryTree(client, inputStream, outputStream);
                     }
                     break;
@@ -234,32 +256,32 @@ public class XClientRequestHandler implements RequestHandler {
                     break;
                 /* This seems to also link to UnmapWindow */
                 case ClientOpcodes.GET_ATOM_NAME:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         AtomRequests.getAtomName(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.CHANGE_PROPERTY:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.changeProperty(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.DELETE_PROPERTY:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.deleteProperty(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.GET_PROPERTY:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = requestData == 1 ? client.lock(XServer.Lockable.WINDOW_MANAGER) : client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.getProperty(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.SET_SELECTION_OWNER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         SelectionRequests.setSelectionOwner(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.GET_SELECTION_OWNER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         SelectionRequests.getSelectionOwner(client, inputStream, outputStream);
                     }
                     break;
@@ -269,42 +291,42 @@ public class XClientRequestHandler implements RequestHandler {
                     }
                     break;
                 case ClientOpcodes.GRAB_POINTER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE, XServer.Lockable.CURSOR_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE, XServer.Lockable.CURSOR_MANAGER)) {
                         GrabRequests.grabPointer(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.UNGRAB_POINTER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         GrabRequests.ungrabPointer(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.QUERY_POINTER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.queryPointer(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.TRANSLATE_COORDINATES:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.translateCoordinates(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.WARP_POINTER:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.INPUT_DEVICE)) {
                         WindowRequests.warpPointer(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.SET_INPUT_FOCUS:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.setInputFocus(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.GET_INPUT_FOCUS:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         WindowRequests.getInputFocus(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.QUERY_KEYMAP:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.WINDOW_MANAGER)) {
                         outputStream.writeByte(RESPONSE_CODE_SUCCESS);
                         outputStream.writeByte((byte) 0);
                         outputStream.writeShort(client.getSequenceNumber());
@@ -319,27 +341,27 @@ public class XClientRequestHandler implements RequestHandler {
                     FontRequests.listFonts(client, inputStream, outputStream);
                     break;
                 case ClientOpcodes.CREATE_PIXMAP:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
                         PixmapRequests.createPixmap(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.FREE_PIXMAP:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
                         PixmapRequests.freePixmap(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.CREATE_GC:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         GraphicsContextRequests.createGC(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.CHANGE_GC:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         GraphicsContextRequests.changeGC(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.COPY_GC:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         GraphicsContextRequests.copyGC(client, inputStream, outputStream);
                     }
                     break;
@@ -347,17 +369,17 @@ public class XClientRequestHandler implements RequestHandler {
                     client.skipRequest();
                     break;
                 case ClientOpcodes.FREE_GC:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         GraphicsContextRequests.freeGC(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.COPY_AREA:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         DrawRequests.copyArea(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.POLY_LINE:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         DrawRequests.polyLine(client, inputStream, outputStream);
                     }
                     break;
@@ -368,20 +390,32 @@ public class XClientRequestHandler implements RequestHandler {
                     client.skipRequest();
                     break;
                 case ClientOpcodes.POLY_FILL_RECTANGLE:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         DrawRequests.polyFillRectangle(client, inputStream, outputStream);
                     }
                     break;
                 case ClientOpcodes.PUT_IMAGE:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                         DrawRequests.putImage(client, inputStream, outputStream);
                     }
                     break;
-                case ClientOpcodes.GET_IMAGE:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
-                        DrawRequests.getImage(client, inputStream, outputStream);
+                case ClientOpcodes.GET_IMAGE: {
+                    // Pending GPU drawing may have to be completed on the CPU first, which writes into
+                    // drawables and is only done under the exclusive lock
+                    boolean done = false;
+                    try (XLock lock = client.lockShared(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                        if (!hasPendingDrawCommands(client)) {
+                            DrawRequests.getImage(client, inputStream, outputStream);
+                            done = true;
+                        }
+                    }
+                    if (!done) {
+                        try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                            DrawRequests.getImage(client, inputStream, outputStream);
+                        }
                     }
                     break;
+                }
                 case ClientOpcodes.CREATE_COLORMAP:
                     client.skipRequest();
                     break;
@@ -389,7 +423,7 @@ public class XClientRequestHandler implements RequestHandler {
                     client.skipRequest();
                     break;
                 case ClientOpcodes.CREATE_CURSOR:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
                         CursorRequests.createCursor(client, inputStream, outputStream);
                     }
                     break;
@@ -397,7 +431,7 @@ public class XClientRequestHandler implements RequestHandler {
                     client.skipRequest();
                     break;
                 case ClientOpcodes.FREE_CURSOR:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
+                    try (XLock lock = client.lock(XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.CURSOR_MANAGER)) {
                         CursorRequests.freeCursor(client, inputStream, outputStream);
                     }
                     break;
@@ -405,7 +439,7 @@ public class XClientRequestHandler implements RequestHandler {
                     ExtensionRequests.queryExtension(client, inputStream, outputStream);
                     break;
                 case ClientOpcodes.GET_KEYBOARD_MAPPING:
-                    try (XLock lock = client.xServer.lock(XServer.Lockable.INPUT_DEVICE)) {
+                    try (XLock lock = client.lockShared(XServer.Lockable.INPUT_DEVICE)) {
                         KeyboardRequests.getKeyboardMapping(client, inputStream, outputStream);
                     }
                     break;
@@ -460,7 +494,10 @@ public class XClientRequestHandler implements RequestHandler {
             client.skipRequest();
             e.sendError(client, opcode);
         }
+    }
 
-        return true;
+    private static boolean hasPendingDrawCommands(XClient client) {
+        GLRenderer renderer = client.xServer.getRenderer();
+        return renderer != null && renderer.getDrawCommandQueue().hasPendingCommands();
     }
 }
\ No newline at end of file
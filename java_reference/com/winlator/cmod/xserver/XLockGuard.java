@@ -0,0 +1,68 @@
+package com.winlator.cmod.xserver;
+
+/**
+ * Reusable lock guard, avoids allocating a new XLock for every request. Only one
+ * set of locks can be held at a time, nested use falls back to a new guard.
+ */
+public class XLockGuard implements XLock {
+    private final XServer xServer;
+    private final XServer.Lockable[] lockables = new XServer.Lockable[4];
+    private int count = 0;
+    private boolean shared;
+    private long acquireTime;
+
+    public XLockGuard(XServer xServer) {
+        this.xServer = xServer;
+    }
+
+    public XLock lock(XServer.Lockable lockable) {
+        return acquire(false, lockable, null, null, null);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2) {
+        return acquire(false, lockable1, lockable2, null, null);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2, XServer.Lockable lockable3) {
+        return acquire(false, lockable1, lockable2, lockable3, null);
+    }
+
+    public XLock lock(XServer.Lockable lockable1, XServer.Lockable lockable2, XServer.Lockable lockable3, XServer.Lockable lockable4) {
+        return acquire(false, lockable1, lockable2, lockable3, lockable4);
+    }
+
+    public XLock lockShared(XServer.Lockable lockable) {
+        return acquire(true, lockable, null, null, null);
+    }
+
+    public XLock lockShared(XServer.Lockable lockable1, XServer.Lockable lockable2) {
+        return acquire(true, lockable1, lockable2, null, null);
+    }
+
+    private XLock acquire(boolean shared, XServer.Lockable lockable1, XServer.Lockable lockable2, XServer.Lockable lockable3, XServer.Lockable lockable4) {
+        if (count > 0) return (new XLockGuard(xServer)).acquire(shared, lockable1, lockable2, lockable3, lockable4);
+
+        this.shared = shared;
+        add(lockable1);
+        add(lockable2);
+        add(lockable3);
+        add(lockable4);
+        acquireTime = xServer.getLockAcquireTime();
+        return this;
+    }
+
+    private void add(XServer.Lockable lockable) {
+        if (lockable == null) return;
+        xServer.acquireLock(lockable, shared);
+        lockables[count++] = lockable;
+    }
+
+    @Override
+    public void close() {
+        while (count > 0) {
+            XServer.Lockable lockable = lockables[--count];
+            lockables[count] = null;
+            xServer.releaseLock(lockable, shared, acquireTime);
+        }
+    }
+}
@@ -12,9 +12,13 @@ import com.winlator.cmod.xserver.extensions.MITSHMExtension;
 import com.winlator.cmod.xserver.extensions.PresentExtension;
 import com.winlator.cmod.xserver.extensions.SyncExtension;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.EnumMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class XServer {
     public enum Lockable {WINDOW_MANAGER, PIXMAP_MANAGER, DRAWABLE_MANAGER, GRAPHIC_CONTEXT_MANAGER, INPUT_DEVICE, CURSOR_MANAGER, SHMSEGMENT_MANAGER}
@@ -38,7 +42,10 @@ public class XServer {
     private SHMSegmentManager shmSegmentManager;
     private GLRenderer renderer;
     private WinHandler winHandler;
-    private final EnumMap<Lockable, ReentrantLock> locks = new EnumMap<>(Lockable.class);
+    private final EnumMap<Lockable, ReentrantReadWriteLock> locks = new EnumMap<>(Lockable.class);
+    public final LockMetrics lockMetrics = new LockMetrics();
+    private final ArrayList<RequestMetrics> requestMetrics = new ArrayList<>();
+    private volatile boolean requestMetricsEnabled = false;
     private boolean relativeMouseMovement = false;
     private boolean simulateTouchScreen = false;
     private boolean isGrabbed = false;
@@ -47,7 +54,7 @@ public class XServer {
     public XServer(ScreenInfo screenInfo) {
         this.screenInfo = screenInfo;
         cursorLocker = new CursorLocker(this);
-        for (Lockable lockable : Lockable.values()) locks.put(lockable, new ReentrantLock());
+        for (Lockable lockable : Lockable.values()) locks.put(lockable, new ReentrantReadWriteLock());
 
         pixmapManager = new PixmapManager();
         drawableManager = new DrawableManager(this);
@@ -100,46 +107,144 @@ public class XServer {
         this.shmSegmentManager = shmSegmentManager;
     }
 
-    private class SingleXLock implements XLock {
-        private final ReentrantLock lock;
+    public boolean isRequestMetricsEnabled() {
+        return requestMetricsEnabled;
+    }
 
-        private SingleXLock(Lockable lockable) {
-            this.lock = locks.get(lockable);
-            lock.lock();
+    public void setRequestMetricsEnabled(boolean requestMetricsEnabled) {
+        this.requestMetricsEnabled = requestMetricsEnabled;
+    }
+
+    protected RequestMetrics createRequestMetrics(String clientName) {
+        RequestMetrics metrics = new RequestMetrics(this, clientName);
+        synchronized (requestMetrics) {
+            requestMetrics.add(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Metrics of disconnected clients are kept until this is called, so that a whole run can be dumped.
+     */
+    public void resetRequestMetrics() {
+        synchronized (requestMetrics) {
+            requestMetrics.clear();
+        }
+    }
+
+    public String getRequestMetricsSummary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (requestMetrics) {
+            for (RequestMetrics metrics : requestMetrics) {
+                metrics.dump(sb);
+                sb.append('\n');
+            }
+        }
+        sb.append(lockMetrics);
+        return sb.toString();
+    }
+
+    public void dumpRequestMetrics(File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(getRequestMetricsSummary());
+        }
+    }
+
+    protected void acquireLock(Lockable lockable, boolean shared) {
+        ReentrantReadWriteLock lock = locks.get(lockable);
+        if (lockMetrics.isEnabled()) {
+            boolean acquired = shared ? lock.readLock().tryLock() : lock.writeLock().tryLock();
+            if (acquired) {
+                lockMetrics.recordAcquire(lockable, false, 0);
+            }
+            else {
+                long startTime = System.nanoTime();
+                if (shared) {
+                    lock.readLock().lock();
+                }
+                else lock.writeLock().lock();
+                lockMetrics.recordAcquire(lockable, true, System.nanoTime() - startTime);
+            }
+        }
+        else if (shared) {
+            lock.readLock().lock();
+        }
+        else lock.writeLock().lock();
+    }
+
+    protected void releaseLock(Lockable lockable, boolean shared, long acquireTime) {
+        ReentrantReadWriteLock lock = locks.get(lockable);
+        if (shared) {
+            lock.readLock().unlock();
+        }
+        else lock.writeLock().unlock();
+        if (acquireTime != 0) lockMetrics.recordRelease(lockable, System.nanoTime() - acquireTime);
+    }
+
+    protected long getLockAcquireTime() {
+        return lockMetrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    private class SingleXLock implements XLock {
+        private final Lockable lockable;
+        private final boolean shared;
+        private final long acquireTime;
+
+        private SingleXLock(Lockable lockable, boolean shared) {
+            this.lockable = lockable;
+            this.shared = shared;
+            acquireLock(lockable, shared);
+            acquireTime = getLockAcquireTime();
         }
 
         @Override
         public void close() {
-            lock.unlock();
+            releaseLock(lockable, shared, acquireTime);
         }
     }
 
     private class MultiXLock implements XLock {
         private final Lockable[] lockables;
+        private final boolean shared;
+        private final long acquireTime;
 
-        private MultiXLock(Lockable[] lockables) {
+        private MultiXLock(Lockable[] lockables, boolean shared) {
             this.lockables = lockables;
-            for (Lockable lockable : lockables) locks.get(lockable).lock();
+            this.shared = shared;
+            for (Lockable lockable : lockables) acquireLock(lockable, shared);
+            acquireTime = getLockAcquireTime();
         }
 
         @Override
         public void close() {
             for (int i = lockables.length - 1; i >= 0; i--) {
-                locks.get(lockables[i]).unlock();
+                releaseLock(lockables[i], shared, acquireTime);
             }
         }
     }
 
     public XLock lock(Lockable lockable) {
-        return new SingleXLock(lockable);
+        return new SingleXLock(lockable, false);
     }
 
     public XLock lock(Lockable... lockables) {
-        return new MultiXLock(lockables);
+        return new MultiXLock(lockables, false);
+    }
+
+    /**
+     * Acquires the locks in shared mode, for code that only reads the state of the managers.
+     * A thread holding a shared lock must not try to acquire the same lock exclusively.
+     */
+    public XLock lockShared(Lockable lockable) {
+        return new SingleXLock(lockable, true);
+    }
+
+    public XLock lockShared(Lockable... lockables) {
+        return new MultiXLock(lockables, true);
     }
 
     public XLock lockAll() {
-        return new MultiXLock(Lockable.values());
+        return new MultiXLock(Lockable.values(), false);
     }
 
     public Extension getExtensionByName(String name) {
@@ -151,12 +256,14 @@ public class XServer {
     }
 
     public void injectPointerMove(int x, int y) {
+        if (pointer.getX() == (short)x && pointer.getY() == (short)y) return;
         try (XLock lock = lock(Lockable.WINDOW_MANAGER, Lockable.INPUT_DEVICE)) {
             pointer.setPosition(x, y);
         }
     }
 
     public void injectPointerMoveDelta(int dx, int dy) {
+        if (dx == 0 && dy == 0) return;
         try (XLock lock = lock(Lockable.WINDOW_MANAGER, Lockable.INPUT_DEVICE)) {
             pointer.setPosition(pointer.getX() + dx, pointer.getY() + dy);
         }
@@ -8,19 +8,23 @@ import com.winlator.cmod.xserver.Window;
 import java.io.IOException;
 
 public class InputDeviceEvent extends Event {
-    private final byte detail;
-    private final int timestamp;
-    private final Window root;
-    private final Window event;
-    private final Window child;
-    private final short eventX;
-    private final short eventY;
-    private final short rootX;
-    private final short rootY;
-    private final Bitmask state;
+    private byte detail;
+    private int timestamp;
+    private Window root;
+    private Window event;
+    private Window child;
+    private short eventX;
+    private short eventY;
+    private short rootX;
+    private short rootY;
+    private Bitmask state;
 
     public InputDeviceEvent(int code, byte detail, Window root, Window event, Window child, short rootX, short rootY, short eventX, short eventY, Bitmask state) {
         super(code);
+        update(detail, root, event, child, rootX, rootY, eventX, eventY, state);
+    }
+
+    protected void update(byte detail, Window root, Window event, Window child, short rootX, short rootY, short eventX, short eventY, Bitmask state) {
         this.detail = detail;
         this.timestamp = (int)System.currentTimeMillis();
         this.root = root;
@@ -33,6 +37,10 @@ public class InputDeviceEvent extends Event {
         this.state = state;
     }
 
+    protected void setDetail(byte detail) {
+        this.detail = detail;
+    }
+
     @Override
     public void send(short sequenceNumber, XOutputStream outputStream) throws IOException {
         try (XStreamLock lock = outputStream.lock()) {
@@ -7,4 +7,19 @@ public class MotionNotify extends InputDeviceEvent {
     public MotionNotify(boolean detail, Window root, Window event, Window child, short rootX, short rootY, short eventX, short eventY, Bitmask state) {
         super(6, (byte)(detail ? 1 : 0), root, event, child, rootX, rootY, eventX, eventY, state);
     }
+
+    /**
+     * Creates an event meant to be reused through set(), see InputDeviceManager.
+     */
+    public MotionNotify() {
+        this(false, null, null, null, (short)0, (short)0, (short)0, (short)0, null);
+    }
+
+    public void set(Window root, Window event, Window child, short rootX, short rootY, short eventX, short eventY, Bitmask state) {
+        update((byte)0, root, event, child, rootX, rootY, eventX, eventY, state);
+    }
+
+    public void setHint(boolean hint) {
+        setDetail((byte)(hint ? 1 : 0));
+    }
 }
@@ -0,0 +1,38 @@
+package com.winlator.cmod.xserver.events;
+
+import com.winlator.cmod.xconnector.XOutputStream;
+import com.winlator.cmod.xconnector.XStreamLock;
+import com.winlator.cmod.xserver.extensions.MITSHMExtension;
+
+import java.io.IOException;
+
+public class SHMCompletion extends Event {
+    private final int drawableId;
+    private final short minorEvent;
+    private final int shmseg;
+    private final int offset;
+
+    public SHMCompletion(int drawableId, short minorEvent, int shmseg, int offset) {
+        super(MITSHMExtension.FIRST_EVENT_ID);
+        this.drawableId = drawableId;
+        this.minorEvent = minorEvent;
+        this.shmseg = shmseg;
+        this.offset = offset;
+    }
+
+    @Override
+    public void send(short sequenceNumber, XOutputStream outputStream) throws IOException {
+        try (XStreamLock lock = outputStream.lock()) {
+            outputStream.writeByte(code);
+            outputStream.writeByte((byte)0);
+            outputStream.writeShort(sequenceNumber);
+            outputStream.writeInt(drawableId);
+            outputStream.writeShort(minorEvent);
+            outputStream.writeByte(MITSHMExtension.MAJOR_OPCODE);
+            outputStream.writeByte((byte)0);
+            outputStream.writeInt(shmseg);
+            outputStream.writeInt(offset);
+            outputStream.writePad(12);
+        }
+    }
+}
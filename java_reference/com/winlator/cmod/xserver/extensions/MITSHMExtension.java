@@ -2,31 +2,47 @@ package com.winlator.cmod.xserver.extensions;
 
 import static com.winlator.cmod.xserver.XClientRequestHandler.RESPONSE_CODE_SUCCESS;
 
+import com.winlator.cmod.xconnector.XConnectorEpoll;
 import com.winlator.cmod.xconnector.XInputStream;
 import com.winlator.cmod.xconnector.XOutputStream;
 import com.winlator.cmod.xconnector.XStreamLock;
 import com.winlator.cmod.xserver.Drawable;
 import com.winlator.cmod.xserver.GraphicsContext;
+import com.winlator.cmod.xserver.Pixmap;
+import com.winlator.cmod.xserver.SHMSegmentManager;
 import com.winlator.cmod.xserver.XClient;
 import com.winlator.cmod.xserver.XLock;
 import com.winlator.cmod.xserver.XServer;
+import com.winlator.cmod.xserver.events.SHMCompletion;
+import com.winlator.cmod.xserver.errors.BadAccess;
+import com.winlator.cmod.xserver.errors.BadAlloc;
 import com.winlator.cmod.xserver.errors.BadDrawable;
 import com.winlator.cmod.xserver.errors.BadGraphicsContext;
+import com.winlator.cmod.xserver.errors.BadIdChoice;
 import com.winlator.cmod.xserver.errors.BadImplementation;
+import com.winlator.cmod.xserver.errors.BadMatch;
 import com.winlator.cmod.xserver.errors.BadSHMSegment;
+import com.winlator.cmod.xserver.errors.BadValue;
 import com.winlator.cmod.xserver.errors.XRequestError;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class MITSHMExtension implements Extension {
     public static final byte MAJOR_OPCODE = -101;
+    public static final byte FIRST_EVENT_ID = 64;
+    private static final byte Z_PIXMAP = 2;
 
     private static abstract class ClientOpcodes {
         private static final byte QUERY_VERSION = 0;
         private static final byte ATTACH = 1;
         private static final byte DETACH = 2;
         private static final byte PUT_IMAGE = 3;
+        private static final byte GET_IMAGE = 4;
+        private static final byte CREATE_PIXMAP = 5;
+        private static final byte ATTACH_FD = 6;
+        private static final byte CREATE_SEGMENT = 7;
     }
 
     @Override
@@ -46,28 +62,79 @@ public class MITSHMExtension implements Extension {
 
     @Override
     public byte getFirstEventId() {
-        return 64;
+        return FIRST_EVENT_ID;
     }
 
     private static void queryVersion(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         try (XStreamLock lock = outputStream.lock()) {
             outputStream.writeByte(RESPONSE_CODE_SUCCESS);
-            outputStream.writeByte((byte)0);
+            outputStream.writeByte((byte)1);
             outputStream.writeShort(client.getSequenceNumber());
             outputStream.writeInt(0);
             outputStream.writeShort((short)1);
-            outputStream.writeShort((short)1);
+            outputStream.writeShort((short)2);
             outputStream.writeShort((short)0);
             outputStream.writeShort((short)0);
-            outputStream.writeByte((byte)0);
+            outputStream.writeByte(Z_PIXMAP);
+            outputStream.writePad(15);
         }
     }
 
     private static void attach(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         int xid = inputStream.readInt();
         int shmid = inputStream.readInt();
-        inputStream.skip(4);
-        client.xServer.getSHMSegmentManager().attach(xid, shmid);
+        boolean readOnly = inputStream.readByte() != 0;
+        inputStream.skip(3);
+        client.xServer.getSHMSegmentManager().attach(xid, shmid, readOnly);
+    }
+
+    private static void attachFd(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
+        int xid = inputStream.readInt();
+        boolean readOnly = inputStream.readByte() != 0;
+        inputStream.skip(3);
+
+        int fd = inputStream.getAncillaryFd();
+        if (fd < 0) throw new BadValue(xid);
+        try {
+            if (!client.xServer.getSHMSegmentManager().attachFd(xid, fd, readOnly)) throw new BadAlloc();
+        }
+        finally {
+            XConnectorEpoll.closeFd(fd);
+        }
+    }
+
+    private static void createSegment(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
+        int xid = inputStream.readInt();
+        int size = inputStream.readInt();
+        boolean readOnly = inputStream.readByte() != 0;
+        inputStream.skip(3);
+
+        if (size <= 0) throw new BadValue(size);
+        int fd = client.xServer.getSHMSegmentManager().createSegment(xid, size, readOnly);
+        if (fd < 0) throw new BadAlloc();
+
+        try (XStreamLock lock = outputStream.lock()) {
+            outputStream.writeByte(RESPONSE_CODE_SUCCESS);
+            outputStream.writeByte((byte)1);
+            outputStream.writeShort(client.getSequenceNumber());
+            outputStream.writeInt(0);
+            outputStream.writePad(24);
+            outputStream.setAncillaryFd(fd);
+        }
+        finally {
+            XConnectorEpoll.closeFd(fd);
+        }
+    }
+
+    /**
+     * Returns a view of length bytes of the segment starting at offset, the buffer itself when offset is 0.
+     */
+    private static ByteBuffer getSegmentData(ByteBuffer data, int offset, int length) throws XRequestError {
+        if (offset < 0 || length < 0 || (long)offset + length > data.capacity()) throw new BadValue(offset);
+        if (offset == 0) return data;
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     private static void detach(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
@@ -86,9 +153,11 @@ public class MITSHMExtension implements Extension {
         short dstX = inputStream.readShort();
         short dstY = inputStream.readShort();
         byte depth = inputStream.readByte();
-        inputStream.skip(3);
+        inputStream.skip(1);
+        boolean sendEvent = inputStream.readByte() != 0;
+        inputStream.skip(1);
         int shmseg = inputStream.readInt();
-        inputStream.skip(4);
+        int offset = inputStream.readInt();
 
         Drawable drawable = client.xServer.drawableManager.getDrawable(drawableId);
         if (drawable == null) throw new BadDrawable(drawableId);
@@ -103,7 +172,86 @@ public class MITSHMExtension implements Extension {
             throw new UnsupportedOperationException("GC Function other than COPY is not supported.");
         }
 
+        if (srcX < 0 || srcY < 0 || srcX + srcWidth > totalWidth || srcY + srcHeight > totalHeight) throw new BadValue(srcX < 0 || srcX + srcWidth > totalWidth ? srcX : srcY);
+
+        int length = depth == 1 ? ((totalWidth + 31) / 32) * 4 * totalHeight : totalWidth * totalHeight * 4;
+        data = getSegmentData(data, offset, length);
         drawable.drawImage(srcX, srcY, dstX, dstY, srcWidth, srcHeight, depth, data, totalWidth, totalHeight);
+        if (sendEvent) client.sendEvent(new SHMCompletion(drawableId, ClientOpcodes.PUT_IMAGE, shmseg, offset));
+    }
+
+    private static void getImage(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
+        int drawableId = inputStream.readInt();
+        short x = inputStream.readShort();
+        short y = inputStream.readShort();
+        short width = inputStream.readShort();
+        short height = inputStream.readShort();
+        inputStream.skip(4);
+        byte format = inputStream.readByte();
+        inputStream.skip(3);
+        int shmseg = inputStream.readInt();
+        int offset = inputStream.readInt();
+
+        Drawable drawable = client.xServer.drawableManager.getDrawable(drawableId);
+        if (drawable == null) throw new BadDrawable(drawableId);
+
+        SHMSegmentManager.Segment segment = client.xServer.getSHMSegmentManager().getSegment(shmseg);
+        if (segment == null) throw new BadSHMSegment(shmseg);
+        if (segment.readOnly) throw new BadAccess();
+        if (format != Z_PIXMAP) throw new BadValue(format);
+        if (width <= 0 || height <= 0) throw new BadValue(width <= 0 ? width : height);
+
+        int length = width * height * 4;
+        drawable.getImage(x, y, width, height, getSegmentData(segment.data, offset, length));
+        int visualId = client.xServer.pixmapManager.getPixmap(drawableId) == null ? drawable.visual.id : 0;
+
+        try (XStreamLock lock = outputStream.lock()) {
+            outputStream.writeByte(RESPONSE_CODE_SUCCESS);
+            outputStream.writeByte(drawable.visual.depth);
+            outputStream.writeShort(client.getSequenceNumber());
+            outputStream.writeInt(0);
+            outputStream.writeInt(visualId);
+            outputStream.writeInt(length);
+            outputStream.writePad(16);
+        }
+    }
+
+    /**
+     * Creates a pixmap whose pixels are the segment memory itself, only for the 32 bits per pixel depths
+     * since the drawables of the other depths do not share the client image layout.
+     */
+    private static void createPixmap(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
+        int pixmapId = inputStream.readInt();
+        int drawableId = inputStream.readInt();
+        short width = inputStream.readShort();
+        short height = inputStream.readShort();
+        byte depth = inputStream.readByte();
+        inputStream.skip(3);
+        int shmseg = inputStream.readInt();
+        int offset = inputStream.readInt();
+
+        if (!client.isValidResourceId(pixmapId)) throw new BadIdChoice(pixmapId);
+
+        Drawable drawable = client.xServer.drawableManager.getDrawable(drawableId);
+        if (drawable == null) throw new BadDrawable(drawableId);
+
+        SHMSegmentManager shmSegmentManager = client.xServer.getSHMSegmentManager();
+        SHMSegmentManager.Segment segment = shmSegmentManager.getSegment(shmseg);
+        if (segment == null) throw new BadSHMSegment(shmseg);
+        if (segment.readOnly) throw new BadAccess();
+        if (width <= 0 || height <= 0) throw new BadValue(width <= 0 ? width : height);
+        if (depth != 24 && depth != 32) throw new BadMatch();
+
+        ByteBuffer data = getSegmentData(segment.data, offset, width * height * 4);
+        Drawable backingStore = client.xServer.drawableManager.createDrawable(pixmapId, width, height, depth, data);
+        if (backingStore == null) throw new BadIdChoice(pixmapId);
+
+        shmSegmentManager.retain(segment);
+        backingStore.setOnDestroyListener((d) -> shmSegmentManager.release(segment));
+
+        Pixmap pixmap = client.xServer.pixmapManager.createPixmap(backingStore);
+        if (pixmap == null) throw new BadIdChoice(pixmapId);
+        client.registerAsOwnerOfResource(pixmap);
     }
 
     @Override
@@ -114,20 +262,40 @@ public class MITSHMExtension implements Extension {
                 queryVersion(client, inputStream, outputStream);
                 break;
             case ClientOpcodes.ATTACH :
-                try (XLock lock = client.xServer.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
                     attach(client, inputStream, outputStream);
                 }
                 break;
             case ClientOpcodes.DETACH :
-                try (XLock lock = client.xServer.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
                     detach(client, inputStream, outputStream);
                 }
                 break;
             case ClientOpcodes.PUT_IMAGE :
-                try (XLock lock = client.xServer.lock(XServer.Lockable.SHMSEGMENT_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER, XServer.Lockable.DRAWABLE_MANAGER, XServer.Lockable.GRAPHIC_CONTEXT_MANAGER)) {
                     putImage(client, inputStream, outputStream);
                 }
                 break;
+            case ClientOpcodes.GET_IMAGE :
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER, XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                    getImage(client, inputStream, outputStream);
+                }
+                break;
+            case ClientOpcodes.CREATE_PIXMAP :
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER, XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
+                    createPixmap(client, inputStream, outputStream);
+                }
+                break;
+            case ClientOpcodes.ATTACH_FD :
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
+                    attachFd(client, inputStream, outputStream);
+                }
+                break;
+            case ClientOpcodes.CREATE_SEGMENT :
+                try (XLock lock = client.lock(XServer.Lockable.SHMSEGMENT_MANAGER)) {
+                    createSegment(client, inputStream, outputStream);
+                }
+                break;
             default:
                 throw new BadImplementation();
         }
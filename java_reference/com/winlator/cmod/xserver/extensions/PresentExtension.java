@@ -4,7 +4,10 @@ import static com.winlator.cmod.xserver.XClientRequestHandler.RESPONSE_CODE_SUCC
 
 import android.util.SparseArray;
 
+import com.winlator.cmod.renderer.FrameClock;
+import com.winlator.cmod.renderer.GLRenderer;
 import com.winlator.cmod.renderer.GPUImage;
+import com.winlator.cmod.renderer.GPUImageSwapchain;
 import com.winlator.cmod.renderer.Texture;
 import com.winlator.cmod.xconnector.XInputStream;
 import com.winlator.cmod.xconnector.XOutputStream;
@@ -15,6 +18,8 @@ import com.winlator.cmod.xserver.Pixmap;
 import com.winlator.cmod.xserver.Window;
 import com.winlator.cmod.xserver.XClient;
 import com.winlator.cmod.xserver.XLock;
+import com.winlator.cmod.xserver.XResource;
+import com.winlator.cmod.xserver.XResourceManager;
 import com.winlator.cmod.xserver.XServer;
 import com.winlator.cmod.xserver.errors.BadImplementation;
 import com.winlator.cmod.xserver.errors.BadMatch;
@@ -25,14 +30,20 @@ import com.winlator.cmod.xserver.events.PresentCompleteNotify;
 import com.winlator.cmod.xserver.events.PresentIdleNotify;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
-public class PresentExtension implements Extension {
+public class PresentExtension implements Extension, FrameClock.OnFrameListener, XResourceManager.OnResourceLifecycleListener {
     public static final byte MAJOR_OPCODE = -103;
     private static final int FAKE_INTERVAL = 1000000 / 60;
+    private static final int MAX_TARGET_MSC_AHEAD = 120;
     public enum Kind {PIXMAP, MSC_NOTIFY}
     public enum Mode {COPY, FLIP, SKIP}
     private final SparseArray<Event> events = new SparseArray<>();
+    private final SparseArray<FlipState> flips = new SparseArray<>();
+    private final ArrayList<PendingComplete> pendingCompletes = new ArrayList<>();
     private SyncExtension syncExtension;
+    private FrameClock frameClock;
+    private int swapchainSize = 3;
 
     private static abstract class ClientOpcodes {
         private static final byte QUERY_VERSION = 0;
@@ -47,11 +58,39 @@ public class PresentExtension implements Extension {
         private Bitmask mask;
     }
 
+    private static class FlipState {
+        private Window window;
+        private Drawable content;
+        private Texture windowTexture;
+        private Pixmap pixmap;
+        private int serial;
+        private int idleFence;
+    }
+
+    private static class PendingComplete {
+        private Window window;
+        private int serial;
+        private Mode mode;
+        private long targetMsc;
+    }
+
     @Override
     public String getName() {
         return "Present";
     }
 
+    public int getSwapchainSize() {
+        return swapchainSize;
+    }
+
+    /**
+     * Number of images backing the contents of the windows selecting Present events,
+     * 1 falls back to a single GPUImage. Only applies to windows selected afterwards.
+     */
+    public void setSwapchainSize(int swapchainSize) {
+        this.swapchainSize = swapchainSize;
+    }
+
     @Override
     public byte getMajorOpcode() {
         return MAJOR_OPCODE;
@@ -114,6 +153,8 @@ public class PresentExtension implements Extension {
         short yOff = inputStream.readShort();
         inputStream.skip(8);
         int idleFence = inputStream.readInt();
+        inputStream.skip(8);
+        long targetMsc = inputStream.readLong();
         inputStream.skip(client.getRemainingRequestLength());
 
         final Window window = client.xServer.windowManager.getWindow(windowId);
@@ -125,14 +166,132 @@ public class PresentExtension implements Extension {
         Drawable content = window.getContent();
         if (content.visual.depth != pixmap.drawable.visual.depth) throw new BadMatch();
 
-        long ust = System.nanoTime() / 1000;
-        long msc = ust / FAKE_INTERVAL;
+        Mode mode;
+        synchronized (content.renderLock) {
+            if (canFlip(content, pixmap, xOff, yOff)) {
+                flip(window, content, pixmap, serial, idleFence);
+                mode = Mode.FLIP;
+            }
+            else {
+                unflip(window, true, true);
+                content.copyArea((short)0, (short)0, xOff, yOff, pixmap.drawable.width, pixmap.drawable.height, pixmap.drawable);
+                if (content.getTexture() instanceof GPUImageSwapchain) ((GPUImageSwapchain)content.getTexture()).publish();
+                sendIdleNotify(window, pixmap, serial, idleFence);
+                mode = Mode.COPY;
+            }
+        }
+
+        if (frameClock != null) {
+            PendingComplete pendingComplete = new PendingComplete();
+            pendingComplete.window = window;
+            pendingComplete.serial = serial;
+            pendingComplete.mode = mode;
+            pendingComplete.targetMsc = Math.min(targetMsc, frameClock.getCurrentMSC() + MAX_TARGET_MSC_AHEAD);
+            synchronized (pendingCompletes) {
+                pendingCompletes.add(pendingComplete);
+            }
+            frameClock.requestFrame();
+        }
+        else {
+            long ust = System.nanoTime() / 1000;
+            long msc = ust / FAKE_INTERVAL;
+            sendCompleteNotify(window, serial, Kind.PIXMAP, mode, ust, msc);
+        }
+    }
+
+    private static boolean canFlip(Drawable content, Pixmap pixmap, short xOff, short yOff) {
+        if (xOff != 0 || yOff != 0) return false;
+        Texture windowTexture = content.getTexture();
+        Texture pixmapTexture = pixmap.drawable.getTexture();
+        if (!(pixmapTexture instanceof GPUImage)) return false;
+        if (pixmap.drawable.width != content.width || pixmap.drawable.height != content.height) return false;
+        short pixmapStride = ((GPUImage)pixmapTexture).getStride();
+        if (windowTexture instanceof GPUImage) return pixmapStride == ((GPUImage)windowTexture).getStride();
+        if (windowTexture instanceof GPUImageSwapchain) return pixmapStride == ((GPUImageSwapchain)windowTexture).getStride();
+        return false;
+    }
+
+    private void flip(Window window, Drawable content, Pixmap pixmap, int serial, int idleFence) {
+        Pixmap previousPixmap = null;
+        int previousSerial = 0;
+        int previousIdleFence = 0;
+
+        synchronized (flips) {
+            FlipState flipState = flips.get(window.id);
+            if (flipState == null || flipState.content != content) {
+                flipState = new FlipState();
+                flipState.window = window;
+                flipState.content = content;
+                flipState.windowTexture = content.getTexture();
+                flips.put(window.id, flipState);
+                content.setOnDestroyListener((drawable) -> unflip(window, false, true));
+            }
+            else {
+                previousPixmap = flipState.pixmap;
+                previousSerial = flipState.serial;
+                previousIdleFence = flipState.idleFence;
+            }
 
+            flipState.pixmap = pixmap;
+            flipState.serial = serial;
+            flipState.idleFence = idleFence;
+            content.setTexture(pixmap.drawable.getTexture());
+        }
+
+        if (previousPixmap != null && previousPixmap != pixmap) sendIdleNotify(window, previousPixmap, previousSerial, previousIdleFence);
+
+        Runnable onDrawListener = content.getOnDrawListener();
+        if (onDrawListener != null) onDrawListener.run();
+    }
+
+    private void unflip(Window window, boolean keepContents, boolean notifyIdle) {
+        FlipState flipState;
+        synchronized (flips) {
+            flipState = flips.get(window.id);
+            if (flipState == null) return;
+            flips.remove(window.id);
+        }
+
+        Drawable content = flipState.content;
         synchronized (content.renderLock) {
-            content.copyArea((short)0, (short)0, xOff, yOff, pixmap.drawable.width, pixmap.drawable.height, pixmap.drawable);
-            sendIdleNotify(window, pixmap, serial, idleFence);
-            sendCompleteNotify(window, serial, Kind.PIXMAP, Mode.COPY, ust, msc);
+            content.setOnDestroyListener(null);
+            content.setTexture(flipState.windowTexture);
+            if (keepContents) content.copyArea((short)0, (short)0, (short)0, (short)0, content.width, content.height, flipState.pixmap.drawable);
         }
+        if (notifyIdle) sendIdleNotify(window, flipState.pixmap, flipState.serial, flipState.idleFence);
+    }
+
+    @Override
+    public void onFreeResource(XResource resource) {
+        if (!(resource instanceof Pixmap)) return;
+        Window window = null;
+        synchronized (flips) {
+            for (int i = 0; i < flips.size(); i++) {
+                FlipState flipState = flips.valueAt(i);
+                if (flipState.pixmap == resource) {
+                    window = flipState.window;
+                    break;
+                }
+            }
+        }
+        if (window != null) unflip(window, true, false);
+    }
+
+    @Override
+    public void onFrame(long msc, long ust) {
+        boolean hasPending;
+        synchronized (pendingCompletes) {
+            // Completes are sent in present order, the client derives its swap counter from the serial
+            for (int i = 0; i < pendingCompletes.size(); i++) {
+                PendingComplete pendingComplete = pendingCompletes.get(i);
+                if (pendingComplete.targetMsc <= msc) {
+                    sendCompleteNotify(pendingComplete.window, pendingComplete.serial, Kind.PIXMAP, pendingComplete.mode, ust, msc);
+                    pendingCompletes.remove(i--);
+                }
+            }
+            hasPending = !pendingCompletes.isEmpty();
+        }
+        if (hasPending) frameClock.requestFrame();
     }
 
     private void selectInput(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
@@ -143,11 +302,29 @@ public class PresentExtension implements Extension {
         Window window = client.xServer.windowManager.getWindow(windowId);
         if (window == null) throw new BadWindow(windowId);
 
-        if (GPUImage.isSupported() && !mask.isEmpty()) {
+        GLRenderer renderer = client.xServer.getRenderer();
+        Texture windowTexture = window.getContent().getTexture();
+        if (GPUImage.isSupported() && !mask.isEmpty() && !(windowTexture instanceof GPUImage) && !(windowTexture instanceof GPUImageSwapchain)) {
             Drawable content = window.getContent();
-            final Texture oldTexture = content.getTexture();
-            client.xServer.getRenderer().xServerView.queueEvent(oldTexture::destroy);
-            content.setTexture(new GPUImage(content.width, content.height));
+            Texture newTexture = null;
+            if (swapchainSize > 1) {
+                GPUImageSwapchain swapchain = new GPUImageSwapchain(content, swapchainSize);
+                if (swapchain.isValid()) {
+                    newTexture = swapchain;
+                }
+                else swapchain.destroy();
+            }
+            if (newTexture == null) {
+                GPUImage gpuImage = new GPUImage(content.width, content.height);
+                gpuImage.setCommandQueue(renderer.getDrawCommandQueue());
+                newTexture = gpuImage;
+            }
+
+            synchronized (content.renderLock) {
+                final Texture oldTexture = content.getTexture();
+                renderer.xServerView.queueEvent(oldTexture::destroy);
+                content.setTexture(newTexture);
+            }
         }
 
         synchronized (events) {
@@ -174,19 +351,28 @@ public class PresentExtension implements Extension {
     @Override
     public void handleRequest(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         int opcode = client.getRequestData();
-        if (syncExtension == null) syncExtension = client.xServer.getExtension(SyncExtension.MAJOR_OPCODE);
+        if (syncExtension == null) {
+            syncExtension = client.xServer.getExtension(SyncExtension.MAJOR_OPCODE);
+            client.xServer.pixmapManager.addOnResourceLifecycleListener(this);
+
+            GLRenderer renderer = client.xServer.getRenderer();
+            if (renderer != null) {
+                frameClock = renderer.frameClock;
+                frameClock.addOnFrameListener(this);
+            }
+        }
 
         switch (opcode) {
             case ClientOpcodes.QUERY_VERSION :
                 queryVersion(client, inputStream, outputStream);
                 break;
             case ClientOpcodes.PRESENT_PIXMAP:
-                try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.PIXMAP_MANAGER)) {
+                try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER, XServer.Lockable.PIXMAP_MANAGER, XServer.Lockable.DRAWABLE_MANAGER)) {
                     presentPixmap(client, inputStream, outputStream);
                 }
                 break;
             case ClientOpcodes.SELECT_INPUT:
-                try (XLock lock = client.xServer.lock(XServer.Lockable.WINDOW_MANAGER)) {
+                try (XLock lock = client.lock(XServer.Lockable.WINDOW_MANAGER)) {
                     selectInput(client, inputStream, outputStream);
                 }
                 break;
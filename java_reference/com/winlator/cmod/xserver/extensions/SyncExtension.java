@@ -1,6 +1,6 @@
 package com.winlator.cmod.xserver.extensions;
 
-import android.util.SparseBooleanArray;
+import android.util.SparseArray;
 
 import com.winlator.cmod.xconnector.XInputStream;
 import com.winlator.cmod.xconnector.XOutputStream;
@@ -12,10 +12,30 @@ import com.winlator.cmod.xserver.errors.BadMatch;
 import com.winlator.cmod.xserver.errors.XRequestError;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 public class SyncExtension implements Extension {
     public static final byte MAJOR_OPCODE = -104;
-    private final SparseBooleanArray fences = new SparseBooleanArray();
+    private final SparseArray<Fence> fences = new SparseArray<>();
+
+    private static class Fence {
+        private boolean triggered;
+        private final ArrayList<Waiter> waiters = new ArrayList<>();
+
+        private Fence(boolean triggered) {
+            this.triggered = triggered;
+        }
+    }
+
+    private static class Waiter {
+        private final XClient client;
+        private final Fence[] fences;
+
+        private Waiter(XClient client, Fence[] fences) {
+            this.client = client;
+            this.fences = fences;
+        }
+    }
 
     private static abstract class ClientOpcodes {
         private static final byte CREATE_FENCE = 14;
@@ -47,7 +67,22 @@ public class SyncExtension implements Extension {
 
     public void setTriggered(int id) {
         synchronized (fences) {
-            if (fences.indexOfKey(id) >= 0) fences.put(id, true);
+            Fence fence = fences.get(id);
+            if (fence != null) trigger(fence);
+        }
+    }
+
+    private void trigger(Fence fence) {
+        fence.triggered = true;
+        wakeWaiters(fence);
+        fences.notifyAll();
+    }
+
+    private void wakeWaiters(Fence fence) {
+        while (!fence.waiters.isEmpty()) {
+            Waiter waiter = fence.waiters.get(fence.waiters.size()-1);
+            for (Fence other : waiter.fences) other.waiters.remove(waiter);
+            waiter.client.resume();
         }
     }
 
@@ -61,61 +96,84 @@ public class SyncExtension implements Extension {
             boolean initiallyTriggered = inputStream.readByte() == 1;
             inputStream.skip(3);
 
-            fences.put(id, initiallyTriggered);
+            fences.put(id, new Fence(initiallyTriggered));
         }
     }
 
     private void triggerFence(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         synchronized (fences) {
             int id = inputStream.readInt();
-            if (fences.indexOfKey(id) < 0) throw new BadFence(id);
-            fences.put(id, true);
+            Fence fence = fences.get(id);
+            if (fence == null) throw new BadFence(id);
+            trigger(fence);
         }
     }
 
     private void resetFence(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         synchronized (fences) {
             int id = inputStream.readInt();
-            if (fences.indexOfKey(id) < 0) throw new BadFence(id);
+            Fence fence = fences.get(id);
+            if (fence == null) throw new BadFence(id);
+            if (!fence.triggered) throw new BadMatch();
 
-            boolean triggered = fences.get(id);
-            if (!triggered) throw new BadMatch();
-
-            fences.put(id, false);
+            fence.triggered = false;
         }
     }
 
     private void destroyFence(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         synchronized (fences) {
             int id = inputStream.readInt();
-            if (fences.indexOfKey(id) < 0) throw new BadFence(id);
+            Fence fence = fences.get(id);
+            if (fence == null) throw new BadFence(id);
             fences.delete(id);
+            wakeWaiters(fence);
+            fences.notifyAll();
         }
     }
 
     private void awaitFence(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         synchronized (fences) {
             int length = client.getRemainingRequestLength();
-            int[] ids = new int[length / 4];
+            Fence[] awaitedFences = new Fence[length / 4];
             int i = 0;
 
             while (length != 0) {
-                ids[i++] = inputStream.readInt();
+                int id = inputStream.readInt();
+                Fence fence = fences.get(id);
+                if (fence == null) throw new BadFence(id);
+                awaitedFences[i++] = fence;
                 length -= 4;
             }
 
-            boolean anyTriggered = false;
-            do {
-                for (int id : ids) {
-                    if (fences.indexOfKey(id) < 0) throw new BadFence(id);
-                    anyTriggered = fences.get(id);
-                    if (anyTriggered) break;
+            if (awaitedFences.length == 0) return;
+            for (Fence fence : awaitedFences) {
+                if (fence.triggered) return;
+            }
+
+            if (client.suspend()) {
+                Waiter waiter = new Waiter(client, awaitedFences);
+                for (Fence fence : awaitedFences) fence.waiters.add(waiter);
+            }
+            else {
+                while (!isAnyTriggered(awaitedFences)) {
+                    try {
+                        fences.wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
                 }
             }
-            while (!anyTriggered);
         }
     }
 
+    private boolean isAnyTriggered(Fence[] awaitedFences) {
+        for (Fence fence : awaitedFences) {
+            if (fence.triggered || fences.indexOfValue(fence) < 0) return true;
+        }
+        return false;
+    }
+
     @Override
     public void handleRequest(XClient client, XInputStream inputStream, XOutputStream outputStream) throws IOException, XRequestError {
         int opcode = client.getRequestData();
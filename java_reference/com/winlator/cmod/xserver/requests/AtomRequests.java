@@ -34,6 +34,7 @@ public abstract class AtomRequests {
         int id = inputStream.readInt();
         if (id < 0) throw new BadAtom(id);
         String name = Atom.getName(id);
+        if (name == null) throw new BadAtom(id);
         short length = (short) name.length();
 
 
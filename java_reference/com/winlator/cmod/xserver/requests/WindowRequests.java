@@ -259,7 +259,9 @@ public abstract class WindowRequests {
         short rootX = client.xServer.pointer.getClampedX();
         short rootY = client.xServer.pointer.getClampedY();
         Window child = window.getChildByCoords(rootX, rootY);
-        short[] localPoint = window.rootPointToLocal(rootX, rootY);
+        short localX = (short)(rootX - window.getRootX());
+        short localY = (short)(rootY - window.getRootY());
+        client.resetMotionHint(window);
 
         try (XStreamLock lock = outputStream.lock()) {
             outputStream.writeByte(RESPONSE_CODE_SUCCESS);
@@ -270,8 +272,8 @@ public abstract class WindowRequests {
             outputStream.writeInt(child != null ? child.id : 0);
             outputStream.writeShort(rootX);
             outputStream.writeShort(rootY);
-            outputStream.writeShort(localPoint[0]);
-            outputStream.writeShort(localPoint[1]);
+            outputStream.writeShort(localX);
+            outputStream.writeShort(localY);
             outputStream.writeShort((short)client.xServer.inputDeviceManager.getKeyButMask().getBits());
             outputStream.writePad(6);
         }